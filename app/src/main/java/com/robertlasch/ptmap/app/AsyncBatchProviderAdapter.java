@@ -0,0 +1,42 @@
+package com.robertlasch.ptmap.app;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs a synchronous IFeatureBatchProvider on an executor.
+ */
+public class AsyncBatchProviderAdapter implements IAsyncFeatureBatchProvider
+{
+    private final IFeatureBatchProvider provider;
+    private final Executor executor;
+
+    public AsyncBatchProviderAdapter(IFeatureBatchProvider provider, Executor executor)
+    {
+        this.provider = provider;
+        this.executor = executor;
+    }
+
+    public static IAsyncFeatureBatchProvider wrap(IFeatureBatchProvider provider, Executor executor)
+    {
+        if (provider instanceof IAsyncFeatureBatchProvider)
+            return (IAsyncFeatureBatchProvider)provider;
+
+        return new AsyncBatchProviderAdapter(provider, executor);
+    }
+
+    @Override
+    public TileRequest requestFeatureBatches(int x, int y, int zoomLevel, VectorTileRendered.TileType[] types, TileRequest.Callback callback)
+    {
+        TileRequest request = new TileRequest(x, y, zoomLevel, types, callback)
+        {
+            @Override
+            protected boolean load(VectorTileRendered.TileType type, FeatureBatch batch)
+            {
+                return provider.getFeatureBatch(getX(), getY(), getZoomLevel(), type, batch);
+            }
+        };
+
+        executor.execute(request);
+        return request;
+    }
+}
@@ -0,0 +1,275 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes concurrent requests for the same tile share a single fetch and decode.
+ *
+ * The first request for a tile becomes the leader and loads it into its own batch. Requests arriving
+ * while the leader is busy wait for it and copy its result, the leader returns once all of them have
+ * copied it, so its batch can safely be reused afterwards. If the leader gets cancelled, its waiters
+ * start over instead of failing with it.
+ *
+ * Providers that fetch in a stage of their own are wrapped through create(), which makes concurrent
+ * fetches of the same payload share one fetch and concurrent decodes of it share one decode, the
+ * same way complete loads are shared.
+ */
+public class CoalescingBatchProvider implements IFeatureBatchProvider
+{
+    private final IFeatureBatchProvider provider;
+    private final ConcurrentHashMap<Long, Flight> flights = new ConcurrentHashMap<Long, Flight>();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    public CoalescingBatchProvider(IFeatureBatchProvider provider)
+    {
+        this.provider = provider;
+    }
+
+    /**
+     * @return a provider that is an IStagedFeatureBatchProvider as well if the wrapped one is
+     */
+    public static CoalescingBatchProvider create(IFeatureBatchProvider provider)
+    {
+        if (provider instanceof IStagedFeatureBatchProvider)
+            return new Staged((IStagedFeatureBatchProvider)provider);
+        return new CoalescingBatchProvider(provider);
+    }
+
+    /**
+     * Fills a batch, the decoding step that gets shared.
+     */
+    private interface Loader
+    {
+        public boolean load(FeatureBatch batch);
+    }
+
+    @Override
+    public boolean getFeatureBatch(final int x, final int y, final int zoomLevel, final VectorTileRendered.TileType type, FeatureBatch batch)
+    {
+        return coalesce(TileKey.pack(zoomLevel, x, y, type), batch, new Loader()
+        {
+            @Override
+            public boolean load(FeatureBatch batch)
+            {
+                return provider.getFeatureBatch(x, y, zoomLevel, type, batch);
+            }
+        });
+    }
+
+    private boolean coalesce(long key, FeatureBatch batch, Loader loader)
+    {
+        while (true)
+        {
+            Flight flight = new Flight();
+            Flight existing = flights.putIfAbsent(key, flight);
+
+            if (existing == null)
+                return lead(key, flight, batch, loader);
+
+            synchronized (existing)
+            {
+                //The leader already handed out its result and is about to reuse its batch
+                if (existing.done && (existing.batch == null || existing.cancelled))
+                    continue;
+
+                existing.waiters++;
+                deduplicated.incrementAndGet();
+
+                try
+                {
+                    while (!existing.done)
+                        existing.wait();
+
+                    if (existing.cancelled || (existing.success && existing.batch == null))
+                        continue;
+                    if (!existing.success)
+                        return false;
+
+                    batch.copyFrom(existing.batch);
+                    return true;
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                finally
+                {
+                    existing.waiters--;
+                    existing.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean lead(long key, Flight flight, FeatureBatch batch, Loader loader)
+    {
+        boolean success = false;
+
+        try
+        {
+            success = loader.load(batch);
+            return success;
+        }
+        finally
+        {
+            flights.remove(key);
+
+            synchronized (flight)
+            {
+                flight.batch = batch;
+                flight.success = success;
+                flight.cancelled = Thread.currentThread().isInterrupted();
+                flight.done = true;
+                flight.notifyAll();
+
+                boolean interrupted = false;
+                while (flight.waiters > 0 && !interrupted)
+                {
+                    try
+                    {
+                        flight.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                flight.batch = null;
+            }
+        }
+    }
+
+    /**
+     * @return number of requests that were served by another request's load
+     */
+    public long getDeduplicatedCount()
+    {
+        return deduplicated.get();
+    }
+
+    public int getInFlightCount()
+    {
+        return flights.size();
+    }
+
+    private static class Flight
+    {
+        boolean done = false;
+        boolean success = false;
+        boolean cancelled = false;
+        int waiters = 0;
+        FeatureBatch batch;
+        ByteBuffer payload;
+        IOException failure;
+    }
+
+    private static class Staged extends CoalescingBatchProvider implements IStagedFeatureBatchProvider
+    {
+        private final IStagedFeatureBatchProvider provider;
+        private final ConcurrentHashMap<Long, Flight> fetches = new ConcurrentHashMap<Long, Flight>();
+
+        Staged(IStagedFeatureBatchProvider provider)
+        {
+            super(provider);
+            this.provider = provider;
+        }
+
+        @Override
+        public ByteBuffer fetchPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+        {
+            long key = TileKey.pack(zoomLevel, x, y, type);
+
+            while (true)
+            {
+                Flight flight = new Flight();
+                Flight existing = fetches.putIfAbsent(key, flight);
+
+                if (existing == null)
+                    return leadFetch(key, flight, x, y, zoomLevel, type);
+
+                synchronized (existing)
+                {
+                    super.deduplicated.incrementAndGet();
+
+                    try
+                    {
+                        while (!existing.done)
+                            existing.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Cancelled while waiting for a shared fetch");
+                    }
+
+                    if (existing.cancelled)
+                        continue;
+                    if (existing.failure != null)
+                        throw new IOException(existing.failure.getMessage(), existing.failure);
+
+                    //Payloads are never written to, every request only needs its own position and limit
+                    return existing.payload != null ? existing.payload.duplicate() : null;
+                }
+            }
+        }
+
+        private ByteBuffer leadFetch(long key, Flight flight, int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+        {
+            ByteBuffer payload = null;
+            IOException failure = null;
+
+            try
+            {
+                payload = provider.fetchPayload(x, y, zoomLevel, type);
+                return payload;
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+            catch (RuntimeException e)
+            {
+                //A null payload would tell the waiters the tile doesn't exist
+                failure = new IOException("Fetching " + zoomLevel + "/" + x + "/" + y + " " + type + " failed", e);
+                throw e;
+            }
+            finally
+            {
+                fetches.remove(key);
+
+                synchronized (flight)
+                {
+                    flight.payload = payload != null ? payload.duplicate() : null;
+                    flight.failure = failure;
+                    flight.cancelled = Thread.currentThread().isInterrupted();
+                    flight.done = true;
+                    flight.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Requests decoding the same tile at the same time copy the batch of the first one.
+         */
+        @Override
+        public boolean decodePayload(final ByteBuffer payload, final int x, final int y, final int zoomLevel, final VectorTileRendered.TileType type, FeatureBatch batch)
+        {
+            return super.coalesce(TileKey.pack(zoomLevel, x, y, type), batch, new Loader()
+            {
+                @Override
+                public boolean load(FeatureBatch batch)
+                {
+                    return provider.decodePayload(payload, x, y, zoomLevel, type, batch);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.robertlasch.ptmap.app;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of raw tile payloads in front of another ITilePayloadSource.
+ *
+ * Every tile is stored in its own file named after its TileKey. Files are written to a temporary
+ * file first and renamed afterwards, so a crash never leaves a truncated tile behind. Hits are
+ * read through a memory mapping and never touch the wrapped source. Once the cached payloads
+ * exceed the byte budget the least recently used tiles are deleted; the LRU order survives
+ * restarts through the file modification times. The index of the files is built on a background
+ * thread, so creating the cache doesn't block the UI thread; lookups wait until it is complete.
+ *
+ * Every file starts with a small header holding the time the tile was fetched and its ETag and
+ * Last-Modified date. Tiles older than maxAge are revalidated with a conditional request when the
+ * source is an HttpTileSource; if that fails (e.g. offline) the stale copy is served.
+ */
+public class DiskTileCache implements ITilePayloadSource
+{
+    private static final String SUFFIX = ".tile";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x50544331; //"PTC1"
+    private static final int FETCHED_AT_OFFSET = 4;
+    private static final int LAST_MODIFIED_OFFSET = 12;
+    private static final int ETAG_LENGTH_OFFSET = 20;
+    private static final int HEADER_SIZE = 22;
+    public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private final File directory;
+    private final long byteBudget;
+    private final long maxAge;
+    private final ITilePayloadSource source;
+
+    //Access ordered: the eldest entry is the least recently used one
+    private final LinkedHashMap<Long, Long> entries = new LinkedHashMap<Long, Long>(256, 0.75f, true);
+    private long residentBytes = 0;
+    private final CountDownLatch indexed = new CountDownLatch(1);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * @param directory directory used exclusively by this cache
+     * @param byteBudget maximum number of bytes kept on disk
+     * @param source source to fetch missing tiles from
+     */
+    public DiskTileCache(File directory, long byteBudget, ITilePayloadSource source)
+    {
+        this(directory, byteBudget, DEFAULT_MAX_AGE, source);
+    }
+
+    /**
+     * @param directory directory used exclusively by this cache
+     * @param byteBudget maximum number of bytes kept on disk
+     * @param maxAge milliseconds after which a cached tile gets revalidated
+     * @param source source to fetch missing tiles from
+     */
+    public DiskTileCache(File directory, long byteBudget, long maxAge, ITilePayloadSource source)
+    {
+        this.directory = directory;
+        this.byteBudget = byteBudget;
+        this.maxAge = maxAge;
+        this.source = source;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Log.e("DiskTileCache", "Couldn't create cache directory " + directory);
+
+        Thread indexer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    loadIndex();
+                }
+                finally
+                {
+                    indexed.countDown();
+                }
+            }
+        }, "DiskTileCacheIndex");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    private void loadIndex()
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        //Every lastModified() is a stat call, read them once instead of in every comparison
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                long difference = modified[a] - modified[b];
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        synchronized (entries)
+        {
+            for (Integer index : order)
+            {
+                File file = files[index];
+                String name = file.getName();
+
+                //Leftovers of interrupted writes
+                if (name.endsWith(TEMP_SUFFIX))
+                {
+                    file.delete();
+                    continue;
+                }
+
+                if (!name.endsWith(SUFFIX))
+                    continue;
+
+                try
+                {
+                    long key = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+                    long length = file.length();
+
+                    if (length == 0)
+                    {
+                        file.delete();
+                        continue;
+                    }
+
+                    entries.put(key, length);
+                    residentBytes += length;
+                }
+                catch (NumberFormatException e)
+                {
+                    Log.w("DiskTileCache", "Ignoring foreign file " + name);
+                }
+            }
+
+            evict();
+        }
+    }
+
+    /**
+     * Waits until the index has been built by the background thread.
+     */
+    private void awaitIndex() throws InterruptedIOException
+    {
+        try
+        {
+            indexed.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the cache index was built");
+        }
+    }
+
+    @Override
+    public ByteBuffer getPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+    {
+        long key = TileKey.pack(zoomLevel, x, y, type);
+
+        Entry cached = read(key);
+        if (cached != null)
+        {
+            hits.incrementAndGet();
+
+            if (System.currentTimeMillis() - cached.fetchedAt > maxAge && source instanceof HttpTileSource)
+                return revalidate(key, cached, x, y, zoomLevel, type);
+
+            return cached.payload;
+        }
+
+        misses.incrementAndGet();
+
+        if (source instanceof HttpTileSource)
+        {
+            HttpTileSource.Response response = ((HttpTileSource)source).fetch(x, y, zoomLevel, type, null, 0);
+            if (response == null)
+                return null;
+
+            put(key, response.payload, response.eTag, response.lastModified);
+            return response.payload;
+        }
+
+        ByteBuffer payload = source.getPayload(x, y, zoomLevel, type);
+        if (payload != null)
+            put(key, payload);
+
+        return payload;
+    }
+
+    private ByteBuffer revalidate(long key, Entry cached, int x, int y, int zoomLevel, VectorTileRendered.TileType type)
+    {
+        revalidations.incrementAndGet();
+
+        try
+        {
+            HttpTileSource.Response response = ((HttpTileSource)source).fetch(x, y, zoomLevel, type, cached.eTag, cached.lastModified);
+
+            if (response == null)
+            {
+                remove(key);
+                getFile(key).delete();
+                return null;
+            }
+
+            if (response.notModified)
+            {
+                markFetched(key);
+                return cached.payload;
+            }
+
+            put(key, response.payload, response.eTag, response.lastModified);
+            return response.payload;
+        }
+        catch (IOException e)
+        {
+            Log.w("DiskTileCache", "Revalidation of " + TileKey.toString(key) + " failed, serving stale copy: " + e.getMessage());
+            return cached.payload;
+        }
+    }
+
+    private void markFetched(long key)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(getFile(key), "rw");
+            try
+            {
+                raf.seek(FETCHED_AT_OFFSET);
+                raf.writeLong(System.currentTimeMillis());
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w("DiskTileCache", "Couldn't update " + TileKey.toString(key) + ": " + e.getMessage());
+        }
+    }
+
+    public boolean contains(int x, int y, int zoomLevel, VectorTileRendered.TileType type)
+    {
+        try
+        {
+            awaitIndex();
+        }
+        catch (InterruptedIOException e)
+        {
+            return false;
+        }
+
+        synchronized (entries)
+        {
+            return entries.containsKey(TileKey.pack(zoomLevel, x, y, type));
+        }
+    }
+
+    /**
+     * Stores a payload, replacing any cached version of the tile.
+     */
+    public void put(long key, ByteBuffer payload) throws IOException
+    {
+        put(key, payload, null, 0);
+    }
+
+    /**
+     * Stores a payload together with the validators it was served with.
+     * @param eTag ETag of the payload or null
+     * @param lastModified Last-Modified date of the payload or 0
+     */
+    public void put(long key, ByteBuffer payload, String eTag, long lastModified) throws IOException
+    {
+        awaitIndex();
+
+        byte[] eTagBytes = eTag != null ? eTag.getBytes("UTF-8") : new byte[0];
+        if (eTagBytes.length > 0xFFFF)
+            eTagBytes = new byte[0];
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + eTagBytes.length);
+        header.putInt(MAGIC);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(lastModified);
+        header.putShort((short)eTagBytes.length);
+        header.put(eTagBytes);
+        header.flip();
+
+        long length = header.remaining() + payload.remaining();
+
+        File target = getFile(key);
+        File temp = new File(directory, Long.toHexString(key) + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+
+        FileOutputStream stream = new FileOutputStream(temp);
+        try
+        {
+            ByteBuffer data = payload.duplicate();
+            FileChannel channel = stream.getChannel();
+            while (header.hasRemaining())
+                channel.write(header);
+            while (data.hasRemaining())
+                channel.write(data);
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        synchronized (entries)
+        {
+            if (!temp.renameTo(target))
+            {
+                temp.delete();
+                throw new IOException("Couldn't move " + temp + " to " + target);
+            }
+
+            Long previous = entries.put(key, length);
+            if (previous != null)
+                residentBytes -= previous;
+            residentBytes += length;
+
+            evict();
+        }
+    }
+
+    private Entry read(long key) throws IOException
+    {
+        awaitIndex();
+
+        synchronized (entries)
+        {
+            if (entries.get(key) == null)
+                return null;
+        }
+
+        File file = getFile(key);
+        RandomAccessFile raf;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+        }
+        catch (FileNotFoundException e)
+        {
+            //Evicted concurrently
+            remove(key);
+            return null;
+        }
+
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            file.setLastModified(System.currentTimeMillis());
+            return parse(key, mapped);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private Entry parse(long key, ByteBuffer mapped) throws IOException
+    {
+        int limit = mapped.limit();
+
+        if (limit < HEADER_SIZE || mapped.getInt(0) != MAGIC || HEADER_SIZE + (mapped.getShort(ETAG_LENGTH_OFFSET) & 0xFFFF) > limit)
+        {
+            //Written by an older version or damaged
+            remove(key);
+            getFile(key).delete();
+            return null;
+        }
+
+        Entry entry = new Entry();
+        entry.fetchedAt = mapped.getLong(FETCHED_AT_OFFSET);
+        entry.lastModified = mapped.getLong(LAST_MODIFIED_OFFSET);
+
+        int eTagLength = mapped.getShort(ETAG_LENGTH_OFFSET) & 0xFFFF;
+        if (eTagLength > 0)
+        {
+            byte[] eTagBytes = new byte[eTagLength];
+            mapped.position(HEADER_SIZE);
+            mapped.get(eTagBytes);
+            entry.eTag = new String(eTagBytes, "UTF-8");
+        }
+
+        mapped.position(HEADER_SIZE + eTagLength);
+        entry.payload = mapped.slice();
+        return entry;
+    }
+
+    private void remove(long key)
+    {
+        synchronized (entries)
+        {
+            Long length = entries.remove(key);
+            if (length != null)
+                residentBytes -= length;
+        }
+    }
+
+    /**
+     * Deletes least recently used tiles until the budget is met. Has to be called while holding the entries lock.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<Long, Long>> iterator = entries.entrySet().iterator();
+
+        while (residentBytes > byteBudget && iterator.hasNext())
+        {
+            Map.Entry<Long, Long> eldest = iterator.next();
+            iterator.remove();
+            residentBytes -= eldest.getValue();
+            getFile(eldest.getKey()).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private File getFile(long key)
+    {
+        return new File(directory, Long.toHexString(key) + SUFFIX);
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    public long getRevalidationCount()
+    {
+        return revalidations.get();
+    }
+
+    public long getResidentBytes()
+    {
+        synchronized (entries)
+        {
+            return residentBytes;
+        }
+    }
+
+    public ITilePayloadSource getSource()
+    {
+        return source;
+    }
+
+    private static class Entry
+    {
+        ByteBuffer payload;
+        long fetchedAt;
+        long lastModified;
+        String eTag;
+    }
+}
@@ -132,6 +132,50 @@ public class EarClippingTriangulator
 
         findConvexReflex();
 
+        return clipEars();
+    }
+
+    /**
+     * Triangulates the ring made up of the points [from, to) of an interleaved x/y coordinate array.
+     * The closing point may or may not be repeated.
+     */
+    public Triangle[] triangulate(double[] xy, int from, int to)
+    {
+        if (to - from > 1 && xy[from * 2] == xy[to * 2 - 2] && xy[from * 2 + 1] == xy[to * 2 - 1])
+            to--;
+
+        if (to - from < 3)
+            return new Triangle[] {};
+
+        //Find out order of the ring
+        double area = 0;
+        for (int i = from, j = to - 1; i < to; j = i++)
+            area += (xy[j * 2] + xy[i * 2]) * (xy[j * 2 + 1] - xy[i * 2 + 1]);
+
+        if (area == 0)
+            return new Triangle[] {};
+
+        exteriorCoords = new LinkedList<Coordinate>();
+        if (area > 0)
+        {
+            //Clockwise => reverse
+            for (int i = to - 1; i >= from; i--)
+                exteriorCoords.add(new Coordinate(xy[i * 2], xy[i * 2 + 1]));
+        }
+        else
+        {
+            for (int i = from; i < to; i++)
+                exteriorCoords.add(new Coordinate(xy[i * 2], xy[i * 2 + 1]));
+        }
+        exteriorOrder = LineStringOrder.CounterClockwise;
+
+        findConvexReflex();
+
+        return clipEars();
+    }
+
+    private Triangle[] clipEars()
+    {
         ArrayList<Triangle> result = new ArrayList<Triangle>(exteriorCoords.size() - 2);
         ears = new ArrayList<Coordinate>(exteriorCoords.size());
 
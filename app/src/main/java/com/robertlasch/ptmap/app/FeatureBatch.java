@@ -0,0 +1,457 @@
+package com.robertlasch.ptmap.app;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Columnar storage for the features of one tile.
+ *
+ * Geometries are flattened into an interleaved x/y coordinate array plus three offset tables:
+ * every feature consists of parts (points, line strings or polygons), every part of rings
+ * and every ring of points. The end of entry i is the start of entry i + 1, so all offset
+ * tables hold one more entry than there are features/parts/rings.
+ *
+ * Properties are dictionary encoded: every key gets a column holding a value id per feature,
+ * or -1 if the feature doesn't have that key.
+ */
+public class FeatureBatch
+{
+    //WKB geometry type codes
+    public static final byte POINT = 1;
+    public static final byte LINE_STRING = 2;
+    public static final byte POLYGON = 3;
+    public static final byte MULTI_POINT = 4;
+    public static final byte MULTI_LINE_STRING = 5;
+    public static final byte MULTI_POLYGON = 6;
+
+    private int featureCount = 0;
+    private int partCount = 0;
+    private int ringCount = 0;
+    private int pointCount = 0;
+
+    private byte[] geometryTypes = new byte[64];
+    private int[] featureParts = new int[65];
+    private int[] partRings = new int[129];
+    private int[] ringPoints = new int[257];
+    private double[] coordinates = new double[2048];
+
+    private final HashMap<String, Integer> keyIds = new HashMap<String, Integer>();
+    private String[] keys = new String[16];
+    private int[][] columns = new int[16][];
+    private final HashMap<String, Integer> valueIds = new HashMap<String, Integer>();
+    private String[] values = new String[256];
+
+    /**
+     * Resets the batch while keeping all allocated arrays for reuse.
+     */
+    public void clear()
+    {
+        featureCount = partCount = ringCount = pointCount = 0;
+        featureParts[0] = partRings[0] = ringPoints[0] = 0;
+        keyIds.clear();
+        valueIds.clear();
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+    }
+
+    /**
+     * Replaces the contents of this batch with a copy of the other batch.
+     */
+    public void copyFrom(FeatureBatch other)
+    {
+        clear();
+
+        if (geometryTypes.length < other.geometryTypes.length)
+        {
+            geometryTypes = new byte[other.geometryTypes.length];
+            featureParts = new int[other.featureParts.length];
+        }
+        if (partRings.length < other.partCount + 1)
+            partRings = new int[other.partRings.length];
+        if (ringPoints.length < other.ringCount + 1)
+            ringPoints = new int[other.ringPoints.length];
+        if (coordinates.length < other.pointCount * 2)
+            coordinates = new double[other.coordinates.length];
+
+        featureCount = other.featureCount;
+        partCount = other.partCount;
+        ringCount = other.ringCount;
+        pointCount = other.pointCount;
+
+        System.arraycopy(other.geometryTypes, 0, geometryTypes, 0, featureCount);
+        System.arraycopy(other.featureParts, 0, featureParts, 0, featureCount + 1);
+        System.arraycopy(other.partRings, 0, partRings, 0, partCount + 1);
+        System.arraycopy(other.ringPoints, 0, ringPoints, 0, ringCount + 1);
+        System.arraycopy(other.coordinates, 0, coordinates, 0, pointCount * 2);
+
+        int keyCount = other.keyIds.size();
+        if (keys.length < keyCount)
+        {
+            keys = new String[other.keys.length];
+            columns = Arrays.copyOf(columns, other.keys.length);
+        }
+        for (int i = 0; i < keyCount; i++)
+        {
+            keys[i] = other.keys[i];
+            keyIds.put(keys[i], i);
+            if (columns[i] == null || columns[i].length < geometryTypes.length)
+                columns[i] = new int[geometryTypes.length];
+            System.arraycopy(other.columns[i], 0, columns[i], 0, featureCount);
+        }
+
+        int valueCount = other.valueIds.size();
+        if (values.length < valueCount)
+            values = new String[other.values.length];
+        for (int i = 0; i < valueCount; i++)
+        {
+            values[i] = other.values[i];
+            valueIds.put(values[i], i);
+        }
+    }
+
+    public void beginFeature(byte geometryType)
+    {
+        if (featureCount + 1 == geometryTypes.length)
+        {
+            geometryTypes = Arrays.copyOf(geometryTypes, geometryTypes.length * 2);
+            featureParts = Arrays.copyOf(featureParts, geometryTypes.length + 1);
+            for (int i = 0; i < keyIds.size(); i++)
+                columns[i] = growColumn(columns[i], geometryTypes.length);
+        }
+
+        geometryTypes[featureCount] = geometryType;
+        featureCount++;
+        featureParts[featureCount] = partCount;
+
+        for (int i = 0; i < keyIds.size(); i++)
+            columns[i][featureCount - 1] = -1;
+    }
+
+    public void beginPart()
+    {
+        if (partCount + 1 == partRings.length)
+            partRings = Arrays.copyOf(partRings, partRings.length * 2);
+
+        partCount++;
+        partRings[partCount] = ringCount;
+        featureParts[featureCount] = partCount;
+    }
+
+    public void beginRing()
+    {
+        if (ringCount + 1 == ringPoints.length)
+            ringPoints = Arrays.copyOf(ringPoints, ringPoints.length * 2);
+
+        ringCount++;
+        ringPoints[ringCount] = pointCount;
+        partRings[partCount] = ringCount;
+    }
+
+    public void addPoint(double x, double y)
+    {
+        if (pointCount * 2 + 2 > coordinates.length)
+            coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+
+        coordinates[pointCount * 2] = x;
+        coordinates[pointCount * 2 + 1] = y;
+        pointCount++;
+        ringPoints[ringCount] = pointCount;
+    }
+
+    /**
+     * Sets a property of the feature begun last.
+     */
+    public void setProperty(String key, String value)
+    {
+        int keyId = getOrAddKey(key);
+
+        Integer valueId = valueIds.get(value);
+        if (valueId == null)
+        {
+            valueId = valueIds.size();
+            if (valueId == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[valueId] = value;
+            valueIds.put(value, valueId);
+        }
+
+        columns[keyId][featureCount - 1] = valueId;
+    }
+
+    private int getOrAddKey(String key)
+    {
+        Integer keyId = keyIds.get(key);
+        if (keyId != null)
+            return keyId;
+
+        keyId = keyIds.size();
+        if (keyId == keys.length)
+        {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            columns = Arrays.copyOf(columns, columns.length * 2);
+        }
+
+        keys[keyId] = key;
+        keyIds.put(key, keyId);
+
+        if (columns[keyId] == null || columns[keyId].length < geometryTypes.length)
+            columns[keyId] = new int[geometryTypes.length];
+        Arrays.fill(columns[keyId], 0, featureCount, -1);
+
+        return keyId;
+    }
+
+    private static int[] growColumn(int[] column, int length)
+    {
+        return column.length >= length ? column : Arrays.copyOf(column, length);
+    }
+
+    /**
+     * Appends a JTS geometry and its properties as a new feature.
+     * @return false if the geometry type is not supported
+     */
+    public boolean addFeature(Geometry geometry, Map<String, String> properties)
+    {
+        String type = geometry.getGeometryType();
+        byte typeCode;
+
+        if (type.equals("Point")) typeCode = POINT;
+        else if (type.equals("LineString") || type.equals("LinearRing")) typeCode = LINE_STRING;
+        else if (type.equals("Polygon")) typeCode = POLYGON;
+        else if (type.equals("MultiPoint")) typeCode = MULTI_POINT;
+        else if (type.equals("MultiLineString")) typeCode = MULTI_LINE_STRING;
+        else if (type.equals("MultiPolygon")) typeCode = MULTI_POLYGON;
+        else return false;
+
+        beginFeature(typeCode);
+
+        for (int i = 0; i < geometry.getNumGeometries(); i++)
+        {
+            Geometry part = geometry.getGeometryN(i);
+            beginPart();
+
+            if (part instanceof Polygon)
+            {
+                Polygon polygon = (Polygon)part;
+                addRing(polygon.getExteriorRing());
+                for (int r = 0; r < polygon.getNumInteriorRing(); r++)
+                    addRing(polygon.getInteriorRingN(r));
+            }
+            else if (part instanceof LineString)
+            {
+                addRing((LineString)part);
+            }
+            else if (part instanceof Point && !part.isEmpty())
+            {
+                beginRing();
+                addPoint(((Point)part).getX(), ((Point)part).getY());
+            }
+        }
+
+        for (Map.Entry<String, String> property : properties.entrySet())
+            setProperty(property.getKey(), property.getValue());
+
+        return true;
+    }
+
+    /**
+     * Builds a JTS geometry for the feature, for callers that need topology operations.
+     */
+    public Geometry toGeometry(int feature, GeometryFactory factory)
+    {
+        byte type = geometryTypes[feature];
+        int partStart = featureParts[feature];
+        int partEnd = featureParts[feature + 1];
+
+        switch (type)
+        {
+            case POINT:
+                return partStart < partEnd ? toPoint(partStart, factory) : factory.createPoint((Coordinate)null);
+            case LINE_STRING:
+                return partStart < partEnd ? toLineString(partRings[partStart], factory) : factory.createLineString(new Coordinate[0]);
+            case POLYGON:
+                return partStart < partEnd ? toPolygon(partStart, factory) : factory.createPolygon(null, null);
+            case MULTI_POINT:
+                Point[] points = new Point[partEnd - partStart];
+                for (int i = 0; i < points.length; i++)
+                    points[i] = toPoint(partStart + i, factory);
+                return factory.createMultiPoint(points);
+            case MULTI_LINE_STRING:
+                LineString[] lines = new LineString[partEnd - partStart];
+                for (int i = 0; i < lines.length; i++)
+                    lines[i] = toLineString(partRings[partStart + i], factory);
+                return factory.createMultiLineString(lines);
+            case MULTI_POLYGON:
+                Polygon[] polygons = new Polygon[partEnd - partStart];
+                for (int i = 0; i < polygons.length; i++)
+                    polygons[i] = toPolygon(partStart + i, factory);
+                return factory.createMultiPolygon(polygons);
+            default:
+                throw new IllegalStateException("Unknown geometry type " + type);
+        }
+    }
+
+    private Point toPoint(int part, GeometryFactory factory)
+    {
+        int ring = partRings[part];
+        if (ring == partRings[part + 1] || ringPoints[ring] == ringPoints[ring + 1])
+            return factory.createPoint((Coordinate)null);
+
+        return factory.createPoint(toCoordinates(ring)[0]);
+    }
+
+    private LineString toLineString(int ring, GeometryFactory factory)
+    {
+        return factory.createLineString(toCoordinates(ring));
+    }
+
+    private Polygon toPolygon(int part, GeometryFactory factory)
+    {
+        int ringStart = partRings[part];
+        int ringEnd = partRings[part + 1];
+        if (ringStart == ringEnd)
+            return factory.createPolygon(null, null);
+
+        LinearRing[] holes = new LinearRing[ringEnd - ringStart - 1];
+        for (int i = 0; i < holes.length; i++)
+            holes[i] = factory.createLinearRing(toCoordinates(ringStart + 1 + i));
+
+        return factory.createPolygon(factory.createLinearRing(toCoordinates(ringStart)), holes);
+    }
+
+    private Coordinate[] toCoordinates(int ring)
+    {
+        int start = ringPoints[ring];
+        Coordinate[] result = new Coordinate[ringPoints[ring + 1] - start];
+        for (int i = 0; i < result.length; i++)
+            result[i] = new Coordinate(coordinates[(start + i) * 2], coordinates[(start + i) * 2 + 1]);
+        return result;
+    }
+
+    private void addRing(LineString ring)
+    {
+        beginRing();
+        for (Coordinate c : ring.getCoordinates())
+            addPoint(c.x, c.y);
+    }
+
+    public int getFeatureCount()
+    {
+        return featureCount;
+    }
+
+    public byte getGeometryType(int feature)
+    {
+        return geometryTypes[feature];
+    }
+
+    public int getPartStart(int feature)
+    {
+        return featureParts[feature];
+    }
+
+    public int getPartEnd(int feature)
+    {
+        return featureParts[feature + 1];
+    }
+
+    public int getRingStart(int part)
+    {
+        return partRings[part];
+    }
+
+    public int getRingEnd(int part)
+    {
+        return partRings[part + 1];
+    }
+
+    /**
+     * @return index of the first point of the ring, see {@link #getCoordinates()}
+     */
+    public int getPointStart(int ring)
+    {
+        return ringPoints[ring];
+    }
+
+    public int getPointEnd(int ring)
+    {
+        return ringPoints[ring + 1];
+    }
+
+    /**
+     * @return interleaved x/y coordinates, point i is stored at 2 * i
+     */
+    public double[] getCoordinates()
+    {
+        return coordinates;
+    }
+
+    public double getX(int point)
+    {
+        return coordinates[point * 2];
+    }
+
+    public double getY(int point)
+    {
+        return coordinates[point * 2 + 1];
+    }
+
+    /**
+     * @return id of the property column for the key or -1 if no feature has this key
+     */
+    public int getKeyId(String key)
+    {
+        Integer keyId = keyIds.get(key);
+        return keyId != null ? keyId : -1;
+    }
+
+    public String getKey(int keyId)
+    {
+        return keys[keyId];
+    }
+
+    public int getKeyCount()
+    {
+        return keyIds.size();
+    }
+
+    /**
+     * @return the value of the property or null if the feature doesn't have it
+     */
+    public String getProperty(int feature, int keyId)
+    {
+        if (keyId < 0)
+            return null;
+
+        int valueId = columns[keyId][feature];
+        return valueId >= 0 ? values[valueId] : null;
+    }
+
+    public String getProperty(int feature, int keyId, String defaultValue)
+    {
+        String value = getProperty(feature, keyId);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return the dictionary id of the property value or -1 if the feature doesn't have it
+     */
+    public int getValueId(int feature, int keyId)
+    {
+        return keyId >= 0 ? columns[keyId][feature] : -1;
+    }
+
+    public String getValue(int valueId)
+    {
+        return values[valueId];
+    }
+}
@@ -0,0 +1,327 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads tile payloads from URL templates containing {x}, {y} and {z}, one template per TileType.
+ *
+ * At most maxConnectionsPerHost requests run against the same host at a time; responses are always
+ * read to the end and closed, so HttpURLConnection can keep the sockets alive and reuse them.
+ * Failed requests (I/O errors, 5xx and 429) are retried with a jittered exponential backoff, during
+ * which the connection slot is free for other requests.
+ * The connection is registered with the current TileRequest, so cancelling it aborts the read.
+ * Cached tiles can be revalidated with their ETag and Last-Modified date through fetch().
+ */
+public class HttpTileSource implements ITilePayloadSource
+{
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    static final long BASE_RETRY_DELAY = 250;
+
+    private final String[] urlTemplates;
+    private final int maxConnectionsPerHost;
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final Random random = new Random();
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    public HttpTileSource(String[] urlTemplates)
+    {
+        this(urlTemplates, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public HttpTileSource(String[] urlTemplates, int maxConnectionsPerHost)
+    {
+        this.urlTemplates = urlTemplates;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public String getUrl(int x, int y, int zoomLevel, VectorTileRendered.TileType type)
+    {
+        String url = urlTemplates[type.id];
+        url = url.replace("{x}", ((Integer)x).toString());
+        url = url.replace("{y}", ((Integer)y).toString());
+        url = url.replace("{z}", ((Integer)zoomLevel).toString());
+        return url;
+    }
+
+    @Override
+    public ByteBuffer getPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+    {
+        Response response = fetch(x, y, zoomLevel, type, null, 0);
+        return response != null ? response.payload : null;
+    }
+
+    /**
+     * Downloads a tile, conditionally if validators of a cached copy are given.
+     * @param eTag ETag of the cached copy or null
+     * @param lastModified Last-Modified date of the cached copy or 0
+     * @return null if the tile doesn't exist
+     */
+    public Response fetch(int x, int y, int zoomLevel, VectorTileRendered.TileType type, String eTag, long lastModified) throws IOException
+    {
+        URL url = new URL(getUrl(x, y, zoomLevel, type));
+        Semaphore permits = getPermits(url.getHost());
+
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                permits.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+            }
+
+            try
+            {
+                return request(url, eTag, lastModified);
+            }
+            catch (StatusException e)
+            {
+                throw e;
+            }
+            catch (IOException e)
+            {
+                //Timeouts and network errors are worth another try, cancelled requests are not
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("Request to " + url + " cancelled");
+                if (attempt >= maxRetries)
+                    throw e;
+            }
+            finally
+            {
+                permits.release();
+            }
+
+            retries.incrementAndGet();
+            backoff(attempt);
+        }
+    }
+
+    private Response request(URL url, String eTag, long lastModified) throws IOException
+    {
+        requests.incrementAndGet();
+
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+
+        TileRequest tileRequest = TileRequest.current();
+        if (tileRequest == null)
+            return readResponse(url, connection, eTag, lastModified);
+
+        tileRequest.setConnection(connection);
+        try
+        {
+            return readResponse(url, connection, eTag, lastModified);
+        }
+        finally
+        {
+            tileRequest.setConnection(null);
+        }
+    }
+
+    private Response readResponse(URL url, HttpURLConnection connection, String eTag, long lastModified) throws IOException
+    {
+        if (eTag != null)
+            connection.setRequestProperty("If-None-Match", eTag);
+        if (lastModified > 0)
+            connection.setIfModifiedSince(lastModified);
+
+        int status = connection.getResponseCode();
+
+        if (status == HttpURLConnection.HTTP_OK)
+        {
+            byte[] data = getBytesFromInputStream(connection.getInputStream(), connection.getContentLength());
+            if (data == null)
+                throw new IOException("Incomplete response from " + url);
+
+            Response response = new Response();
+            response.payload = ByteBuffer.wrap(data);
+            response.eTag = connection.getHeaderField("ETag");
+            response.lastModified = connection.getLastModified();
+            return response;
+        }
+
+        //Drain the error body so the socket can go back to the keep-alive pool
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null)
+            getBytesFromInputStream(errorStream);
+
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+        {
+            notModified.incrementAndGet();
+
+            Response response = new Response();
+            response.notModified = true;
+            response.eTag = eTag;
+            response.lastModified = lastModified;
+            return response;
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_NO_CONTENT)
+            return null;
+
+        if (status >= 500 || status == 429)
+            throw new IOException("HTTP " + status + " from " + url);
+
+        throw new StatusException("HTTP " + status + " from " + url);
+    }
+
+    private void backoff(int attempt) throws InterruptedIOException
+    {
+        try
+        {
+            Thread.sleep(getRetryDelay(attempt));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during retry backoff");
+        }
+    }
+
+    /**
+     * Full jitter: a random delay up to the exponential bound, so clients that failed together don't retry together.
+     * @param attempt number of the failed attempt, starting at 0
+     * @return milliseconds to wait before the next attempt
+     */
+    long getRetryDelay(int attempt)
+    {
+        long bound = BASE_RETRY_DELAY << attempt;
+        synchronized (random)
+        {
+            return (long)(random.nextDouble() * bound);
+        }
+    }
+
+    private Semaphore getPermits(String host)
+    {
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null)
+        {
+            Semaphore created = new Semaphore(maxConnectionsPerHost, true);
+            permits = hostPermits.putIfAbsent(host, created);
+            if (permits == null)
+                permits = created;
+        }
+        return permits;
+    }
+
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    public long getRetryCount()
+    {
+        return retries.get();
+    }
+
+    public long getNotModifiedCount()
+    {
+        return notModified.get();
+    }
+
+    public static byte[] getBytesFromInputStream(InputStream is)
+    {
+        return getBytesFromInputStream(is, -1);
+    }
+
+    /**
+     * @param expectedLength length of the content if known (e.g. from Content-Length), -1 otherwise
+     */
+    public static byte[] getBytesFromInputStream(InputStream is, int expectedLength)
+    {
+        try
+        {
+            if (expectedLength >= 0)
+            {
+                byte[] result = new byte[expectedLength];
+                int read = 0;
+                for (int len; read < expectedLength && (len = is.read(result, read, expectedLength - read)) != -1;)
+                    read += len;
+                is.close();
+
+                return read == expectedLength ? result : null;
+            }
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+
+            for (int len; (len = is.read(buffer)) != -1;)
+                os.write(buffer, 0, len);
+
+            os.flush();
+            byte[] result = os.toByteArray();
+            os.close();
+            is.close();
+
+            return result;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Result of fetch(). If notModified is set the cached copy is still valid and payload is null.
+     */
+    public static class Response
+    {
+        public ByteBuffer payload;
+        public String eTag;
+        public long lastModified;
+        public boolean notModified;
+    }
+
+    /**
+     * Response status that won't change by retrying.
+     */
+    private static class StatusException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        StatusException(String message)
+        {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.robertlasch.ptmap.app;
+
+/**
+ * Tile provider loading tiles in the background.
+ * Synchronous IFeatureBatchProviders can be used through {@link AsyncBatchProviderAdapter}.
+ */
+public interface IAsyncFeatureBatchProvider
+{
+    /**
+     * Starts loading the given layers of a tile as a single job, in the order of the array.
+     * The callback is invoked on a loader thread for every layer unless the request gets cancelled.
+     */
+    public TileRequest requestFeatureBatches(int x, int y, int zoomLevel, VectorTileRendered.TileType[] types, TileRequest.Callback callback);
+}
@@ -0,0 +1,14 @@
+package com.robertlasch.ptmap.app;
+
+/**
+ * Tile provider delivering its features in columnar form.
+ * Existing ITileProviders can be used through {@link TileProviderBatchAdapter}.
+ */
+public interface IFeatureBatchProvider
+{
+    /**
+     * Fills the batch with the features of the tile. The batch is cleared first.
+     * @return false if the tile couldn't be loaded
+     */
+    public boolean getFeatureBatch(int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch);
+}
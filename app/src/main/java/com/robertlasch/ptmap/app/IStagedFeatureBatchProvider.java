@@ -0,0 +1,23 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feature batch provider whose loading can be split into an I/O bound fetch and a CPU bound decode,
+ * so the two can run on separate thread pools, see {@link TileLoadPipeline}.
+ */
+public interface IStagedFeatureBatchProvider extends IFeatureBatchProvider
+{
+    /**
+     * Fetches the raw payload of the tile, e.g. from the network or a cache.
+     * @return null if the tile doesn't exist
+     */
+    public ByteBuffer fetchPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException;
+
+    /**
+     * Decodes a payload returned by fetchPayload() into the batch. The batch is cleared first.
+     * @return false if the payload couldn't be decoded
+     */
+    public boolean decodePayload(ByteBuffer payload, int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch);
+}
@@ -0,0 +1,16 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw, still compressed tile payloads as they come over the wire.
+ * Caches are implemented as decorators of this interface so they can store payloads untouched.
+ */
+public interface ITilePayloadSource
+{
+    /**
+     * @return the payload between position and limit of the buffer or null if the tile doesn't exist
+     */
+    public ByteBuffer getPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException;
+}
@@ -0,0 +1,164 @@
+package com.robertlasch.ptmap.app;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.InStream;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks an inflated MVT payload in place. The payload is laid out as a feature count followed by
+ * (wkb length, wkb, json length, json) records, all lengths as big endian ints.
+ * Only absolute reads are used, so neither the payload nor the single features get copied.
+ */
+public class MVTPayloadDecoder
+{
+    private final ByteBuffer payload;
+    private final int end;
+    private final int featureCount;
+    private final ByteBufferInStream wkbStream = new ByteBufferInStream();
+
+    private int featureIndex = -1;
+    private int nextFeatureStart;
+    private int wkbOffset, wkbLength;
+    private int jsonOffset, jsonLength;
+
+    /**
+     * @param payload inflated payload, the feature count has to start at its current position
+     */
+    public MVTPayloadDecoder(ByteBuffer payload) throws IOException
+    {
+        this.payload = payload;
+        this.end = payload.limit();
+
+        int start = payload.position();
+        if (end - start < 4)
+            throw new IOException("MVT payload too short");
+
+        featureCount = payload.getInt(start);
+        nextFeatureStart = start + 4;
+    }
+
+    public int getFeatureCount()
+    {
+        return featureCount;
+    }
+
+    /**
+     * Advances to the next feature.
+     * @return false if all features have been read
+     */
+    public boolean next() throws IOException
+    {
+        if (featureIndex + 1 >= featureCount)
+            return false;
+
+        int position = nextFeatureStart;
+
+        wkbLength = readLength(position);
+        wkbOffset = position + 4;
+        position = wkbOffset + wkbLength;
+
+        jsonLength = readLength(position);
+        jsonOffset = position + 4;
+        nextFeatureStart = jsonOffset + jsonLength;
+
+        featureIndex++;
+        return true;
+    }
+
+    private int readLength(int position) throws IOException
+    {
+        if (position > end - 4)
+            throw new IOException("MVT feature " + (featureIndex + 1) + " is truncated");
+
+        //Written without position + length, which overflows for lengths close to Integer.MAX_VALUE
+        int length = payload.getInt(position);
+        if (length < 0 || length > end - position - 4)
+            throw new IOException("MVT feature " + (featureIndex + 1) + " has an invalid length of " + length);
+
+        return length;
+    }
+
+    /**
+     * Reads the geometry of the current feature straight out of the payload.
+     */
+    public Geometry readGeometry(WKBReader reader) throws IOException, ParseException
+    {
+        wkbStream.reset(wkbOffset, wkbOffset + wkbLength);
+        return reader.read(wkbStream);
+    }
+
+    /**
+     * Appends the geometry of the current feature to the batch without creating JTS objects.
+     * @return false if the geometry type is not supported
+     */
+    public boolean readGeometry(WKBArrayReader reader, FeatureBatch batch) throws IOException
+    {
+        return reader.read(payload, wkbOffset, wkbLength, batch);
+    }
+
+    public ByteBuffer getPayload()
+    {
+        return payload;
+    }
+
+    public int getFeatureIndex()
+    {
+        return featureIndex;
+    }
+
+    public int getWkbOffset()
+    {
+        return wkbOffset;
+    }
+
+    public int getWkbLength()
+    {
+        return wkbLength;
+    }
+
+    public int getJsonOffset()
+    {
+        return jsonOffset;
+    }
+
+    public int getJsonLength()
+    {
+        return jsonLength;
+    }
+
+    /**
+     * Feeds the WKBReader from a window of the payload without slicing or copying it.
+     */
+    private class ByteBufferInStream implements InStream
+    {
+        private int position;
+        private int limit;
+
+        void reset(int position, int limit)
+        {
+            this.position = position;
+            this.limit = limit;
+        }
+
+        @Override
+        public void read(byte[] buf) throws IOException
+        {
+            if (position + buf.length > limit)
+                throw new IOException("Unexpected end of WKB data");
+
+            if (payload.hasArray())
+                System.arraycopy(payload.array(), payload.arrayOffset() + position, buf, 0, buf.length);
+            else
+            {
+                for (int i = 0; i < buf.length; i++)
+                    buf[i] = payload.get(position + i);
+            }
+
+            position += buf.length;
+        }
+    }
+}
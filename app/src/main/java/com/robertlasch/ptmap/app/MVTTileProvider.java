@@ -3,23 +3,47 @@ package com.robertlasch.ptmap.app;
 import android.util.Log;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.WKBReader;
 
 import java.text.ParseException;
-import java.util.Arrays;
-import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.concurrent.CancellationException;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
-public class MVTTileProvider implements ITileProvider
+/**
+ * Decodes tiles in the old \x89MVT container (zlib compressed WKB + JSON) as well as standard
+ * Mapbox Vector Tiles v2, plain or gzip compressed. The format is detected from the payload.
+ */
+public class MVTTileProvider implements ITileProvider, IStagedFeatureBatchProvider
 {
-    private static String[] urlTemplates;
+    private final ITilePayloadSource source;
+    private final String[] layerNames = new String[VectorTileRendered.TileType.values().length];
 
     public MVTTileProvider(String[] urlTemplates)
     {
-        this.urlTemplates = urlTemplates;
+        this(new HttpTileSource(urlTemplates));
+    }
+
+    public MVTTileProvider(ITilePayloadSource source)
+    {
+        this.source = source;
+    }
+
+    public ITilePayloadSource getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Selects the layer of MVT v2 tiles used for the type. Without a name all layers are used,
+     * which suits sources serving one layer per URL.
+     */
+    public void setLayerName(VectorTileRendered.TileType type, String layerName)
+    {
+        layerNames[type.id] = layerName;
     }
 
     @Override
@@ -27,114 +51,233 @@ public class MVTTileProvider implements ITileProvider
     {
         try
         {
-            String url = urlTemplates[type.id];
-            url = url.replace("{x}", ((Integer)x).toString());
-            url = url.replace("{y}", ((Integer)y).toString());
-            url = url.replace("{z}", ((Integer)zoomLevel).toString());
-            URL host = new URL(url);
-            URLConnection connection = host.openConnection();
-
-            InputStream stream = connection.getInputStream();
-
-            byte[] data = getBytesFromInputStream(stream);
-
-            if (!(data[0] == -119 && ((char)data[1]) == 'M'  && ((char)data[2]) == 'V'  && ((char)data[3]) == 'T'))
+            ByteBuffer data = source.getPayload(x, y, zoomLevel, type);
+            if (data == null)
                 return null;
 
-            int zipLength = (data[4] << 24 | (data[5] & 0xFF) << 16 | (data[6] & 0xFF) << 8 | (data[7] & 0xFF));
+            if (!isLegacyContainer(data))
+                return toMap(decodeProtobuf(data, x, y, zoomLevel, type, new FeatureBatch()));
 
-            Inflater decompresser = new Inflater();
-            decompresser.setInput(data, 8, zipLength);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-            byte[] buffer = new byte[1024];
-            while (!decompresser.finished())
-            {
-                int count = decompresser.inflate(buffer);
-                outputStream.write(buffer, 0, count);
-            }
-            decompresser.end();
-            outputStream.close();
-            byte[] result = outputStream.toByteArray();
+            ByteBuffer payload = inflateLegacy(data);
+            if (payload == null)
+                return null;
 
-            int featureCount = (result[0] << 24 | (result[1] & 0xFF) << 16 | (result[2] & 0xFF) << 8 | (result[3] & 0xFF));
-            result = Arrays.copyOfRange(result, 4, result.length);
+            MVTPayloadDecoder decoder = new MVTPayloadDecoder(payload);
+            WKBReader geomReader = new WKBReader();
+            PropertyParser propertyParser = new PropertyParser(PropertyDictionary.SHARED);
 
             HashMap<Geometry, HashMap<String, String>> out = new HashMap<Geometry, HashMap<String, String>>();
 
-            int featureStart = 0;
-
-            for(int i = 0; i < featureCount; i++)
+            while (decoder.next())
             {
-                int wkbLength = (result[featureStart] << 24 | (result[featureStart + 1] & 0xFF) << 16 | (result[featureStart + 2] & 0xFF) << 8 | (result[featureStart + 3] & 0xFF));
-                byte[] wkbData = Arrays.copyOfRange(result, featureStart + 4, featureStart + 4 + wkbLength);
-                WKBReader geomReader = new WKBReader();
-                Geometry wkb = geomReader.read(wkbData);
+                checkCancelled();
+
+                Geometry wkb = decoder.readGeometry(geomReader);
 
-                int jsonLength = (result[featureStart + 4 + wkbLength] << 24 | (result[featureStart + 5 + wkbLength] & 0xFF) << 16 | (result[featureStart + 6 + wkbLength] & 0xFF) << 8 | (result[featureStart + 7 + wkbLength] & 0xFF));
-                String jsonString = new String(result, featureStart + 8 + wkbLength, jsonLength);
                 HashMap<String, String> jsonDict = new HashMap<String, String>();
-                jsonString = jsonString.replace("{", "").replace("}", "");
-                //Replace special characters
-                jsonString = jsonString.replace("\\u00df", "ß");
-                jsonString = jsonString.replace("\\u00e4", "ä");
-                jsonString = jsonString.replace("\\u00f6", "ö");
-                jsonString = jsonString.replace("\\u00fC", "ü");
-                jsonString = jsonString.replace("\\u00c4", "Ä");
-                jsonString = jsonString.replace("\\u00d6", "Ö");
-                jsonString = jsonString.replace("\\u00dc", "Ü");
-                if (!jsonString.trim().equals(""))
+                try
                 {
-                    String[] dict = jsonString.split(",\\s?\"");
-
-                    try
-                    {
-                        for (String s : dict)
-                        {
-                            String[] keyVal = s.replace("\"", "").split(":");
-                            jsonDict.put(keyVal[0].trim(), keyVal[1].trim());
-                        }
-                    } catch (Exception e)
-                    {
-                        Log.e("Unparsable JSON", jsonString);
-                    }
+                    propertyParser.parse(payload, decoder.getJsonOffset(), decoder.getJsonLength(), jsonDict);
+                }
+                catch (ParseException e)
+                {
+                    logUnparsableProperties(decoder, e);
                 }
 
                 out.put(wkb, jsonDict);
-
-                featureStart += 8 + wkbLength + jsonLength;
             }
 
             return out;
         }
+        catch (CancellationException e)
+        {
+            //Nobody is waiting for the tile anymore
+        }
         catch (Exception e)
         {
-            System.out.println(e.getLocalizedMessage());
-            e.printStackTrace();
+            //Socket timeouts are InterruptedIOExceptions as well, only an interrupted thread was cancelled
+            if (!Thread.currentThread().isInterrupted())
+            {
+                System.out.println(e.getLocalizedMessage());
+                e.printStackTrace();
+            }
         }
 
         return null;
     }
 
-    public static byte[] getBytesFromInputStream(InputStream is)
+    @Override
+    public boolean getFeatureBatch(int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch)
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        batch.clear();
 
+        ByteBuffer data;
         try
         {
-            byte[] buffer = new byte[1024];
+            data = source.getPayload(x, y, zoomLevel, type);
+        }
+        catch (IOException e)
+        {
+            //Socket timeouts are InterruptedIOExceptions as well, only an interrupted thread was cancelled
+            if (!Thread.currentThread().isInterrupted())
+            {
+                System.out.println(e.getLocalizedMessage());
+                e.printStackTrace();
+            }
+            return false;
+        }
+
+        return data != null && decodePayload(data, x, y, zoomLevel, type, batch);
+    }
+
+    @Override
+    public ByteBuffer fetchPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+    {
+        return source.getPayload(x, y, zoomLevel, type);
+    }
+
+    @Override
+    public boolean decodePayload(ByteBuffer data, int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch)
+    {
+        batch.clear();
+
+        try
+        {
+            if (!isLegacyContainer(data))
+            {
+                decodeProtobuf(data, x, y, zoomLevel, type, batch);
+                return true;
+            }
+
+            ByteBuffer payload = inflateLegacy(data);
+            if (payload == null)
+                return false;
+
+            MVTPayloadDecoder decoder = new MVTPayloadDecoder(payload);
+            WKBArrayReader geomReader = new WKBArrayReader();
+            PropertyParser propertyParser = new PropertyParser(PropertyDictionary.SHARED);
+
+            while (decoder.next())
+            {
+                checkCancelled();
 
-            for (int len; (len = is.read(buffer)) != -1;)
-                os.write(buffer, 0, len);
+                if (!decoder.readGeometry(geomReader, batch))
+                    continue;
 
-            os.flush();
-            byte[] result = os.toByteArray();
-            os.close();
+                try
+                {
+                    propertyParser.parse(payload, decoder.getJsonOffset(), decoder.getJsonLength(), batch);
+                }
+                catch (ParseException e)
+                {
+                    logUnparsableProperties(decoder, e);
+                }
+            }
 
-            return result;
+            return true;
         }
-        catch (IOException e)
+        catch (CancellationException e)
         {
+            //Nobody is waiting for the tile anymore
+        }
+        catch (Exception e)
+        {
+            System.out.println(e.getLocalizedMessage());
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    private static boolean isLegacyContainer(ByteBuffer data)
+    {
+        int start = data.position();
+        return data.remaining() >= 8 && data.get(start) == -119 && ((char)data.get(start + 1)) == 'M'  && ((char)data.get(start + 2)) == 'V'  && ((char)data.get(start + 3)) == 'T';
+    }
+
+    /**
+     * Inflates a tile in the old container format.
+     * @return the inflated payload or null if the container is damaged
+     */
+    private static ByteBuffer inflateLegacy(ByteBuffer data) throws DataFormatException
+    {
+        int start = data.position();
+        int zipLength = data.getInt(start + 4);
+        if (zipLength < 0 || 8 + zipLength > data.remaining())
             return null;
+
+        return TileInflater.get().inflate(data, start + 8, zipLength);
+    }
+
+    /**
+     * Decodes an MVT v2 tile into the batch, mapping the tile extent onto the Mercator bounds of the tile.
+     */
+    private FeatureBatch decodeProtobuf(ByteBuffer data, int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch) throws IOException, DataFormatException
+    {
+        ByteBuffer tile = TileInflater.isGzip(data) ? TileInflater.get().inflateGzip(data) : data;
+        ProtobufMVTDecoder decoder = new ProtobufMVTDecoder(tile);
+
+        double size = SphericalMercator.tileSize(zoomLevel);
+        double originX = SphericalMercator.tileToX(x, zoomLevel);
+        double originY = SphericalMercator.tileToY(y, zoomLevel);
+
+        String layerName = layerNames[type.id];
+        if (layerName != null)
+        {
+            int layer = decoder.findLayer(layerName);
+            if (layer >= 0)
+                decoder.decodeLayer(layer, batch, originX, originY, size, -size);
+        }
+        else
+        {
+            for (int layer = 0; layer < decoder.getLayerCount(); layer++)
+            {
+                checkCancelled();
+                decoder.decodeLayer(layer, batch, originX, originY, size, -size);
+            }
+        }
+
+        return batch;
+    }
+
+    private static HashMap<Geometry, HashMap<String, String>> toMap(FeatureBatch batch)
+    {
+        GeometryFactory factory = new GeometryFactory();
+        HashMap<Geometry, HashMap<String, String>> out = new HashMap<Geometry, HashMap<String, String>>();
+
+        for (int feature = 0; feature < batch.getFeatureCount(); feature++)
+        {
+            HashMap<String, String> properties = new HashMap<String, String>();
+            for (int key = 0; key < batch.getKeyCount(); key++)
+            {
+                String value = batch.getProperty(feature, key);
+                if (value != null)
+                    properties.put(batch.getKey(key), value);
+            }
+
+            out.put(batch.toGeometry(feature, factory), properties);
+        }
+
+        return out;
+    }
+
+    private static void checkCancelled()
+    {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("Decoding interrupted");
+    }
+
+    private static void logUnparsableProperties(MVTPayloadDecoder decoder, ParseException e)
+    {
+        ByteBuffer payload = decoder.getPayload();
+        byte[] json = new byte[decoder.getJsonLength()];
+        for (int i = 0; i < json.length; i++)
+            json[i] = payload.get(decoder.getJsonOffset() + i);
+
+        try
+        {
+            Log.e("Unparsable JSON", e.getMessage() + " at " + e.getErrorOffset() + ": " + new String(json, "UTF-8"));
         }
+        catch (UnsupportedEncodingException ignored) { }
     }
 }
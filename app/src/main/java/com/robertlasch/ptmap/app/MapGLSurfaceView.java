@@ -20,6 +20,7 @@ import com.google.android.gms.common.api.Result;
 import com.google.android.gms.common.api.a;
 import com.google.android.gms.location.LocationClient;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
 
@@ -32,6 +33,8 @@ public class MapGLSurfaceView extends GLSurfaceView implements
         GooglePlayServicesClient.OnConnectionFailedListener
 {
     private static final int INVALID_POINTER_ID = -1;
+    private static final long DISK_CACHE_SIZE = 64 * 1024 * 1024;
+    private static final long MEMORY_CACHE_SIZE = 8 * 1024 * 1024;
 
     private ScaleGestureDetector scaleDetector;
     private VectorTileRenderer renderer;
@@ -41,18 +44,22 @@ public class MapGLSurfaceView extends GLSurfaceView implements
     private float scale = 1500f;
 
     private LocationClient locationClient;
+    private MemoryTileCache memoryCache;
 
     public MapGLSurfaceView(Context context, Activity activity)
     {
         super(context);
         setEGLContextClientVersion(2);
-        renderer = new VectorTileRenderer(new MVTTileProvider(new String[]{
+        HttpTileSource httpSource = new HttpTileSource(new String[]{
                 "http://tile.openstreetmap.us/vectiles-highroad/{z}/{x}/{y}.mvt",
                 "http://tile.openstreetmap.us/vectiles-skeletron/{z}/{x}/{y}.mvt",
                 "http://tile.openstreetmap.us/vectiles-buildings/{z}/{x}/{y}.mvt",
                 "http://tile.openstreetmap.us/vectiles-pois/{z}/{x}/{y}.mvt",
                 "http://tile.openstreetmap.us/vectiles-land-usages/{z}/{x}/{y}.mvt",
-                "http://tile.openstreetmap.us/vectiles-water-areas/{z}/{x}/{y}.mvt"}), context, this);
+                "http://tile.openstreetmap.us/vectiles-water-areas/{z}/{x}/{y}.mvt"});
+        DiskTileCache diskCache = new DiskTileCache(new File(context.getCacheDir(), "tiles"), DISK_CACHE_SIZE, httpSource);
+        memoryCache = new MemoryTileCache(MEMORY_CACHE_SIZE, diskCache);
+        renderer = new VectorTileRenderer(new MVTTileProvider(memoryCache), context, this);
         setRenderer(renderer);
 
         scaleDetector = new ScaleGestureDetector(context, this);
@@ -70,6 +77,23 @@ public class MapGLSurfaceView extends GLSurfaceView implements
         locationClient.connect();
     }
 
+    /**
+     * Releases cached tile payloads when the system runs low on memory.
+     */
+    public void trimMemory()
+    {
+        Log.i("MemoryTileCache", "Trimming " + memoryCache.getResidentBytes() + " bytes, hit ratio " + memoryCache.getHitRatio());
+        memoryCache.clear();
+    }
+
+    /**
+     * Stops loading tiles, the view can't be used afterwards.
+     */
+    public void shutdown()
+    {
+        renderer.shutdown();
+    }
+
     @Override
     public void onDisconnected()
     {
@@ -0,0 +1,168 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of compressed tile payloads in front of another ITilePayloadSource.
+ *
+ * The cache is bounded by the total number of payload bytes. Tiles are spread over independently
+ * locked segments by their key, so loader threads working on different tiles rarely contend.
+ * Every segment evicts its least recently used payloads once it exceeds its share of the budget.
+ */
+public class MemoryTileCache implements ITilePayloadSource
+{
+    private static final int SEGMENT_COUNT = 8;
+
+    private final ITilePayloadSource source;
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MemoryTileCache(long byteBudget, ITilePayloadSource source)
+    {
+        this.source = source;
+
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            segments[i] = new Segment(byteBudget / SEGMENT_COUNT);
+    }
+
+    @Override
+    public ByteBuffer getPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+    {
+        long key = TileKey.pack(zoomLevel, x, y, type);
+        Segment segment = segmentFor(key);
+
+        byte[] cached = segment.get(key);
+        if (cached != null)
+        {
+            hits.incrementAndGet();
+            return ByteBuffer.wrap(cached);
+        }
+
+        misses.incrementAndGet();
+
+        ByteBuffer payload = source.getPayload(x, y, zoomLevel, type);
+        if (payload == null)
+            return null;
+
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        segment.put(key, data);
+
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Shrinks the cache to at most the given number of bytes, e.g. under memory pressure.
+     * The budget itself is not changed, so the cache grows again afterwards.
+     */
+    public void trim(long targetBytes)
+    {
+        for (Segment segment : segments)
+            segment.trim(targetBytes / SEGMENT_COUNT);
+    }
+
+    public void clear()
+    {
+        trim(0);
+    }
+
+    private Segment segmentFor(long key)
+    {
+        int hash = (int)(key ^ (key >>> 32));
+        hash ^= (hash >>> 16);
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public double getHitRatio()
+    {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double)hitCount / total;
+    }
+
+    public long getResidentBytes()
+    {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.getResidentBytes();
+        return bytes;
+    }
+
+    public int getEntryCount()
+    {
+        int count = 0;
+        for (Segment segment : segments)
+            count += segment.getEntryCount();
+        return count;
+    }
+
+    private static class Segment
+    {
+        private final long byteBudget;
+        //Access ordered: the eldest entry is the least recently used one
+        private final LinkedHashMap<Long, byte[]> entries = new LinkedHashMap<Long, byte[]>(32, 0.75f, true);
+        private long residentBytes = 0;
+
+        Segment(long byteBudget)
+        {
+            this.byteBudget = byteBudget;
+        }
+
+        synchronized byte[] get(long key)
+        {
+            return entries.get(key);
+        }
+
+        synchronized void put(long key, byte[] data)
+        {
+            //Never let a single tile flush the whole segment
+            if (data.length > byteBudget)
+                return;
+
+            byte[] previous = entries.put(key, data);
+            if (previous != null)
+                residentBytes -= previous.length;
+            residentBytes += data.length;
+
+            trim(byteBudget);
+        }
+
+        synchronized void trim(long targetBytes)
+        {
+            Iterator<Map.Entry<Long, byte[]>> iterator = entries.entrySet().iterator();
+
+            while (residentBytes > targetBytes && iterator.hasNext())
+            {
+                residentBytes -= iterator.next().getValue().length;
+                iterator.remove();
+            }
+        }
+
+        synchronized long getResidentBytes()
+        {
+            return residentBytes;
+        }
+
+        synchronized int getEntryCount()
+        {
+            return entries.size();
+        }
+    }
+}
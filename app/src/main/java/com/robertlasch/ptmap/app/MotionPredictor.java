@@ -0,0 +1,99 @@
+package com.robertlasch.ptmap.app;
+
+/**
+ * Estimates pan velocity and pinch-zoom rate of the camera from the positions of the last frames and
+ * extrapolates where the camera will be shortly.
+ *
+ * Velocities are smoothed exponentially so single jittery touch events don't throw the prediction off.
+ * Zoom is tracked in zoom levels (log2 of the scale), which changes linearly during a pinch.
+ */
+public class MotionPredictor
+{
+    //Weight of the newest sample in the smoothed velocities
+    private static final double SMOOTHING = 0.3;
+    //Longer pauses between samples start a new gesture
+    private static final long MAX_SAMPLE_GAP = 100;
+    //Below these rates (per millisecond) the camera counts as resting
+    private static final double MIN_SPEED = 1e-6;
+    private static final double MIN_ZOOM_RATE = 1e-5;
+
+    private boolean hasSample = false;
+    private long lastTime;
+    private double lastX, lastY, lastZoom;
+    //Velocities per millisecond: x and y relative to the visible height, zoom in zoom levels
+    private double velocityX, velocityY, zoomRate;
+    private double viewHeight = 1;
+
+    /**
+     * @param viewHeight height of the view in the units of x and y, so speeds compare across zoom levels
+     */
+    public void addSample(long timeMillis, double x, double y, double scale, double viewHeight)
+    {
+        double zoom = Math.log(scale) / Math.log(2);
+
+        if (hasSample && timeMillis - lastTime <= MAX_SAMPLE_GAP)
+        {
+            long dt = timeMillis - lastTime;
+            if (dt <= 0)
+                return;
+
+            velocityX += SMOOTHING * ((x - lastX) / this.viewHeight / dt - velocityX);
+            velocityY += SMOOTHING * ((y - lastY) / this.viewHeight / dt - velocityY);
+            zoomRate += SMOOTHING * ((zoom - lastZoom) / dt - zoomRate);
+        }
+        else
+        {
+            reset();
+        }
+
+        hasSample = true;
+        lastTime = timeMillis;
+        lastX = x;
+        lastY = y;
+        lastZoom = zoom;
+        this.viewHeight = viewHeight;
+    }
+
+    public void reset()
+    {
+        velocityX = 0;
+        velocityY = 0;
+        zoomRate = 0;
+    }
+
+    public boolean isMoving()
+    {
+        return Math.abs(velocityX) + Math.abs(velocityY) > MIN_SPEED || Math.abs(zoomRate) > MIN_ZOOM_RATE;
+    }
+
+    public double predictX(long aheadMillis)
+    {
+        return lastX + velocityX * viewHeight * aheadMillis;
+    }
+
+    public double predictY(long aheadMillis)
+    {
+        return lastY + velocityY * viewHeight * aheadMillis;
+    }
+
+    public double predictScale(long aheadMillis)
+    {
+        return Math.pow(2, lastZoom + zoomRate * aheadMillis);
+    }
+
+    /**
+     * @return pan speed in view heights per second
+     */
+    public double getSpeed()
+    {
+        return Math.sqrt(velocityX * velocityX + velocityY * velocityY) * 1000;
+    }
+
+    /**
+     * @return zoom levels per second, negative while zooming out
+     */
+    public double getZoomRate()
+    {
+        return zoomRate * 1000;
+    }
+}
@@ -22,7 +22,7 @@ import java.sql.DriverManager;
 
 public class OpenGLES20Activity extends Activity
 {
-    private GLSurfaceView glView;
+    private MapGLSurfaceView glView;
     private final static int CONNECTION_FAILURE_RESOLUTION_REQUEST = 9000;
 
     @Override
@@ -35,4 +35,19 @@ public class OpenGLES20Activity extends Activity
         glView = new MapGLSurfaceView(this, this);
         setContentView(glView);
     }
+
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+        glView.trimMemory();
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        //The loader threads would outlive the activity
+        glView.shutdown();
+        super.onDestroy();
+    }
 }
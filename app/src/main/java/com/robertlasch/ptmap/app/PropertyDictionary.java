@@ -0,0 +1,118 @@
+package com.robertlasch.ptmap.app;
+
+/**
+ * Shared string dictionary for feature property keys and a fixed set of enum-like values.
+ * Lookups work on a char range, so a hit returns the canonical String without allocating.
+ * Keys are added when first seen, values only come from the set given at construction, so
+ * names and numbers of the first tiles loaded can't fill the dictionary for the whole session.
+ * Reads are lock free, inserts are synchronized and stop once the dictionary is full.
+ */
+public class PropertyDictionary
+{
+    public static final PropertyDictionary SHARED = new PropertyDictionary(4096,
+            "yes", "no", "null", "true", "false",
+            "highway", "major_road", "minor_road", "path", "rail",
+            "motorway", "trunk", "primary", "secondary", "tertiary", "residential", "unclassified",
+            "track", "service", "pedestrian");
+
+    private final String[] table;
+    private final int mask;
+    private final int maxEntries;
+    private int size = 0;
+
+    /**
+     * @param maxEntries maximum number of interned strings
+     * @param values the only values that are interned
+     */
+    public PropertyDictionary(int maxEntries, String... values)
+    {
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 8) * 2 - 1) << 1;
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+        this.maxEntries = maxEntries;
+
+        for (String s : new String[] { "kind", "highway", "sort_key", "is_bridge", "is_tunnel", "name" })
+            intern(s);
+        for (String s : values)
+            intern(s);
+    }
+
+    public String intern(String s)
+    {
+        char[] chars = s.toCharArray();
+        return intern(chars, chars.length, true);
+    }
+
+    /**
+     * Returns the canonical string for the given characters. Keys are added if there is room,
+     * values not in the dictionary are returned as a new string.
+     */
+    public String intern(char[] chars, int length, boolean isKey)
+    {
+        int hash = hash(chars, length);
+        String existing = find(chars, length, hash);
+        if (existing != null)
+            return existing;
+
+        if (!isKey)
+            return new String(chars, 0, length);
+
+        return insert(chars, length, hash);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private String find(char[] chars, int length, int hash)
+    {
+        for (int i = hash & mask; ; i = (i + 1) & mask)
+        {
+            String s = table[i];
+            if (s == null)
+                return null;
+            if (equals(s, chars, length))
+                return s;
+        }
+    }
+
+    private synchronized String insert(char[] chars, int length, int hash)
+    {
+        int i = hash & mask;
+        for (String s = table[i]; s != null; s = table[i])
+        {
+            if (equals(s, chars, length))
+                return s;
+            i = (i + 1) & mask;
+        }
+
+        String s = new String(chars, 0, length);
+        if (size < maxEntries)
+        {
+            table[i] = s;
+            size++;
+        }
+        return s;
+    }
+
+    private static int hash(char[] chars, int length)
+    {
+        int h = 0;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + chars[i];
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(String s, char[] chars, int length)
+    {
+        if (s.length() != length)
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (s.charAt(i) != chars[i])
+                return false;
+
+        return true;
+    }
+}
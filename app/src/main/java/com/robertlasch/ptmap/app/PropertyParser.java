@@ -0,0 +1,236 @@
+package com.robertlasch.ptmap.app;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Map;
+
+/**
+ * Single pass parser for the flat JSON property objects of MVT features.
+ * Reads UTF-8 straight from the payload, decodes all JSON escapes and interns keys and known values
+ * through a PropertyDictionary, so the only strings created are the ones that end up in the map.
+ * Literals (numbers, true, false, null) are kept as their text like before.
+ * Not thread safe, use one parser per decoding thread.
+ */
+public class PropertyParser
+{
+    private final PropertyDictionary dictionary;
+    private char[] chars = new char[64];
+    private int charCount;
+
+    private ByteBuffer buffer;
+    private int position;
+    private int end;
+    private int start;
+
+    public PropertyParser(PropertyDictionary dictionary)
+    {
+        this.dictionary = dictionary;
+    }
+
+    public void parse(ByteBuffer buffer, int offset, int length, Map<String, String> out) throws ParseException
+    {
+        parse(buffer, offset, length, out, null);
+    }
+
+    /**
+     * Adds the properties to the feature begun last in the batch.
+     */
+    public void parse(ByteBuffer buffer, int offset, int length, FeatureBatch out) throws ParseException
+    {
+        parse(buffer, offset, length, null, out);
+    }
+
+    private void parse(ByteBuffer buffer, int offset, int length, Map<String, String> map, FeatureBatch batch) throws ParseException
+    {
+        this.buffer = buffer;
+        this.position = offset;
+        this.start = offset;
+        this.end = offset + length;
+
+        skipWhitespace();
+        if (position == end)
+            return;
+
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}')
+        {
+            position++;
+            return;
+        }
+
+        while (true)
+        {
+            skipWhitespace();
+            expect('"');
+            readString();
+            String key = dictionary.intern(chars, charCount, true);
+
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if (peek() == '"')
+            {
+                position++;
+                readString();
+            }
+            else
+            {
+                readLiteral();
+            }
+            String value = dictionary.intern(chars, charCount, false);
+            if (map != null)
+                map.put(key, value);
+            else
+                batch.setProperty(key, value);
+
+            skipWhitespace();
+            int c = next();
+            if (c == '}')
+                break;
+            if (c != ',')
+                throw error("Expected ',' or '}'");
+        }
+    }
+
+    /**
+     * Decodes a string body into the char buffer, the opening quote has already been consumed.
+     */
+    private void readString() throws ParseException
+    {
+        charCount = 0;
+
+        while (true)
+        {
+            int b = next();
+
+            if (b == '"')
+                return;
+
+            if (b == '\\')
+            {
+                int e = next();
+                switch (e)
+                {
+                    case '"': append('"'); break;
+                    case '\\': append('\\'); break;
+                    case '/': append('/'); break;
+                    case 'b': append('\b'); break;
+                    case 'f': append('\f'); break;
+                    case 'n': append('\n'); break;
+                    case 'r': append('\r'); break;
+                    case 't': append('\t'); break;
+                    case 'u': append((char)(hex(next()) << 12 | hex(next()) << 8 | hex(next()) << 4 | hex(next()))); break;
+                    default: throw error("Invalid escape sequence");
+                }
+            }
+            else if (b < 0x80)
+            {
+                append((char)b);
+            }
+            else if ((b & 0xE0) == 0xC0)
+            {
+                append((char)((b & 0x1F) << 6 | continuation()));
+            }
+            else if ((b & 0xF0) == 0xE0)
+            {
+                append((char)((b & 0x0F) << 12 | continuation() << 6 | continuation()));
+            }
+            else if ((b & 0xF8) == 0xF0)
+            {
+                int codePoint = (b & 0x07) << 18 | continuation() << 12 | continuation() << 6 | continuation();
+                codePoint -= 0x10000;
+                append((char)(0xD800 + (codePoint >> 10)));
+                append((char)(0xDC00 + (codePoint & 0x3FF)));
+            }
+            else
+            {
+                throw error("Invalid UTF-8 sequence");
+            }
+        }
+    }
+
+    private void readLiteral() throws ParseException
+    {
+        charCount = 0;
+
+        while (position < end)
+        {
+            int b = peek();
+            if (b == ',' || b == '}' || b == ' ' || b == '\t' || b == '\r' || b == '\n')
+                break;
+            if (b == '{' || b == '[' || b == '"')
+                throw error("Nested values are not supported");
+
+            append((char)b);
+            position++;
+        }
+
+        if (charCount == 0)
+            throw error("Missing value");
+    }
+
+    private int continuation() throws ParseException
+    {
+        int b = next();
+        if ((b & 0xC0) != 0x80)
+            throw error("Invalid UTF-8 sequence");
+        return b & 0x3F;
+    }
+
+    private int hex(int c) throws ParseException
+    {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        throw error("Invalid unicode escape");
+    }
+
+    private void append(char c)
+    {
+        if (charCount == chars.length)
+        {
+            char[] grown = new char[chars.length * 2];
+            System.arraycopy(chars, 0, grown, 0, charCount);
+            chars = grown;
+        }
+        chars[charCount++] = c;
+    }
+
+    private void skipWhitespace()
+    {
+        while (position < end)
+        {
+            int b = buffer.get(position);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n')
+                return;
+            position++;
+        }
+    }
+
+    private void expect(char c) throws ParseException
+    {
+        if (next() != c)
+            throw error("Expected '" + c + "'");
+    }
+
+    private int peek() throws ParseException
+    {
+        if (position >= end)
+            throw error("Unexpected end of properties");
+        return buffer.get(position) & 0xFF;
+    }
+
+    private int next() throws ParseException
+    {
+        int b = peek();
+        position++;
+        return b;
+    }
+
+    private ParseException error(String message)
+    {
+        return new ParseException(message, position - start);
+    }
+}
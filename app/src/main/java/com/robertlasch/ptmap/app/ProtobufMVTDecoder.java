@@ -0,0 +1,562 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decoder for Mapbox Vector Tiles v2 (protobuf) working on the raw wire format.
+ *
+ * The constructor only indexes the layers of the tile; features are decoded per layer by
+ * decodeLayer(), so layers nobody asks for are never touched. Geometry commands are decoded from
+ * tile local integer coordinates straight into the FeatureBatch, properties are resolved through
+ * the key and value tables of the layer, which are decoded once per layer.
+ */
+public class ProtobufMVTDecoder
+{
+    public static final int DEFAULT_EXTENT = 4096;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private static final int GEOMETRY_POINT = 1;
+    private static final int GEOMETRY_LINE_STRING = 2;
+    private static final int GEOMETRY_POLYGON = 3;
+
+    private static final int COMMAND_MOVE_TO = 1;
+    private static final int COMMAND_LINE_TO = 2;
+    private static final int COMMAND_CLOSE_PATH = 7;
+
+    private final ByteBuffer tile;
+    private int position;
+
+    private int layerCount = 0;
+    private int[] layerStarts = new int[8];
+    private int[] layerEnds = new int[8];
+    private String[] layerNames = new String[8];
+
+    private String[] keys = new String[32];
+    private String[] values = new String[128];
+    private byte[] stringBuffer = new byte[64];
+
+    //Geometry of the current feature in absolute tile coordinates, split into paths
+    private int[] points = new int[256];
+    private int pointCount;
+    private int[] pathStarts = new int[16];
+    private int pathCount;
+
+    /**
+     * @param tile uncompressed tile between position and limit
+     */
+    public ProtobufMVTDecoder(ByteBuffer tile) throws IOException
+    {
+        this.tile = tile;
+        this.position = tile.position();
+        int end = tile.limit();
+
+        while (position < end)
+        {
+            int tag = readVarint32(end);
+
+            if (tag >>> 3 == 3 && (tag & 7) == WIRE_LENGTH_DELIMITED)
+            {
+                int layerEnd = readLength(end) + position;
+                addLayer(position, layerEnd);
+                position = layerEnd;
+            }
+            else
+            {
+                skip(tag & 7, end);
+            }
+        }
+    }
+
+    private void addLayer(int start, int end) throws IOException
+    {
+        if (layerCount == layerStarts.length)
+        {
+            layerStarts = Arrays.copyOf(layerStarts, layerCount * 2);
+            layerEnds = Arrays.copyOf(layerEnds, layerCount * 2);
+            layerNames = Arrays.copyOf(layerNames, layerCount * 2);
+        }
+
+        String name = "";
+        position = start;
+        while (position < end)
+        {
+            int tag = readVarint32(end);
+
+            if (tag >>> 3 == 1 && (tag & 7) == WIRE_LENGTH_DELIMITED)
+                name = readString(end);
+            else
+                skip(tag & 7, end);
+        }
+
+        layerStarts[layerCount] = start;
+        layerEnds[layerCount] = end;
+        layerNames[layerCount] = name;
+        layerCount++;
+    }
+
+    public int getLayerCount()
+    {
+        return layerCount;
+    }
+
+    public String getLayerName(int layer)
+    {
+        return layerNames[layer];
+    }
+
+    /**
+     * @return index of the layer with the name or -1
+     */
+    public int findLayer(String name)
+    {
+        for (int i = 0; i < layerCount; i++)
+            if (layerNames[i].equals(name))
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Appends the features of a layer to the batch.
+     * Tile coordinates (0 to extent, y pointing down) are mapped to originX + x / extent * tileSizeX
+     * and originY + y / extent * tileSizeY, so a negative tileSizeY flips the y axis.
+     */
+    public void decodeLayer(int layer, FeatureBatch batch, double originX, double originY, double tileSizeX, double tileSizeY) throws IOException
+    {
+        int start = layerStarts[layer];
+        int end = layerEnds[layer];
+
+        //Keys and values usually follow the features, so collect them first
+        int keyCount = 0;
+        int valueCount = 0;
+        int extent = DEFAULT_EXTENT;
+
+        position = start;
+        while (position < end)
+        {
+            int tag = readVarint32(end);
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+
+            if (field == 3 && wireType == WIRE_LENGTH_DELIMITED)
+            {
+                if (keyCount == keys.length)
+                    keys = Arrays.copyOf(keys, keyCount * 2);
+                keys[keyCount++] = PropertyDictionary.SHARED.intern(readString(end));
+            }
+            else if (field == 4 && wireType == WIRE_LENGTH_DELIMITED)
+            {
+                if (valueCount == values.length)
+                    values = Arrays.copyOf(values, valueCount * 2);
+                int length = readLength(end);
+                values[valueCount++] = readValue(position + length);
+            }
+            else if (field == 5 && wireType == WIRE_VARINT)
+            {
+                extent = readVarint32(end);
+            }
+            else
+            {
+                skip(wireType, end);
+            }
+        }
+
+        if (extent <= 0)
+            throw new IOException("Invalid layer extent " + extent);
+
+        double scaleX = tileSizeX / extent;
+        double scaleY = tileSizeY / extent;
+
+        position = start;
+        while (position < end)
+        {
+            int tag = readVarint32(end);
+
+            if (tag >>> 3 == 2 && (tag & 7) == WIRE_LENGTH_DELIMITED)
+            {
+                int length = readLength(end);
+                int featureEnd = position + length;
+                decodeFeature(featureEnd, batch, keyCount, valueCount, originX, originY, scaleX, scaleY);
+                position = featureEnd;
+            }
+            else
+            {
+                skip(tag & 7, end);
+            }
+        }
+    }
+
+    private void decodeFeature(int end, FeatureBatch batch, int keyCount, int valueCount,
+                               double originX, double originY, double scaleX, double scaleY) throws IOException
+    {
+        int type = 0;
+        int tagsStart = -1, tagsEnd = -1;
+        int geometryStart = -1, geometryEnd = -1;
+
+        while (position < end)
+        {
+            int tag = readVarint32(end);
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+
+            if (field == 2 && wireType == WIRE_LENGTH_DELIMITED)
+            {
+                tagsEnd = readLength(end) + position;
+                tagsStart = position;
+                position = tagsEnd;
+            }
+            else if (field == 3 && wireType == WIRE_VARINT)
+            {
+                type = readVarint32(end);
+            }
+            else if (field == 4 && wireType == WIRE_LENGTH_DELIMITED)
+            {
+                geometryEnd = readLength(end) + position;
+                geometryStart = position;
+                position = geometryEnd;
+            }
+            else
+            {
+                skip(wireType, end);
+            }
+        }
+
+        if (geometryStart < 0 || !addGeometry(type, geometryStart, geometryEnd, batch, originX, originY, scaleX, scaleY))
+            return;
+
+        if (tagsStart < 0)
+            return;
+
+        position = tagsStart;
+        while (position < tagsEnd)
+        {
+            int key = readVarint32(tagsEnd);
+            if (position >= tagsEnd)
+                throw new IOException("Odd number of feature tags");
+            int value = readVarint32(tagsEnd);
+
+            if (key < keyCount && value < valueCount)
+                batch.setProperty(keys[key], values[value]);
+        }
+    }
+
+    /**
+     * Decodes the command stream and appends it as a new feature.
+     * @return false if the feature has no usable geometry, nothing is added in that case
+     */
+    private boolean addGeometry(int type, int start, int end, FeatureBatch batch,
+                                double originX, double originY, double scaleX, double scaleY) throws IOException
+    {
+        if (type != GEOMETRY_POINT && type != GEOMETRY_LINE_STRING && type != GEOMETRY_POLYGON)
+            return false;
+
+        decodeCommands(type, start, end);
+
+        if (type == GEOMETRY_POINT)
+        {
+            if (pointCount == 0)
+                return false;
+
+            batch.beginFeature(pointCount == 1 ? FeatureBatch.POINT : FeatureBatch.MULTI_POINT);
+            for (int i = 0; i < pointCount; i++)
+            {
+                batch.beginPart();
+                batch.beginRing();
+                batch.addPoint(originX + points[2 * i] * scaleX, originY + points[2 * i + 1] * scaleY);
+            }
+            return true;
+        }
+
+        if (type == GEOMETRY_LINE_STRING)
+        {
+            int lines = 0;
+            for (int path = 0; path < pathCount; path++)
+                if (getPathEnd(path) - pathStarts[path] >= 2)
+                    lines++;
+
+            if (lines == 0)
+                return false;
+
+            batch.beginFeature(lines == 1 ? FeatureBatch.LINE_STRING : FeatureBatch.MULTI_LINE_STRING);
+            for (int path = 0; path < pathCount; path++)
+            {
+                if (getPathEnd(path) - pathStarts[path] < 2)
+                    continue;
+
+                batch.beginPart();
+                addPath(path, false, batch, originX, originY, scaleX, scaleY);
+            }
+            return true;
+        }
+
+        //Exterior rings have a positive area in tile coordinates, every exterior ring starts a new polygon
+        int polygons = 0;
+        for (int path = 0; path < pathCount; path++)
+            if (getPathEnd(path) - pathStarts[path] >= 3 && area(path) > 0)
+                polygons++;
+
+        if (polygons == 0)
+            return false;
+
+        batch.beginFeature(polygons == 1 ? FeatureBatch.POLYGON : FeatureBatch.MULTI_POLYGON);
+        boolean inPolygon = false;
+        for (int path = 0; path < pathCount; path++)
+        {
+            if (getPathEnd(path) - pathStarts[path] < 3)
+                continue;
+
+            long area = area(path);
+            if (area > 0)
+            {
+                batch.beginPart();
+                inPolygon = true;
+            }
+            else if (area == 0 || !inPolygon)
+            {
+                continue;
+            }
+
+            addPath(path, true, batch, originX, originY, scaleX, scaleY);
+        }
+        return true;
+    }
+
+    private void decodeCommands(int type, int start, int end) throws IOException
+    {
+        pointCount = 0;
+        pathCount = 0;
+
+        int x = 0, y = 0;
+        position = start;
+
+        while (position < end)
+        {
+            int command = readVarint32(end);
+            int id = command & 7;
+            int count = command >>> 3;
+
+            if (id == COMMAND_MOVE_TO || id == COMMAND_LINE_TO)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    x += zigZag(readVarint32(end));
+                    y += zigZag(readVarint32(end));
+
+                    if (id == COMMAND_MOVE_TO && type != GEOMETRY_POINT)
+                        beginPath();
+                    else if (id == COMMAND_LINE_TO && pathCount == 0)
+                        throw new IOException("LineTo without MoveTo");
+
+                    addPoint(x, y);
+                }
+            }
+            else if (id != COMMAND_CLOSE_PATH)
+            {
+                throw new IOException("Unknown geometry command " + id);
+            }
+        }
+    }
+
+    private void beginPath()
+    {
+        if (pathCount == pathStarts.length)
+            pathStarts = Arrays.copyOf(pathStarts, pathCount * 2);
+        pathStarts[pathCount++] = pointCount;
+    }
+
+    private void addPoint(int x, int y)
+    {
+        if (2 * pointCount + 2 > points.length)
+            points = Arrays.copyOf(points, points.length * 2);
+        points[2 * pointCount] = x;
+        points[2 * pointCount + 1] = y;
+        pointCount++;
+    }
+
+    private int getPathEnd(int path)
+    {
+        return path + 1 < pathCount ? pathStarts[path + 1] : pointCount;
+    }
+
+    /**
+     * @return twice the signed area of the ring (surveyor's formula)
+     */
+    private long area(int path)
+    {
+        int start = pathStarts[path];
+        int end = getPathEnd(path);
+        long sum = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            int next = i + 1 < end ? i + 1 : start;
+            sum += (long)points[2 * i] * points[2 * next + 1] - (long)points[2 * next] * points[2 * i + 1];
+        }
+
+        return sum;
+    }
+
+    private void addPath(int path, boolean close, FeatureBatch batch, double originX, double originY, double scaleX, double scaleY)
+    {
+        int start = pathStarts[path];
+        int end = getPathEnd(path);
+
+        batch.beginRing();
+        for (int i = start; i < end; i++)
+            batch.addPoint(originX + points[2 * i] * scaleX, originY + points[2 * i + 1] * scaleY);
+
+        //Rings are stored closed like in WKB
+        if (close)
+            batch.addPoint(originX + points[2 * start] * scaleX, originY + points[2 * start + 1] * scaleY);
+    }
+
+    /**
+     * Reads a Value message and formats it like the JSON properties of the old format.
+     */
+    private String readValue(int end) throws IOException
+    {
+        String value = "";
+
+        while (position < end)
+        {
+            int tag = readVarint32(end);
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+
+            if (field == 1 && wireType == WIRE_LENGTH_DELIMITED)
+            {
+                value = readString(end);
+            }
+            else if (field == 2 && wireType == WIRE_FIXED32)
+            {
+                value = formatNumber(Float.intBitsToFloat(readFixed32(end)));
+            }
+            else if (field == 3 && wireType == WIRE_FIXED64)
+            {
+                value = formatNumber(Double.longBitsToDouble(readFixed64(end)));
+            }
+            else if ((field == 4 || field == 5) && wireType == WIRE_VARINT)
+            {
+                value = Long.toString(readVarint(end));
+            }
+            else if (field == 6 && wireType == WIRE_VARINT)
+            {
+                long raw = readVarint(end);
+                value = Long.toString((raw >>> 1) ^ -(raw & 1));
+            }
+            else if (field == 7 && wireType == WIRE_VARINT)
+            {
+                value = readVarint(end) != 0 ? "true" : "false";
+            }
+            else
+            {
+                skip(wireType, end);
+            }
+        }
+
+        return value;
+    }
+
+    private static String formatNumber(double number)
+    {
+        if (number == Math.rint(number) && !Double.isInfinite(number) && Math.abs(number) < 1e15)
+            return Long.toString((long)number);
+
+        return Double.toString(number);
+    }
+
+    private static int zigZag(int value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private String readString(int end) throws IOException
+    {
+        int length = readLength(end);
+        if (stringBuffer.length < length)
+            stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+
+        for (int i = 0; i < length; i++)
+            stringBuffer[i] = tile.get(position + i);
+        position += length;
+
+        return new String(stringBuffer, 0, length, "UTF-8");
+    }
+
+    private int readLength(int end) throws IOException
+    {
+        int length = readVarint32(end);
+        if (length < 0 || position + length > end)
+            throw new IOException("Invalid length " + length + " at " + position);
+        return length;
+    }
+
+    private int readVarint32(int end) throws IOException
+    {
+        return (int)readVarint(end);
+    }
+
+    private long readVarint(int end) throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            if (position >= end)
+                throw new IOException("Truncated varint at " + position);
+
+            byte b = tile.get(position++);
+            result |= (long)(b & 0x7f) << shift;
+            if (b >= 0)
+                return result;
+        }
+
+        throw new IOException("Malformed varint at " + position);
+    }
+
+    private int readFixed32(int end) throws IOException
+    {
+        if (position + 4 > end)
+            throw new IOException("Truncated fixed32 at " + position);
+
+        int result = (tile.get(position) & 0xff)
+                   | (tile.get(position + 1) & 0xff) << 8
+                   | (tile.get(position + 2) & 0xff) << 16
+                   | (tile.get(position + 3) & 0xff) << 24;
+        position += 4;
+        return result;
+    }
+
+    private long readFixed64(int end) throws IOException
+    {
+        long low = readFixed32(end) & 0xffffffffL;
+        long high = readFixed32(end) & 0xffffffffL;
+        return low | (high << 32);
+    }
+
+    private void skip(int wireType, int end) throws IOException
+    {
+        if (wireType == WIRE_VARINT)
+            readVarint(end);
+        else if (wireType == WIRE_FIXED64)
+            position += 8;
+        else if (wireType == WIRE_LENGTH_DELIMITED)
+        {
+            int length = readLength(end);
+            position += length;
+        }
+        else if (wireType == WIRE_FIXED32)
+            position += 4;
+        else
+            throw new IOException("Unsupported wire type " + wireType + " at " + position);
+
+        if (position > end)
+            throw new IOException("Truncated field at " + position);
+    }
+}
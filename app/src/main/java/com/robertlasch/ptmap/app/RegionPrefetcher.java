@@ -0,0 +1,350 @@
+package com.robertlasch.ptmap.app;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads all layers of every tile of a bounding box over a range of zoom levels into a DiskTileCache,
+ * so the region stays available offline.
+ *
+ * Zoom levels and tile numbers are those of the tile URLs, i.e. the ones the providers get from
+ * VectorTileRendered. Tiles are walked zoom level by zoom level; tiles the cache already holds are
+ * skipped without touching the network, so starting an interrupted prefetch again resumes it.
+ * The cache budget has to be large enough for the region, otherwise use a TileArchiveWriter.
+ */
+public class RegionPrefetcher
+{
+    private static final long REPORT_INTERVAL = 500 * 1000000L;
+
+    public interface ProgressListener
+    {
+        /**
+         * Called from a worker thread at most every half second.
+         */
+        public void onProgress(RegionPrefetcher prefetcher);
+
+        /**
+         * Called once every tile of the region has been handled.
+         */
+        public void onFinished(RegionPrefetcher prefetcher);
+
+        /**
+         * Called once the workers have ended after stop(), the region is incomplete.
+         */
+        public void onStopped(RegionPrefetcher prefetcher);
+    }
+
+    private static final VectorTileRendered.TileType[] LAYERS = VectorTileRendered.LAYERS;
+
+    private final DiskTileCache cache;
+    private final int minZoom;
+    private final int[] minX, minY, maxX, maxY;
+    //Index of the first tile of every zoom level, the last entry is the total
+    private final long[] zoomStarts;
+
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private volatile boolean running = false;
+    private volatile boolean stopped = false;
+    private volatile long startTime;
+    private volatile long endTime;
+    private Thread[] workers = new Thread[0];
+    private ProgressListener listener;
+
+    /**
+     * @param west western edge in degrees
+     * @param south southern edge in degrees
+     * @param east eastern edge in degrees
+     * @param north northern edge in degrees
+     */
+    public RegionPrefetcher(DiskTileCache cache, double west, double south, double east, double north, int minZoom, int maxZoom)
+    {
+        this.cache = cache;
+        this.minZoom = minZoom;
+
+        int zoomCount = maxZoom - minZoom + 1;
+        minX = new int[zoomCount];
+        minY = new int[zoomCount];
+        maxX = new int[zoomCount];
+        maxY = new int[zoomCount];
+        zoomStarts = new long[zoomCount + 1];
+
+        double westX = SphericalMercator.lonToX(west);
+        double eastX = SphericalMercator.lonToX(east);
+        double northY = SphericalMercator.latToY(north);
+        double southY = SphericalMercator.latToY(south);
+
+        for (int i = 0; i < zoomCount; i++)
+        {
+            int zoomLevel = minZoom + i;
+            minX[i] = SphericalMercator.xToTile(westX, zoomLevel);
+            maxX[i] = SphericalMercator.xToTile(eastX, zoomLevel);
+            minY[i] = SphericalMercator.yToTile(northY, zoomLevel);
+            maxY[i] = SphericalMercator.yToTile(southY, zoomLevel);
+
+            long tiles = (long)(maxX[i] - minX[i] + 1) * (maxY[i] - minY[i] + 1) * LAYERS.length;
+            zoomStarts[i + 1] = zoomStarts[i] + tiles;
+        }
+    }
+
+    /**
+     * Starts (or after stop() resumes) the prefetch on its own worker threads.
+     * @param concurrency number of tiles fetched at the same time
+     */
+    public synchronized void start(int concurrency, ProgressListener listener)
+    {
+        if (running)
+            return;
+
+        //Let the workers of a previous run finish their current tile
+        for (Thread worker : workers)
+        {
+            try
+            {
+                worker.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        this.listener = listener;
+        running = true;
+        stopped = false;
+        cursor.set(0);
+        downloaded.set(0);
+        skipped.set(0);
+        missing.set(0);
+        failed.set(0);
+        bytes.set(0);
+        startTime = System.nanoTime();
+        endTime = 0;
+
+        workers = new Thread[concurrency];
+        activeWorkers.set(concurrency);
+
+        for (int i = 0; i < concurrency; i++)
+        {
+            workers[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            }, "RegionPrefetcher-" + i);
+            workers[i].setPriority(Thread.MIN_PRIORITY);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the workers. Tiles fetched so far stay cached, so start() resumes where it stopped.
+     */
+    public synchronized void stop()
+    {
+        if (!running)
+            return;
+
+        stopped = true;
+        running = false;
+
+        for (Thread worker : workers)
+            worker.interrupt();
+    }
+
+    private void work()
+    {
+        try
+        {
+            long total = getTotalCount();
+
+            while (running)
+            {
+                long index = cursor.getAndIncrement();
+                if (index >= total)
+                    break;
+
+                fetch(index);
+                report();
+            }
+        }
+        finally
+        {
+            TileInflater.release();
+
+            if (activeWorkers.decrementAndGet() == 0)
+            {
+                running = false;
+                endTime = System.nanoTime();
+
+                if (listener != null && stopped)
+                    listener.onStopped(this);
+                else if (listener != null)
+                    listener.onFinished(this);
+            }
+        }
+    }
+
+    private void fetch(long index)
+    {
+        int zoom = 0;
+        while (index >= zoomStarts[zoom + 1])
+            zoom++;
+
+        long local = index - zoomStarts[zoom];
+        VectorTileRendered.TileType type = LAYERS[(int)(local % LAYERS.length)];
+        long tile = local / LAYERS.length;
+        int width = maxX[zoom] - minX[zoom] + 1;
+        int x = minX[zoom] + (int)(tile % width);
+        int y = minY[zoom] + (int)(tile / width);
+        int zoomLevel = minZoom + zoom;
+
+        if (cache.contains(x, y, zoomLevel, type))
+        {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        try
+        {
+            ByteBuffer payload = cache.getPayload(x, y, zoomLevel, type);
+            if (payload == null)
+            {
+                missing.incrementAndGet();
+                return;
+            }
+
+            downloaded.incrementAndGet();
+            bytes.addAndGet(payload.remaining());
+        }
+        catch (IOException e)
+        {
+            //Interrupted by stop(), the tile is fetched again on resume
+            if (!running)
+                return;
+
+            failed.incrementAndGet();
+            Log.w("RegionPrefetcher", "Couldn't fetch " + zoomLevel + "/" + x + "/" + y + " " + type + ": " + e.getMessage());
+        }
+    }
+
+    private void report()
+    {
+        if (listener == null)
+            return;
+
+        long now = System.nanoTime();
+        long last = lastReport.get();
+        if (now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now))
+            listener.onProgress(this);
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return true if the last run was ended by stop() rather than by finishing the region
+     */
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    public long getTotalCount()
+    {
+        return zoomStarts[zoomStarts.length - 1];
+    }
+
+    /**
+     * @return number of tiles handled so far, whether downloaded, already cached, missing or failed
+     */
+    public long getProcessedCount()
+    {
+        return downloaded.get() + skipped.get() + missing.get() + failed.get();
+    }
+
+    public double getProgress()
+    {
+        long total = getTotalCount();
+        return total == 0 ? 1 : (double)getProcessedCount() / total;
+    }
+
+    public long getDownloadedCount()
+    {
+        return downloaded.get();
+    }
+
+    /**
+     * @return number of tiles that were already cached
+     */
+    public long getSkippedCount()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * @return number of tiles the server doesn't have
+     */
+    public long getMissingCount()
+    {
+        return missing.get();
+    }
+
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    public long getDownloadedBytes()
+    {
+        return bytes.get();
+    }
+
+    private double getElapsedSeconds()
+    {
+        long end = endTime != 0 ? endTime : System.nanoTime();
+        return (end - startTime) / 1e9;
+    }
+
+    /**
+     * @return downloaded tiles per second
+     */
+    public double getTileThroughput()
+    {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? downloaded.get() / seconds : 0;
+    }
+
+    /**
+     * @return downloaded KB per second
+     */
+    public double getByteThroughput()
+    {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? bytes.get() / 1024.0 / seconds : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d/%d tiles (%d downloaded, %d cached, %d missing, %d failed), %.1f tiles/s, %.1f KB/s",
+                getProcessedCount(), getTotalCount(), downloaded.get(), skipped.get(), missing.get(), failed.get(),
+                getTileThroughput(), getByteThroughput());
+    }
+}
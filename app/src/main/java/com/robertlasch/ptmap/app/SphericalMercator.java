@@ -20,4 +20,46 @@ public class SphericalMercator
     }
 
     public static double yToLat(double y) { return Math.toDegrees(2.0 * Math.atan(Math.exp(y / R_MAJOR)) - Math.PI / 2); }
+
+    /**
+     * @return edge length of a tile of the zoom level (0 = whole world)
+     */
+    public static double tileSize(int zoomLevel)
+    {
+        return 2 * Math.PI * R_MAJOR / (1 << zoomLevel);
+    }
+
+    /**
+     * @return x of the western edge of tile column x
+     */
+    public static double tileToX(int x, int zoomLevel)
+    {
+        return -Math.PI * R_MAJOR + x * tileSize(zoomLevel);
+    }
+
+    /**
+     * @return y of the northern edge of tile row y
+     */
+    public static double tileToY(int y, int zoomLevel)
+    {
+        return Math.PI * R_MAJOR - y * tileSize(zoomLevel);
+    }
+
+    /**
+     * @return column of the tile containing x, clamped to the world
+     */
+    public static int xToTile(double x, int zoomLevel)
+    {
+        int tile = (int)Math.floor((x + Math.PI * R_MAJOR) / tileSize(zoomLevel));
+        return Math.max(0, Math.min(tile, (1 << zoomLevel) - 1));
+    }
+
+    /**
+     * @return row of the tile containing y, clamped to the world
+     */
+    public static int yToTile(double y, int zoomLevel)
+    {
+        int tile = (int)Math.floor((Math.PI * R_MAJOR - y) / tileSize(zoomLevel));
+        return Math.max(0, Math.min(tile, (1 << zoomLevel) - 1));
+    }
 }
\ No newline at end of file
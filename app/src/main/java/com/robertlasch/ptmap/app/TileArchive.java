@@ -0,0 +1,129 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only archive holding the raw payloads of all layers of a region in a single file,
+ * written by {@link TileArchiveWriter}. Use it offline through new MVTTileProvider(archive).
+ *
+ * Layout, all numbers big endian:
+ * header (magic, version, tile count, index offset), the payloads back to back, and the index:
+ * one (key, offset, length) entry per tile, sorted by TileKey, i.e. by zoom level, x, y and layer.
+ * The whole file is memory mapped once, so a lookup is a binary search over the index plus a slice.
+ */
+public class TileArchive implements ITilePayloadSource
+{
+    static final int MAGIC = 0x50544d41; //"PTMA"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+
+    private final File file;
+    private final MappedByteBuffer data;
+    private final int tileCount;
+    private final int indexOffset;
+
+    public TileArchive(File file) throws IOException
+    {
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Tile archive " + file + " is larger than 2 GB");
+
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+            throw new IOException(file + " is not a tile archive");
+        if (data.getInt(4) != VERSION)
+            throw new IOException("Unsupported tile archive version " + data.getInt(4));
+
+        tileCount = data.getInt(8);
+        long offset = data.getLong(12);
+
+        if (tileCount < 0 || offset < HEADER_SIZE || offset + (long)tileCount * INDEX_ENTRY_SIZE > data.limit())
+            throw new IOException("Tile archive " + file + " has a damaged index");
+
+        indexOffset = (int)offset;
+    }
+
+    @Override
+    public ByteBuffer getPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+    {
+        int entry = find(TileKey.pack(zoomLevel, x, y, type));
+        if (entry < 0)
+            return null;
+
+        int position = indexOffset + entry * INDEX_ENTRY_SIZE;
+        long offset = data.getLong(position + 8);
+        int length = data.getInt(position + 16);
+
+        if (offset < HEADER_SIZE || length < 0 || offset + length > indexOffset)
+            throw new IOException("Tile archive " + file + " has a damaged entry for " + TileKey.toString(TileKey.pack(zoomLevel, x, y, type)));
+
+        ByteBuffer payload = data.duplicate();
+        payload.limit((int)offset + length);
+        payload.position((int)offset);
+        return payload.slice();
+    }
+
+    public boolean contains(int x, int y, int zoomLevel, VectorTileRendered.TileType type)
+    {
+        return find(TileKey.pack(zoomLevel, x, y, type)) >= 0;
+    }
+
+    /**
+     * @return index of the entry with the key or -1
+     */
+    private int find(long key)
+    {
+        int low = 0;
+        int high = tileCount - 1;
+
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            long value = data.getLong(indexOffset + middle * INDEX_ENTRY_SIZE);
+
+            if (value < key)
+                low = middle + 1;
+            else if (value > key)
+                high = middle - 1;
+            else
+                return middle;
+        }
+
+        return -1;
+    }
+
+    public int getTileCount()
+    {
+        return tileCount;
+    }
+
+    /**
+     * @return key of the entry at the index, entries are sorted
+     */
+    public long getKey(int index)
+    {
+        return data.getLong(indexOffset + index * INDEX_ENTRY_SIZE);
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+}
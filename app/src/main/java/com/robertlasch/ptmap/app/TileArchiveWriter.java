@@ -0,0 +1,150 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Packages tile payloads into a {@link TileArchive}.
+ *
+ * Payloads are streamed to a temporary file in the order they are added, the sorted index and the
+ * header are written by close(), which then renames the file into place.
+ */
+public class TileArchiveWriter
+{
+    private final File file;
+    private final File temp;
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+
+    //TileKeys only use the lower 60 bits, so the natural order sorts by zoom, x, y and layer
+    private final TreeMap<Long, long[]> index = new TreeMap<Long, long[]>();
+
+    private long position = TileArchive.HEADER_SIZE;
+    private boolean closed = false;
+
+    public TileArchiveWriter(File file) throws IOException
+    {
+        this.file = file;
+        this.temp = new File(file.getPath() + ".tmp");
+        this.stream = new FileOutputStream(temp);
+        this.channel = stream.getChannel();
+        channel.position(TileArchive.HEADER_SIZE);
+    }
+
+    /**
+     * Adds a payload. Adding a tile twice keeps the payload added last.
+     */
+    public void add(int x, int y, int zoomLevel, VectorTileRendered.TileType type, ByteBuffer payload) throws IOException
+    {
+        ByteBuffer data = payload.duplicate();
+        int length = data.remaining();
+
+        while (data.hasRemaining())
+            channel.write(data);
+
+        index.put(TileKey.pack(zoomLevel, x, y, type), new long[] { position, length });
+        position += length;
+    }
+
+    /**
+     * Copies all layers of the tiles in [minX, maxX] x [minY, maxY] at the zoom level from the source.
+     * Tiles the source doesn't have are skipped.
+     * @return number of payloads added
+     */
+    public int addRegion(ITilePayloadSource source, int zoomLevel, int minX, int minY, int maxX, int maxY) throws IOException
+    {
+        int added = 0;
+
+        for (int x = minX; x <= maxX; x++)
+        {
+            for (int y = minY; y <= maxY; y++)
+            {
+                for (VectorTileRendered.TileType type : VectorTileRendered.TileType.values())
+                {
+                    if (type == VectorTileRendered.TileType.Default)
+                        continue;
+
+                    ByteBuffer payload = source.getPayload(x, y, zoomLevel, type);
+                    if (payload == null)
+                        continue;
+
+                    add(x, y, zoomLevel, type, payload);
+                    added++;
+                }
+            }
+        }
+
+        return added;
+    }
+
+    public int getTileCount()
+    {
+        return index.size();
+    }
+
+    /**
+     * Writes index and header and moves the archive into place.
+     */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try
+        {
+            ByteBuffer entries = ByteBuffer.allocate(index.size() * TileArchive.INDEX_ENTRY_SIZE);
+            for (Map.Entry<Long, long[]> entry : index.entrySet())
+            {
+                entries.putLong(entry.getKey());
+                entries.putLong(entry.getValue()[0]);
+                entries.putInt((int)entry.getValue()[1]);
+            }
+            entries.flip();
+
+            channel.position(position);
+            while (entries.hasRemaining())
+                channel.write(entries);
+
+            ByteBuffer header = ByteBuffer.allocate(TileArchive.HEADER_SIZE);
+            header.putInt(TileArchive.MAGIC);
+            header.putInt(TileArchive.VERSION);
+            header.putInt(index.size());
+            header.putLong(position);
+            header.flip();
+
+            channel.position(0);
+            while (header.hasRemaining())
+                channel.write(header);
+
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("Couldn't replace " + file);
+        if (!temp.renameTo(file))
+            throw new IOException("Couldn't move " + temp + " to " + file);
+    }
+
+    /**
+     * Discards everything written so far.
+     */
+    public void abort() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        stream.close();
+        temp.delete();
+    }
+}
@@ -0,0 +1,276 @@
+package com.robertlasch.ptmap.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Per thread zlib and gzip inflater with a reusable output arena.
+ *
+ * The arena grows as needed and is shrunk again once it has been more than twice as large as
+ * the biggest payload of the last SHRINK_WINDOW inflations (high water mark), so a single huge
+ * tile doesn't pin memory for the lifetime of the loader thread.
+ * Every instance records how many bytes it inflated and how long that took.
+ * Inflating stops with a CancellationException once the thread gets interrupted.
+ */
+public class TileInflater
+{
+    private static final int INITIAL_ARENA_SIZE = 64 * 1024;
+    private static final int SHRINK_WINDOW = 32;
+
+    private static final List<TileInflater> inflaters = new ArrayList<TileInflater>();
+
+    private static final ThreadLocal<TileInflater> instances = new ThreadLocal<TileInflater>()
+    {
+        @Override
+        protected TileInflater initialValue()
+        {
+            TileInflater inflater = new TileInflater(Thread.currentThread());
+            synchronized (inflaters)
+            {
+                //Free what threads left behind that exited without release()
+                for (int i = inflaters.size() - 1; i >= 0; i--)
+                {
+                    if (!inflaters.get(i).owner.isAlive())
+                        inflaters.remove(i).end();
+                }
+                inflaters.add(inflater);
+            }
+            return inflater;
+        }
+    };
+
+    private final Thread owner;
+    private final String threadName;
+    private final Inflater inflater = new Inflater();
+    private Inflater rawInflater;
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+    private byte[] inputBuffer = new byte[0];
+    private int highWaterMark = 0;
+    private int inflationsInWindow = 0;
+
+    private volatile long bytesInflated = 0;
+    private volatile long nanosInflating = 0;
+
+    private TileInflater(Thread owner)
+    {
+        this.owner = owner;
+        this.threadName = owner.getName();
+    }
+
+    /**
+     * @return the inflater of the calling thread
+     */
+    public static TileInflater get()
+    {
+        return instances.get();
+    }
+
+    /**
+     * Frees the inflater of the calling thread, if it has one. Call before a loader thread exits.
+     */
+    public static void release()
+    {
+        TileInflater inflater;
+        synchronized (inflaters)
+        {
+            int index = -1;
+            for (int i = 0; i < inflaters.size(); i++)
+                if (inflaters.get(i).owner == Thread.currentThread())
+                    index = i;
+
+            if (index < 0)
+                return;
+            inflater = inflaters.remove(index);
+        }
+
+        instances.remove();
+        inflater.end();
+    }
+
+    private void end()
+    {
+        inflater.end();
+        if (rawInflater != null)
+            rawInflater.end();
+    }
+
+    /**
+     * @return a snapshot of the inflaters of all live threads that have inflated something so far
+     */
+    public static List<TileInflater> getInflaters()
+    {
+        synchronized (inflaters)
+        {
+            return new ArrayList<TileInflater>(inflaters);
+        }
+    }
+
+    /**
+     * Inflates the zlib stream stored at [offset, offset + length) of the buffer.
+     * Buffers without a backing array (e.g. memory mapped files) are copied into a reused input buffer first.
+     * @return a buffer over the inflated data, only valid until the next call on this thread
+     */
+    public ByteBuffer inflate(ByteBuffer input, int offset, int length) throws DataFormatException
+    {
+        if (input.hasArray())
+            return inflate(input.array(), input.arrayOffset() + offset, length);
+
+        if (inputBuffer.length < length)
+            inputBuffer = new byte[length + length / 2];
+
+        ByteBuffer window = input.duplicate();
+        window.position(offset);
+        window.get(inputBuffer, 0, length);
+
+        return inflate(inputBuffer, 0, length);
+    }
+
+    /**
+     * Inflates a zlib stream into the arena.
+     * @return a buffer over the inflated data, only valid until the next call on this thread
+     */
+    public ByteBuffer inflate(byte[] input, int offset, int length) throws DataFormatException
+    {
+        return inflate(inflater, input, offset, length);
+    }
+
+    public static boolean isGzip(ByteBuffer input)
+    {
+        int start = input.position();
+        return input.remaining() >= 18 && input.get(start) == 0x1f && input.get(start + 1) == (byte)0x8b;
+    }
+
+    /**
+     * Inflates a gzip stream stored between position and limit of the buffer.
+     * The CRC of the trailer is not verified.
+     * @return a buffer over the inflated data, only valid until the next call on this thread
+     */
+    public ByteBuffer inflateGzip(ByteBuffer input) throws DataFormatException
+    {
+        byte[] data;
+        int offset;
+        int length = input.remaining();
+
+        if (input.hasArray())
+        {
+            data = input.array();
+            offset = input.arrayOffset() + input.position();
+        }
+        else
+        {
+            if (inputBuffer.length < length)
+                inputBuffer = new byte[length + length / 2];
+            input.duplicate().get(inputBuffer, 0, length);
+            data = inputBuffer;
+            offset = 0;
+        }
+
+        int end = offset + length;
+        if (length < 18 || data[offset] != 0x1f || data[offset + 1] != (byte)0x8b || data[offset + 2] != 8)
+            throw new DataFormatException("Not a gzip stream");
+
+        int flags = data[offset + 3];
+        int position = offset + 10;
+
+        if ((flags & 4) != 0) //FEXTRA
+            position += 2 + ((data[position] & 0xff) | (data[position + 1] & 0xff) << 8);
+        if ((flags & 8) != 0) //FNAME
+            while (position < end && data[position++] != 0) { }
+        if ((flags & 16) != 0) //FCOMMENT
+            while (position < end && data[position++] != 0) { }
+        if ((flags & 2) != 0) //FHCRC
+            position += 2;
+
+        //8 bytes trailer: CRC32 and size
+        if (position > end - 8)
+            throw new DataFormatException("Truncated gzip header");
+
+        if (rawInflater == null)
+            rawInflater = new Inflater(true);
+
+        return inflate(rawInflater, data, position, end - 8 - position);
+    }
+
+    private ByteBuffer inflate(Inflater inflater, byte[] input, int offset, int length) throws DataFormatException
+    {
+        long start = System.nanoTime();
+
+        //The buffer returned by the previous call is invalid from here on
+        shrinkArena();
+
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+
+        int size = 0;
+        while (!inflater.finished())
+        {
+            if (Thread.currentThread().isInterrupted())
+                throw new CancellationException("Inflating interrupted");
+
+            if (size == arena.length)
+                arena = Arrays.copyOf(arena, arena.length * 2);
+
+            int count = inflater.inflate(arena, size, arena.length - size);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                throw new DataFormatException("Truncated zlib stream");
+
+            size += count;
+        }
+
+        highWaterMark = Math.max(highWaterMark, size);
+        inflationsInWindow++;
+
+        nanosInflating += System.nanoTime() - start;
+        bytesInflated += size;
+
+        return ByteBuffer.wrap(arena, 0, size);
+    }
+
+    private void shrinkArena()
+    {
+        if (inflationsInWindow < SHRINK_WINDOW)
+            return;
+
+        int target = Math.max(INITIAL_ARENA_SIZE, Integer.highestOneBit(highWaterMark - 1) << 1);
+        if (arena.length > target * 2)
+            arena = new byte[target];
+
+        highWaterMark = 0;
+        inflationsInWindow = 0;
+    }
+
+    int getArenaSize()
+    {
+        return arena.length;
+    }
+
+    public String getThreadName()
+    {
+        return threadName;
+    }
+
+    public long getBytesInflated()
+    {
+        return bytesInflated;
+    }
+
+    /**
+     * @return inflate throughput of this thread in MB/s
+     */
+    public double getThroughput()
+    {
+        long nanos = nanosInflating;
+        return nanos == 0 ? 0 : (bytesInflated / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %.1f MB inflated, %.1f MB/s", threadName, bytesInflated / (1024.0 * 1024.0), getThroughput());
+    }
+}
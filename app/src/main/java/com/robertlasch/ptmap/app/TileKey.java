@@ -0,0 +1,50 @@
+package com.robertlasch.ptmap.app;
+
+/**
+ * Packs zoom level, x, y and layer of a tile into a single long.
+ * Layout from the most significant bits: 5 bits zoom, 26 bits x, 26 bits y, 3 bits layer.
+ */
+public class TileKey
+{
+    private static final int LAYER_BITS = 3;
+    private static final int COORDINATE_BITS = 26;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    public static long pack(int zoomLevel, int x, int y, VectorTileRendered.TileType type)
+    {
+        return pack(zoomLevel, x, y, type.id);
+    }
+
+    public static long pack(int zoomLevel, int x, int y, int layer)
+    {
+        return ((long)zoomLevel << (2 * COORDINATE_BITS + LAYER_BITS))
+             | ((x & COORDINATE_MASK) << (COORDINATE_BITS + LAYER_BITS))
+             | ((y & COORDINATE_MASK) << LAYER_BITS)
+             | layer;
+    }
+
+    public static int getZoomLevel(long key)
+    {
+        return (int)(key >>> (2 * COORDINATE_BITS + LAYER_BITS));
+    }
+
+    public static int getX(long key)
+    {
+        return (int)((key >>> (COORDINATE_BITS + LAYER_BITS)) & COORDINATE_MASK);
+    }
+
+    public static int getY(long key)
+    {
+        return (int)((key >>> LAYER_BITS) & COORDINATE_MASK);
+    }
+
+    public static int getLayer(long key)
+    {
+        return (int)(key & ((1 << LAYER_BITS) - 1));
+    }
+
+    public static String toString(long key)
+    {
+        return getZoomLevel(key) + "/" + getX(key) + "/" + getY(key) + ":" + getLayer(key);
+    }
+}
@@ -0,0 +1,337 @@
+package com.robertlasch.ptmap.app;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Loads tiles in stages with their own threads: fetching the payloads of all layers on an I/O pool,
+ * then decoding and tessellating them on a CPU pool sized to the cores, then uploading them on the
+ * GL thread. A slow socket only occupies a fetch thread and CPU heavy tiles don't hold up downloads.
+ *
+ * Both pools run the most important pending tile first. Every stage is bounded: fetch threads wait
+ * while too many fetched tiles queue for the CPU pool, and the CPU pool waits while too many tiles
+ * queue for the GL thread, so memory for payloads and vertex buffers in flight stays limited.
+ * Decoding and tessellation share the CPU pool, they compete for the same cores anyway.
+ *
+ * Providers that can't fetch separately are loaded completely in the fetch stage.
+ */
+public class TileLoadPipeline implements IAsyncFeatureBatchProvider
+{
+    public static final int DEFAULT_FETCH_THREADS = 6;
+    private static final int MAX_DECODE_BACKLOG_PER_THREAD = 2;
+    private static final int MAX_PENDING_UPLOADS = 8;
+
+    /**
+     * Latency and queue statistics of one stage.
+     */
+    public static class Stage
+    {
+        private final String name;
+        private int queued = 0;
+        private long completed = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        Stage(String name)
+        {
+            this.name = name;
+        }
+
+        synchronized void enqueue()
+        {
+            queued++;
+        }
+
+        synchronized void dequeue()
+        {
+            queued--;
+            notifyAll();
+        }
+
+        synchronized void record(long nanos)
+        {
+            completed++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        synchronized void awaitCapacity(int maxQueued) throws InterruptedException
+        {
+            while (queued >= maxQueued)
+                wait();
+        }
+
+        /**
+         * @return tiles waiting for the stage, only tracked for the upload stage
+         */
+        public synchronized int getQueueDepth()
+        {
+            return queued;
+        }
+
+        public synchronized long getCompletedCount()
+        {
+            return completed;
+        }
+
+        /**
+         * @return average time a tile spent in the stage in milliseconds
+         */
+        public synchronized double getAverageLatency()
+        {
+            return completed == 0 ? 0 : totalNanos / 1e6 / completed;
+        }
+
+        public synchronized double getMaxLatency()
+        {
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("%s: %d tiles, %.1f ms avg, %.1f ms max", name, completed, getAverageLatency(), getMaxLatency());
+        }
+    }
+
+    private final IFeatureBatchProvider provider;
+    private final TileLoadScheduler fetchScheduler;
+    private final TileLoadScheduler cpuScheduler;
+    private final int maxDecodeBacklog;
+
+    private final Stage fetchStage = new Stage("fetch");
+    private final Stage decodeStage = new Stage("decode");
+    private final Stage tessellateStage = new Stage("tessellate");
+    private final Stage uploadStage = new Stage("upload");
+
+    public TileLoadPipeline(IFeatureBatchProvider provider, TileLoadScheduler.PriorityFunction priorityFunction)
+    {
+        this(provider, priorityFunction, DEFAULT_FETCH_THREADS, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param cpuThreads threads decoding and tessellating, by default one per core except the one the GL thread needs
+     */
+    public TileLoadPipeline(IFeatureBatchProvider provider, TileLoadScheduler.PriorityFunction priorityFunction, int fetchThreads, int cpuThreads)
+    {
+        this.provider = provider;
+        this.fetchScheduler = new TileLoadScheduler("TileFetcher", fetchThreads, priorityFunction);
+        this.cpuScheduler = new TileLoadScheduler("TileDecoder", cpuThreads, priorityFunction);
+        this.maxDecodeBacklog = cpuThreads * MAX_DECODE_BACKLOG_PER_THREAD;
+    }
+
+    @Override
+    public TileRequest requestFeatureBatches(int x, int y, int zoomLevel, VectorTileRendered.TileType[] types, TileRequest.Callback callback)
+    {
+        TileRequest request;
+        if (provider instanceof IStagedFeatureBatchProvider)
+            request = new StagedRequest(x, y, zoomLevel, types, callback, (IStagedFeatureBatchProvider)provider);
+        else
+            request = new TileRequest(x, y, zoomLevel, types, callback)
+            {
+                @Override
+                protected boolean load(VectorTileRendered.TileType type, FeatureBatch batch)
+                {
+                    return provider.getFeatureBatch(getX(), getY(), getZoomLevel(), type, batch);
+                }
+            };
+
+        fetchScheduler.execute(request);
+        return request;
+    }
+
+    /**
+     * Call on the loader thread before handing a tile to the GL thread, waits while too many uploads are pending.
+     * @return start time to pass to endUpload()
+     */
+    public long beginUpload()
+    {
+        try
+        {
+            uploadStage.awaitCapacity(MAX_PENDING_UPLOADS);
+        }
+        catch (InterruptedException e)
+        {
+            //The tile is complete anyway, don't hold it back
+            Thread.currentThread().interrupt();
+        }
+
+        uploadStage.enqueue();
+        return System.nanoTime();
+    }
+
+    /**
+     * Call on the GL thread once a tile announced with beginUpload() has been uploaded or dropped.
+     */
+    public void endUpload(long start)
+    {
+        uploadStage.dequeue();
+        uploadStage.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Cancels all loads and stops the threads of both pools. The pipeline can't be used afterwards.
+     */
+    public void shutdown()
+    {
+        fetchScheduler.shutdown();
+        cpuScheduler.shutdown();
+    }
+
+    /**
+     * @return true if the threads of both pools have stopped within the timeout
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        return fetchScheduler.awaitTermination(millis)
+                && cpuScheduler.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()));
+    }
+
+    public int getFetchQueueDepth()
+    {
+        return fetchScheduler.getPendingCount();
+    }
+
+    public int getCpuQueueDepth()
+    {
+        return cpuScheduler.getPendingCount();
+    }
+
+    public int getUploadQueueDepth()
+    {
+        return uploadStage.getQueueDepth();
+    }
+
+    public Stage getFetchStage()
+    {
+        return fetchStage;
+    }
+
+    public Stage getDecodeStage()
+    {
+        return decodeStage;
+    }
+
+    public Stage getTessellateStage()
+    {
+        return tessellateStage;
+    }
+
+    public Stage getUploadStage()
+    {
+        return uploadStage;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "queued " + getFetchQueueDepth() + " fetch / " + getCpuQueueDepth() + " cpu / " + getUploadQueueDepth() + " upload; "
+                + fetchStage + "; " + decodeStage + "; " + tessellateStage + "; " + uploadStage;
+    }
+
+    private class StagedRequest extends TileRequest
+    {
+        private final IStagedFeatureBatchProvider stagedProvider;
+        private final ByteBuffer[] payloads;
+        private boolean fetched = false;
+
+        StagedRequest(int x, int y, int zoomLevel, VectorTileRendered.TileType[] types, Callback callback, IStagedFeatureBatchProvider provider)
+        {
+            super(x, y, zoomLevel, types, callback);
+            this.stagedProvider = provider;
+            this.payloads = new ByteBuffer[types.length];
+        }
+
+        @Override
+        protected void runStage()
+        {
+            if (!fetched)
+                fetch();
+            else
+                process();
+        }
+
+        private void fetch()
+        {
+            long start = System.nanoTime();
+            VectorTileRendered.TileType[] types = getTypes();
+
+            for (int i = 0; i < types.length && !isCancelled(); i++)
+            {
+                try
+                {
+                    payloads[i] = stagedProvider.fetchPayload(getX(), getY(), getZoomLevel(), types[i]);
+                }
+                catch (IOException e)
+                {
+                    //Socket timeouts are InterruptedIOExceptions as well, only the request knows if it was cancelled
+                    if (isCancelled())
+                        return;
+
+                    //Delivered as a failed layer by the next stage
+                    Log.w("TileLoadPipeline", "Couldn't fetch " + getZoomLevel() + "/" + getX() + "/" + getY() + " " + types[i] + ": " + e.getMessage());
+                }
+            }
+
+            fetchStage.record(System.nanoTime() - start);
+
+            try
+            {
+                cpuScheduler.awaitCapacity(maxDecodeBacklog);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            if (!isCancelled())
+            {
+                fetched = true;
+                continueIn(cpuScheduler);
+            }
+        }
+
+        private void process()
+        {
+            FeatureBatch batch = getFeatureBatch();
+            VectorTileRendered.TileType[] types = getTypes();
+            long decodeNanos = 0;
+            long tessellateNanos = 0;
+
+            for (int i = 0; i < types.length && !isCancelled(); i++)
+            {
+                long start = System.nanoTime();
+                boolean success = payloads[i] != null && load(types[i], batch);
+                payloads[i] = null;
+                long decoded = System.nanoTime();
+                decodeNanos += decoded - start;
+
+                if (isCancelled())
+                    break;
+
+                if (success)
+                    getCallback().onFeatureBatch(this, types[i], batch);
+                else
+                    getCallback().onFailed(this, types[i]);
+
+                tessellateNanos += System.nanoTime() - decoded;
+            }
+
+            decodeStage.record(decodeNanos);
+            tessellateStage.record(tessellateNanos);
+        }
+
+        @Override
+        protected boolean load(VectorTileRendered.TileType type, FeatureBatch batch)
+        {
+            int i = 0;
+            while (getTypes()[i] != type)
+                i++;
+
+            return stagedProvider.decodePayload(payloads[i], getX(), getY(), getZoomLevel(), type, batch);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.robertlasch.ptmap.app;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor with a fixed number of loader threads that always runs the most important pending tile next.
+ *
+ * Priorities are not fixed when a request is queued: every time a thread becomes free the priority
+ * of all pending requests is evaluated again, so requests follow the camera while they wait.
+ * Cancelled requests are dropped from the queue without being run. Runnables that aren't
+ * TileRequests run before any tile.
+ */
+public class TileLoadScheduler implements Executor
+{
+    public interface PriorityFunction
+    {
+        /**
+         * @return priority of the request, lower values are loaded first
+         */
+        public double getPriority(TileRequest request);
+    }
+
+    private final PriorityFunction priorityFunction;
+    private final ArrayList<Runnable> pending = new ArrayList<Runnable>();
+    private final Thread[] threads;
+    //What each thread is running, guarded by pending
+    private final Runnable[] running;
+    private boolean shutdown = false;
+
+    public TileLoadScheduler(int threadCount, PriorityFunction priorityFunction)
+    {
+        this("TileLoader", threadCount, priorityFunction);
+    }
+
+    public TileLoadScheduler(String name, int threadCount, PriorityFunction priorityFunction)
+    {
+        this.priorityFunction = priorityFunction;
+        this.threads = new Thread[threadCount];
+        this.running = new Runnable[threadCount];
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work(index);
+                }
+            }, name + "-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        synchronized (pending)
+        {
+            if (!shutdown)
+            {
+                pending.add(command);
+                pending.notifyAll();
+                return;
+            }
+        }
+
+        cancel(command);
+    }
+
+    private void work(int index)
+    {
+        try
+        {
+            while (true)
+            {
+                Runnable next;
+                try
+                {
+                    next = take(index);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                if (next == null)
+                    return;
+
+                try
+                {
+                    next.run();
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+
+                synchronized (pending)
+                {
+                    running[index] = null;
+                }
+            }
+        }
+        finally
+        {
+            TileInflater.release();
+        }
+    }
+
+    /**
+     * @return the next runnable for the thread, null once the scheduler has been shut down
+     */
+    private Runnable take(int index) throws InterruptedException
+    {
+        synchronized (pending)
+        {
+            while (true)
+            {
+                if (shutdown)
+                    return null;
+
+                int best = -1;
+                double bestPriority = Double.POSITIVE_INFINITY;
+
+                for (int i = pending.size() - 1; i >= 0; i--)
+                {
+                    Runnable command = pending.get(i);
+
+                    if (!(command instanceof TileRequest))
+                    {
+                        best = i;
+                        break;
+                    }
+
+                    TileRequest request = (TileRequest)command;
+                    if (request.isDone())
+                    {
+                        //The last entry moves to i, it may be the best one so far
+                        if (best == pending.size() - 1)
+                            best = i;
+                        removeAt(i);
+                        continue;
+                    }
+
+                    double priority = priorityFunction.getPriority(request);
+                    if (best < 0 || priority < bestPriority)
+                    {
+                        best = i;
+                        bestPriority = priority;
+                    }
+                }
+
+                if (best >= 0)
+                {
+                    running[index] = removeAt(best);
+                    return running[index];
+                }
+
+                pending.wait();
+            }
+        }
+    }
+
+    /**
+     * Removes without shifting, the order of the list doesn't matter.
+     */
+    private Runnable removeAt(int index)
+    {
+        Runnable command = pending.get(index);
+        int last = pending.size() - 1;
+        pending.set(index, pending.get(last));
+        pending.remove(last);
+        //Wake producers waiting in awaitCapacity()
+        pending.notifyAll();
+        return command;
+    }
+
+    /**
+     * Blocks until fewer than maxPending runnables are waiting, so producers can't run arbitrarily far ahead.
+     */
+    public void awaitCapacity(int maxPending) throws InterruptedException
+    {
+        synchronized (pending)
+        {
+            while (pending.size() >= maxPending)
+                pending.wait();
+        }
+    }
+
+    /**
+     * Cancels the pending and running tiles and stops the threads once they return from what they
+     * are running, which gets interrupted. Tiles executed afterwards are cancelled right away.
+     */
+    public void shutdown()
+    {
+        ArrayList<Runnable> dropped;
+        ArrayList<Runnable> started = new ArrayList<Runnable>();
+        synchronized (pending)
+        {
+            shutdown = true;
+            dropped = new ArrayList<Runnable>(pending);
+            pending.clear();
+            pending.notifyAll();
+
+            for (Runnable command : running)
+            {
+                if (command != null)
+                    started.add(command);
+            }
+        }
+
+        //Interrupted without being cancelled, a tile would fail its layer and go on with the next one
+        for (int i = 0; i < started.size(); i++)
+        {
+            if (started.get(i) instanceof TileRequest)
+                ((TileRequest)started.get(i)).cancel();
+        }
+
+        for (Thread thread : threads)
+            thread.interrupt();
+
+        for (int i = 0; i < dropped.size(); i++)
+            cancel(dropped.get(i));
+    }
+
+    private static void cancel(Runnable command)
+    {
+        if (!(command instanceof TileRequest))
+            return;
+
+        //Requests waiting for a later stage have been started, running them reports the cancellation
+        TileRequest request = (TileRequest)command;
+        if (request.cancel() && request.wasCancelledWhileStarted())
+            request.run();
+    }
+
+    /**
+     * @return true if all threads have stopped within the timeout
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread thread : threads)
+        {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    public int getPendingCount()
+    {
+        synchronized (pending)
+        {
+            return pending.size();
+        }
+    }
+
+    public int getThreadCount()
+    {
+        return threads.length;
+    }
+}
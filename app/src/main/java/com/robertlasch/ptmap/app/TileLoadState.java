@@ -0,0 +1,130 @@
+package com.robertlasch.ptmap.app;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lifecycle of a tile node, advanced by compare-and-set, so the GL thread and the loader threads
+ * agree on it without locks:
+ * EMPTY -> QUEUED -> FETCHING -> DECODED -> UPLOADING -> READY, back to EMPTY when the load is
+ * abandoned or the buffers are unloaded, and EVICTED once the tile is removed from the tree.
+ * Only the transition out of EMPTY starts a load, so a tile is never loaded twice at the same time.
+ * Nothing leaves EVICTED.
+ */
+public class TileLoadState
+{
+    public static final int EMPTY = 0;
+    public static final int QUEUED = 1;
+    public static final int FETCHING = 2;
+    public static final int DECODED = 3;
+    public static final int UPLOADING = 4;
+    public static final int READY = 5;
+    public static final int EVICTED = 6;
+
+    private final AtomicInteger state = new AtomicInteger(EMPTY);
+
+    /**
+     * @return one of EMPTY, QUEUED, FETCHING, DECODED, UPLOADING, READY and EVICTED
+     */
+    public int get()
+    {
+        return state.get();
+    }
+
+    /**
+     * @return true if the caller won the tile and has to start its load
+     */
+    public boolean queue()
+    {
+        return state.compareAndSet(EMPTY, QUEUED);
+    }
+
+    /**
+     * Completes a tile that has nothing of its own to load.
+     */
+    public boolean completeWithoutLoad()
+    {
+        return state.compareAndSet(EMPTY, READY);
+    }
+
+    /**
+     * Called by the loader thread that picked the load up.
+     */
+    public boolean start()
+    {
+        return state.compareAndSet(QUEUED, FETCHING);
+    }
+
+    /**
+     * Called for every decoded layer, only the first one advances the state.
+     * @return false if the load has been abandoned or the tile evicted meanwhile
+     */
+    public boolean decoded()
+    {
+        return state.compareAndSet(FETCHING, DECODED) || state.get() == DECODED;
+    }
+
+    /**
+     * Hands the staged layers to the GL thread. The staged data written before happens-before
+     * everything the GL thread does after it has seen UPLOADING.
+     * @return false if the load has been abandoned or the tile evicted meanwhile
+     */
+    public boolean publish()
+    {
+        return state.compareAndSet(DECODED, UPLOADING);
+    }
+
+    /**
+     * Called on the GL thread once the buffers exist.
+     * @return false if the tile has been evicted meanwhile
+     */
+    public boolean ready()
+    {
+        return state.compareAndSet(UPLOADING, READY);
+    }
+
+    /**
+     * Resets an unfinished load, so the tile can be loaded again. Uploads already handed to the
+     * GL thread are left to finish.
+     * @return true if the tile went back to EMPTY
+     */
+    public boolean abandon()
+    {
+        while (true)
+        {
+            int s = state.get();
+            if (s != QUEUED && s != FETCHING && s != DECODED)
+                return false;
+            if (state.compareAndSet(s, EMPTY))
+                return true;
+        }
+    }
+
+    /**
+     * @return true if the tile was loaded and its buffers have to be freed
+     */
+    public boolean unload()
+    {
+        return state.compareAndSet(READY, EMPTY);
+    }
+
+    public void evict()
+    {
+        state.set(EVICTED);
+    }
+
+    public boolean isLoaded()
+    {
+        return state.get() == READY;
+    }
+
+    public boolean isLoading()
+    {
+        int s = state.get();
+        return s >= QUEUED && s <= UPLOADING;
+    }
+
+    public boolean isEvicted()
+    {
+        return state.get() == EVICTED;
+    }
+}
@@ -0,0 +1,42 @@
+package com.robertlasch.ptmap.app;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Makes a map based ITileProvider usable as an IFeatureBatchProvider.
+ */
+public class TileProviderBatchAdapter implements IFeatureBatchProvider
+{
+    private final ITileProvider provider;
+
+    public TileProviderBatchAdapter(ITileProvider provider)
+    {
+        this.provider = provider;
+    }
+
+    public static IFeatureBatchProvider wrap(ITileProvider provider)
+    {
+        if (provider instanceof IFeatureBatchProvider)
+            return (IFeatureBatchProvider)provider;
+
+        return new TileProviderBatchAdapter(provider);
+    }
+
+    @Override
+    public boolean getFeatureBatch(int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch)
+    {
+        batch.clear();
+
+        HashMap<Geometry, HashMap<String, String>> data = provider.getTile(x, y, zoomLevel, type);
+        if (data == null)
+            return false;
+
+        for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
+            batch.addFeature(entry.getKey(), entry.getValue());
+
+        return true;
+    }
+}
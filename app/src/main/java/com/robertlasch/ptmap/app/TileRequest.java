@@ -0,0 +1,298 @@
+package com.robertlasch.ptmap.app;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of an asynchronous tile load started through an IAsyncFeatureBatchProvider.
+ *
+ * One request loads all requested layers of a tile one after the other, in the given order, and
+ * delivers each layer as soon as it is loaded. Cancelling a request that hasn't been started yet
+ * keeps it from ever running. Cancelling a running request interrupts its thread and disconnects
+ * the HTTP connection it currently reads from, so blocking socket reads, the inflater and the
+ * decoder all stop early; no further layers are loaded and onCancelled() is invoked instead of
+ * onFinished(). Callbacks are expected to check isCancelled() between their own stages.
+ *
+ * Subclasses may split the work into stages running on different executors, see continueIn().
+ */
+public abstract class TileRequest implements Runnable
+{
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    private static final ThreadLocal<TileRequest> current = new ThreadLocal<TileRequest>();
+
+    private static final ThreadLocal<FeatureBatch> featureBatches = new ThreadLocal<FeatureBatch>()
+    {
+        @Override
+        protected FeatureBatch initialValue()
+        {
+            return new FeatureBatch();
+        }
+    };
+
+    public interface Callback
+    {
+        /**
+         * Called on the loading thread when a thread picks the request up, before any layer is loaded.
+         */
+        public void onStarted(TileRequest request);
+
+        /**
+         * Called on the loading thread for every layer. The batch is only valid during the call.
+         */
+        public void onFeatureBatch(TileRequest request, VectorTileRendered.TileType type, FeatureBatch batch);
+
+        public void onFailed(TileRequest request, VectorTileRendered.TileType type);
+
+        /**
+         * Called on the loading thread after all layers have been delivered.
+         */
+        public void onFinished(TileRequest request);
+
+        /**
+         * Called on the loading thread when a started request was cancelled before all layers were delivered.
+         */
+        public void onCancelled(TileRequest request);
+    }
+
+    private final int x, y, zoomLevel;
+    private final VectorTileRendered.TileType[] types;
+    private final Callback callback;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    private Thread runner;
+    private volatile HttpURLConnection connection;
+    private volatile boolean cancelledWhileStarted = false;
+    private volatile boolean awaitingStage = false;
+    private Executor nextStage;
+
+    public TileRequest(int x, int y, int zoomLevel, VectorTileRendered.TileType[] types, Callback callback)
+    {
+        this.x = x;
+        this.y = y;
+        this.zoomLevel = zoomLevel;
+        this.types = types;
+        this.callback = callback;
+    }
+
+    /**
+     * @return the request being executed by the calling thread or null
+     */
+    public static TileRequest current()
+    {
+        return current.get();
+    }
+
+    /**
+     * Loads one layer of the tile synchronously into the batch.
+     * @return false if the layer couldn't be loaded
+     */
+    protected abstract boolean load(VectorTileRendered.TileType type, FeatureBatch batch);
+
+    @Override
+    public void run()
+    {
+        boolean firstStage = !awaitingStage;
+
+        if (!firstStage)
+        {
+            awaitingStage = false;
+
+            //Cancelled while waiting for a thread of the next stage
+            if (isCancelled())
+            {
+                callback.onCancelled(this);
+                return;
+            }
+        }
+        else if (!state.compareAndSet(PENDING, RUNNING))
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            runner = Thread.currentThread();
+        }
+        current.set(this);
+
+        Executor next;
+        try
+        {
+            if (firstStage)
+                callback.onStarted(this);
+
+            runStage();
+
+            next = nextStage;
+            nextStage = null;
+
+            if (next != null)
+                awaitingStage = true;
+            else if (state.compareAndSet(RUNNING, DONE))
+                callback.onFinished(this);
+            else
+                callback.onCancelled(this);
+        }
+        finally
+        {
+            current.remove();
+            connection = null;
+
+            synchronized (this)
+            {
+                runner = null;
+            }
+            //Don't leak the interrupt of a late cancel into the next task of the pool thread
+            Thread.interrupted();
+        }
+
+        if (next != null)
+            next.execute(this);
+    }
+
+    /**
+     * Does the work of the current stage. By default all layers are loaded and delivered in one stage.
+     */
+    protected void runStage()
+    {
+        FeatureBatch batch = getFeatureBatch();
+
+        for (VectorTileRendered.TileType type : types)
+        {
+            boolean success = load(type, batch);
+            if (isCancelled())
+                break;
+
+            if (success)
+                callback.onFeatureBatch(this, type, batch);
+            else
+                callback.onFailed(this, type);
+        }
+    }
+
+    /**
+     * Lets the request continue with another call of runStage() on the executor once the current stage returns.
+     * A request cancelled in between reports it as soon as a thread of the executor picks it up.
+     */
+    protected final void continueIn(Executor executor)
+    {
+        nextStage = executor;
+    }
+
+    /**
+     * @return the batch of the calling thread, reused by all requests the thread runs
+     */
+    protected static FeatureBatch getFeatureBatch()
+    {
+        return featureBatches.get();
+    }
+
+    /**
+     * Cancels the request unless it is already done.
+     * @return false if all layers have already been delivered
+     */
+    public boolean cancel()
+    {
+        while (true)
+        {
+            int s = state.get();
+
+            if (s == CANCELLED)
+                return true;
+            if (s == DONE)
+                return false;
+
+            if (state.compareAndSet(s, CANCELLED))
+            {
+                cancelledWhileStarted = s != PENDING;
+                break;
+            }
+        }
+
+        synchronized (this)
+        {
+            if (runner != null)
+                runner.interrupt();
+        }
+
+        HttpURLConnection activeConnection = connection;
+        if (activeConnection != null)
+            activeConnection.disconnect();
+
+        return true;
+    }
+
+    /**
+     * Registers the connection the request currently reads from, so cancel() can abort it.
+     */
+    public void setConnection(HttpURLConnection connection)
+    {
+        this.connection = connection;
+
+        if (connection != null && isCancelled())
+            connection.disconnect();
+    }
+
+    public boolean isCancelled()
+    {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * @return true if the request was cancelled after it had been started, i.e. some work was wasted
+     */
+    public boolean wasCancelledWhileStarted()
+    {
+        return cancelledWhileStarted;
+    }
+
+    /**
+     * @return true if no thread has to run the request anymore
+     */
+    public boolean isDone()
+    {
+        int s = state.get();
+        return s == DONE || (s == CANCELLED && !awaitingStage);
+    }
+
+    public int getX()
+    {
+        return x;
+    }
+
+    public int getY()
+    {
+        return y;
+    }
+
+    public int getZoomLevel()
+    {
+        return zoomLevel;
+    }
+
+    public VectorTileRendered.TileType[] getTypes()
+    {
+        return types;
+    }
+
+    /**
+     * @return importance of the most important layer of the request, lower is more important
+     */
+    public int getImportance()
+    {
+        int importance = Integer.MAX_VALUE;
+        for (VectorTileRendered.TileType type : types)
+            importance = Math.min(importance, type.importance);
+        return importance;
+    }
+
+    public Callback getCallback()
+    {
+        return callback;
+    }
+}
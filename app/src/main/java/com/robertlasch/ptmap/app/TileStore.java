@@ -0,0 +1,175 @@
+package com.robertlasch.ptmap.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Index of all tiles of the tree by their packed TileKey, so single tiles and whole tile ranges can be
+ * looked up without walking down from the roots.
+ *
+ * Open addressing with linear probing over parallel key and value arrays, no objects are allocated per
+ * entry. Keys use the zoom levels of the tree and layer 0, every tile holds all layers. Not thread safe, the tree is only changed on the GL thread.
+ */
+public class TileStore
+{
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 256;
+
+    private long[] keys;
+    private VectorTileRendered[] values;
+    private int mask;
+    private int shift;
+    private int size = 0;
+
+    public TileStore()
+    {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new VectorTileRendered[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long key)
+    {
+        //Fibonacci hashing, neighbouring tiles only differ in a few low bits
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    public VectorTileRendered get(long key)
+    {
+        for (int i = slot(key); ; i = (i + 1) & mask)
+        {
+            if (keys[i] == key)
+                return values[i];
+            if (keys[i] == EMPTY)
+                return null;
+        }
+    }
+
+    public boolean contains(long key)
+    {
+        for (int i = slot(key); ; i = (i + 1) & mask)
+        {
+            if (keys[i] == key)
+                return true;
+            if (keys[i] == EMPTY)
+                return false;
+        }
+    }
+
+    public VectorTileRendered get(int zoomLevel, int x, int y)
+    {
+        return get(TileKey.pack(zoomLevel, x, y, 0));
+    }
+
+    public void put(long key, VectorTileRendered tile)
+    {
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+
+        if (keys[i] == EMPTY)
+            size++;
+        keys[i] = key;
+        values[i] = tile;
+    }
+
+    public VectorTileRendered remove(long key)
+    {
+        int i = slot(key);
+        while (keys[i] != key)
+        {
+            if (keys[i] == EMPTY)
+                return null;
+            i = (i + 1) & mask;
+        }
+
+        VectorTileRendered removed = values[i];
+
+        //Shift the following entries of the cluster back instead of leaving a tombstone
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = slot(keys[j]);
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between)
+            {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+
+        keys[i] = EMPTY;
+        values[i] = null;
+        size--;
+
+        return removed;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        VectorTileRendered[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != EMPTY)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    /**
+     * Adds the existing tiles within the (inclusive) tile range to the list.
+     * @return number of tiles added
+     */
+    public int collectRange(int zoomLevel, int minX, int minY, int maxX, int maxY, ArrayList<VectorTileRendered> out)
+    {
+        int found = 0;
+
+        for (int y = minY; y <= maxY; y++)
+        {
+            for (int x = minX; x <= maxX; x++)
+            {
+                VectorTileRendered tile = get(TileKey.pack(zoomLevel, x, y, 0));
+                if (tile != null)
+                {
+                    out.add(tile);
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    public void collectAll(ArrayList<VectorTileRendered> out)
+    {
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i] != EMPTY)
+                out.add(values[i]);
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+}
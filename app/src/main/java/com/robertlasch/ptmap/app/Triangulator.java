@@ -2,7 +2,6 @@ package com.robertlasch.ptmap.app;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Triangle;
 
 import java.util.List;
@@ -39,175 +38,172 @@ public class Triangulator
         }
         else if (line.getGeometryType().equals("LineString"))
         {
-            LineString ls = (LineString)line;
+            Coordinate[] coordinates = line.getCoordinates();
+            double[] xy = new double[coordinates.length * 2];
+            for (int i = 0; i < coordinates.length; i++)
+            {
+                xy[i * 2] = coordinates[i].x;
+                xy[i * 2 + 1] = coordinates[i].y;
+            }
 
-            Coordinate[] coordinates = ls.getCoordinates();
+            return lineToTriangles(xy, 0, coordinates.length, cap, lineWidth);
+        }
+        else
+            return new Triangle[] {};
+    }
 
-            int triangleCount = (coordinates.length - 1) * 2;
-            if (cap == LineCap.Round)
-                triangleCount += 2 * ROUNDCAPSEGMENTS; //Round cap on both sides
-            int arrayIndex = -1;
-            Triangle[] result = new Triangle[triangleCount];
-            float widthHalf = lineWidth / 2;
+    /**
+     * Triangulates the line made up of the points [from, to) of an interleaved x/y coordinate array.
+     */
+    public static Triangle[] lineToTriangles(double[] xy, int from, int to, LineCap cap, float lineWidth)
+    {
+        if (cap == LineCap.Square)
+            throw new UnsupportedOperationException("This LineCap was not implemented yet!");
 
-            Coordinate lastS0 = null, lastS1 = null;
-            double lastLength12 = Double.NaN, lastOffset12x = Double.NaN, lastOffset12y = Double.NaN;
-            double lastSlope12 = Double.NaN;
+        int pointCount = to - from;
+        if (pointCount < 2)
+            return new Triangle[] {};
 
-            for(int k = 0; k < coordinates.length - 1; k++)
+        int triangleCount = (pointCount - 1) * 2;
+        if (cap == LineCap.Round)
+            triangleCount += 2 * ROUNDCAPSEGMENTS; //Round cap on both sides
+        int arrayIndex = -1;
+        Triangle[] result = new Triangle[triangleCount];
+        float widthHalf = lineWidth / 2;
+
+        Coordinate lastS0 = null, lastS1 = null;
+        double lastLength12 = Double.NaN, lastOffset12x = Double.NaN, lastOffset12y = Double.NaN;
+        double lastSlope12 = Double.NaN;
+
+        for(int k = from; k < to - 1; k++)
+        {
+            double p0x = xy[k * 2], p0y = xy[k * 2 + 1];
+            double p1x = xy[k * 2 + 2], p1y = xy[k * 2 + 3];
+
+            if (k + 2 != to)
             {
-                Coordinate p0 = coordinates[k];
-                Coordinate p1 = coordinates[k + 1];
-                Coordinate p2 = (k + 2) != coordinates.length ? coordinates[k + 2] : null;
+                double p2x = xy[k * 2 + 4], p2y = xy[k * 2 + 5];
 
-                if (p2 != null)
+                if (Double.isNaN(lastLength12) || Double.isNaN(lastOffset12x) || Double.isNaN(lastOffset12y))
                 {
-                    if (Double.isNaN(lastLength12) || Double.isNaN(lastOffset12x) || Double.isNaN(lastOffset12y))
-                    {
-                        lastLength12 = Math.sqrt(Math.pow(p1.x - p0.x, 2) + Math.pow(p1.y - p0.y, 2));
-                        lastOffset12x =  (p1.y - p0.y) / lastLength12;
-                        lastOffset12y = -(p1.x - p0.x) / lastLength12;
-                    }
-
-                    //Calculate length of the segments
-                    double length12 = Math.sqrt(Math.pow(p2.x - p1.x, 2) + Math.pow(p2.y - p1.y, 2));
-                    //Calculate offsets for new linear funtions left and right of the line
-                    double offset12x, offset12y;
-                    offset12x =  (p2.y - p1.y) / length12;
-                    offset12y = -(p2.x - p1.x) / length12;
-                    //Calculate slopes
-                    if (Double.isNaN(lastSlope12))
-                    {
-                        lastSlope12 = (p1.y - p0.y) / (p1.x - p0.x);
-                    }
-                    double slope12 = (p2.y - p1.y) / (p2.x - p1.x);
-                    //Calculate points of the four equations
-                    double pointEquation0x = p0.x + lastOffset12x * widthHalf;
-                    double pointEquation0y = p0.y + lastOffset12y * widthHalf;
-                    double pointEquation1x = p0.x + lastOffset12x * -widthHalf;
-                    double pointEquation1y = p0.y + lastOffset12y * -widthHalf;
-                    double pointEquation2x = p2.x + offset12x * widthHalf;
-                    double pointEquation2y = p2.y + offset12y * widthHalf;
-                    double pointEquation3x = p2.x + offset12x * -widthHalf;
-                    double pointEquation3y = p2.y + offset12y * -widthHalf;
-                    //Calculate offsets of the four equations
-                    double a0 = pointEquation0y - lastSlope12 * pointEquation0x;  //Equation0: f:x = slope01 * x + a0
-                    double a1 = pointEquation1y - lastSlope12 * pointEquation1x;  //Equation1: f:x = slope01 * x + a1
-                    double a2 = pointEquation2y - slope12 * pointEquation2x;  //Equation2: f:x = slope12 * x + a2
-                    double a3 = pointEquation3y - slope12 * pointEquation3x;  //Equation3: f:x = slope12 * x + a3
-
-                    if (lastS0 == null || lastS1 == null)
-                    {
-                        lastS0 = new Coordinate(pointEquation0x, pointEquation0y);
-                        lastS1 = new Coordinate(pointEquation1x, pointEquation1y);
-
-                        if (cap == LineCap.Round)
-                        {
-                            Coordinate prevPoint = null;
-
-                            double alpha = Math.atan(lastSlope12);
-                            for (int i = 0; i <= ROUNDCAPSEGMENTS; i++)
-                            {
-                                double angle = alpha + Math.PI / 2 + (Math.PI * 2 / ROUNDCAPSEGMENTS) * i;
-                                Coordinate point = new Coordinate(p0.x + Math.cos(angle) * widthHalf, p0.y + Math.sin(angle) * widthHalf);
-
-                                if (prevPoint != null)
-                                    result[arrayIndex += 1] = new Triangle(prevPoint, point, p0);
-
-                                prevPoint = point;
-                            }
-                        }
-                    }
-
-                    double s0x = (a2 - a0) / (lastSlope12 - slope12);
-                    double s1x = (a3 - a1) / (lastSlope12 - slope12);
-                    double s0y = lastSlope12 * s0x + a0;
-                    double s1y = lastSlope12 * s1x + a1;
-
-                    Coordinate s0 = new Coordinate(s0x, s0y);
-                    Coordinate s1 = new Coordinate(s1x, s1y);
-
-                    result[arrayIndex += 1] = new Triangle(lastS0, lastS1, s0);
-                    result[arrayIndex += 1] = new Triangle(lastS1, s1, s0);
-
-                    lastLength12 = length12;
-                    lastOffset12x = offset12x;
-                    lastOffset12y = offset12y;
-                    lastSlope12 = slope12;
-                    lastS0 = s0;
-                    lastS1 = s1;
+                    lastLength12 = Math.sqrt(Math.pow(p1x - p0x, 2) + Math.pow(p1y - p0y, 2));
+                    lastOffset12x =  (p1y - p0y) / lastLength12;
+                    lastOffset12y = -(p1x - p0x) / lastLength12;
                 }
-                else
-                {
-                    double length01 = Math.sqrt(Math.pow(p1.x - p0.x, 2) + Math.pow(p1.y - p0.y, 2));
 
-                    double offset01x =  (p1.y - p0.y) / length01;
-                    double offset01y = -(p1.x - p0.x) / length01;
+                //Calculate length of the segments
+                double length12 = Math.sqrt(Math.pow(p2x - p1x, 2) + Math.pow(p2y - p1y, 2));
+                //Calculate offsets for new linear funtions left and right of the line
+                double offset12x, offset12y;
+                offset12x =  (p2y - p1y) / length12;
+                offset12y = -(p2x - p1x) / length12;
+                //Calculate slopes
+                if (Double.isNaN(lastSlope12))
+                {
+                    lastSlope12 = (p1y - p0y) / (p1x - p0x);
+                }
+                double slope12 = (p2y - p1y) / (p2x - p1x);
+                //Calculate points of the four equations
+                double pointEquation0x = p0x + lastOffset12x * widthHalf;
+                double pointEquation0y = p0y + lastOffset12y * widthHalf;
+                double pointEquation1x = p0x + lastOffset12x * -widthHalf;
+                double pointEquation1y = p0y + lastOffset12y * -widthHalf;
+                double pointEquation2x = p2x + offset12x * widthHalf;
+                double pointEquation2y = p2y + offset12y * widthHalf;
+                double pointEquation3x = p2x + offset12x * -widthHalf;
+                double pointEquation3y = p2y + offset12y * -widthHalf;
+                //Calculate offsets of the four equations
+                double a0 = pointEquation0y - lastSlope12 * pointEquation0x;  //Equation0: f:x = slope01 * x + a0
+                double a1 = pointEquation1y - lastSlope12 * pointEquation1x;  //Equation1: f:x = slope01 * x + a1
+                double a2 = pointEquation2y - slope12 * pointEquation2x;  //Equation2: f:x = slope12 * x + a2
+                double a3 = pointEquation3y - slope12 * pointEquation3x;  //Equation3: f:x = slope12 * x + a3
+
+                if (lastS0 == null || lastS1 == null)
+                {
+                    lastS0 = new Coordinate(pointEquation0x, pointEquation0y);
+                    lastS1 = new Coordinate(pointEquation1x, pointEquation1y);
 
-                    double s0x = p1.x + offset01x *  widthHalf;
-                    double s0y = p1.y + offset01y *  widthHalf;
-                    double s1x = p1.x + offset01x * -widthHalf;
-                    double s1y = p1.y + offset01y * -widthHalf;
+                    if (cap == LineCap.Round)
+                        arrayIndex = roundCap(result, arrayIndex, p0x, p0y, Math.atan(lastSlope12), widthHalf);
+                }
 
-                    double slope01 = (p1.y - p0.y) / (p1.x - p0.x);
+                double s0x = (a2 - a0) / (lastSlope12 - slope12);
+                double s1x = (a3 - a1) / (lastSlope12 - slope12);
+                double s0y = lastSlope12 * s0x + a0;
+                double s1y = lastSlope12 * s1x + a1;
 
-                    if (lastS0 == null || lastS1 == null)
-                    {
-                        double pointEquation0x = p0.x + offset01x *  widthHalf;
-                        double pointEquation0y = p0.y + offset01y *  widthHalf;
-                        double pointEquation1x = p0.x + offset01x * -widthHalf;
-                        double pointEquation1y = p0.y + offset01y * -widthHalf;
+                Coordinate s0 = new Coordinate(s0x, s0y);
+                Coordinate s1 = new Coordinate(s1x, s1y);
 
-                        lastS0 = new Coordinate(pointEquation0x, pointEquation0y);
-                        lastS1 = new Coordinate(pointEquation1x, pointEquation1y);
+                result[arrayIndex += 1] = new Triangle(lastS0, lastS1, s0);
+                result[arrayIndex += 1] = new Triangle(lastS1, s1, s0);
 
-                        if (cap == LineCap.Round)
-                        {
-                            Coordinate prevPoint = null;
+                lastLength12 = length12;
+                lastOffset12x = offset12x;
+                lastOffset12y = offset12y;
+                lastSlope12 = slope12;
+                lastS0 = s0;
+                lastS1 = s1;
+            }
+            else
+            {
+                double length01 = Math.sqrt(Math.pow(p1x - p0x, 2) + Math.pow(p1y - p0y, 2));
 
-                            double alpha = Math.atan(slope01);
-                            for (int i = 0; i <= ROUNDCAPSEGMENTS; i++)
-                            {
-                                double angle = alpha + Math.PI / 2 + (Math.PI * 2 / ROUNDCAPSEGMENTS) * i;
-                                Coordinate point = new Coordinate(p0.x + Math.cos(angle) * widthHalf, p0.y + Math.sin(angle) * widthHalf);
+                double offset01x =  (p1y - p0y) / length01;
+                double offset01y = -(p1x - p0x) / length01;
 
-                                if (prevPoint != null)
-                                    result[arrayIndex += 1] = new Triangle(prevPoint, point, p0);
+                double s0x = p1x + offset01x *  widthHalf;
+                double s0y = p1y + offset01y *  widthHalf;
+                double s1x = p1x + offset01x * -widthHalf;
+                double s1y = p1y + offset01y * -widthHalf;
 
-                                prevPoint = point;
-                            }
-                        }
-                    }
+                double slope01 = (p1y - p0y) / (p1x - p0x);
 
-                    Coordinate s0 = new Coordinate(s0x, s0y);
-                    Coordinate s1 = new Coordinate(s1x, s1y);
+                if (lastS0 == null || lastS1 == null)
+                {
+                    double pointEquation0x = p0x + offset01x *  widthHalf;
+                    double pointEquation0y = p0y + offset01y *  widthHalf;
+                    double pointEquation1x = p0x + offset01x * -widthHalf;
+                    double pointEquation1y = p0y + offset01y * -widthHalf;
 
-                    result[arrayIndex += 1] = new Triangle(lastS0, lastS1, s0);
-                    result[arrayIndex += 1] = new Triangle(lastS1, s1, s0);
+                    lastS0 = new Coordinate(pointEquation0x, pointEquation0y);
+                    lastS1 = new Coordinate(pointEquation1x, pointEquation1y);
 
                     if (cap == LineCap.Round)
-                    {
-                        Coordinate prevPoint = null;
+                        arrayIndex = roundCap(result, arrayIndex, p0x, p0y, Math.atan(slope01), widthHalf);
+                }
 
-                        double alpha = Math.atan(slope01);
-                        for (int i = 0; i <= ROUNDCAPSEGMENTS; i++)
-                        {
-                            double angle = alpha + Math.PI / 2 + (Math.PI * 2 / ROUNDCAPSEGMENTS) * i;
-                            Coordinate point = new Coordinate(p1.x + Math.cos(angle) * widthHalf, p1.y + Math.sin(angle) * widthHalf);
+                Coordinate s0 = new Coordinate(s0x, s0y);
+                Coordinate s1 = new Coordinate(s1x, s1y);
 
-                            if (prevPoint != null)
-                                result[arrayIndex += 1] = new Triangle(prevPoint, point, p1);
+                result[arrayIndex += 1] = new Triangle(lastS0, lastS1, s0);
+                result[arrayIndex += 1] = new Triangle(lastS1, s1, s0);
 
-                            prevPoint = point;
-                        }
-                    }
-                }
+                if (cap == LineCap.Round)
+                    arrayIndex = roundCap(result, arrayIndex, p1x, p1y, Math.atan(slope01), widthHalf);
             }
+        }
 
-            return result;
+        return result;
+    }
+
+    private static int roundCap(Triangle[] result, int arrayIndex, double centerX, double centerY, double alpha, float widthHalf)
+    {
+        Coordinate center = new Coordinate(centerX, centerY);
+        Coordinate prevPoint = null;
+
+        for (int i = 0; i <= ROUNDCAPSEGMENTS; i++)
+        {
+            double angle = alpha + Math.PI / 2 + (Math.PI * 2 / ROUNDCAPSEGMENTS) * i;
+            Coordinate point = new Coordinate(centerX + Math.cos(angle) * widthHalf, centerY + Math.sin(angle) * widthHalf);
+
+            if (prevPoint != null)
+                result[arrayIndex += 1] = new Triangle(prevPoint, point, center);
+
+            prevPoint = point;
         }
-        else
-            return new Triangle[] {};
+
+        return arrayIndex;
     }
 
     public static Triangle[] combine(Triangle[] a, Triangle[] b){
@@ -6,59 +6,91 @@ import android.os.Debug;
 import android.util.Log;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.Triangle;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
 
-public class VectorTileRendered
+/**
+ * Node of the tile tree holding the GPU buffers of all layers of one tile.
+ *
+ * The lifecycle is a TileLoadState shared by the GL thread and the loader threads. The loader
+ * thread stages the buffers before it moves the tile to UPLOADING, which publishes them to the GL
+ * thread; only the GL thread moves it on to READY and reads the buffers after that.
+ */
+public class VectorTileRendered implements TileRequest.Callback
 {
     enum TileType
     {
-        RoadLines(0),
-        RoadLabels(1),
-        Buildings(2),
-        PointsOfInterest(3),
-        LandUsages(4),
-        WaterAreas(5),
-        Default(6);
+        RoadLines(0, 2),
+        RoadLabels(1, 4),
+        Buildings(2, 3),
+        PointsOfInterest(3, 5),
+        LandUsages(4, 1),
+        WaterAreas(5, 0),
+        Default(6, 6);
 
         public int id;
-        private TileType(int id)
+        //Load order of the layers, lower first: area layers make the map readable, points only decorate it
+        public int importance;
+        private TileType(int id, int importance)
         {
             this.id = id;
+            this.importance = importance;
         }
     }
 
+    //All layers of a tile, in the order they are loaded and drawn
+    public static final TileType[] LAYERS = new TileType[] {
+            TileType.WaterAreas,
+            TileType.LandUsages,
+            TileType.RoadLines,
+            TileType.Buildings,
+            TileType.RoadLabels,
+            TileType.PointsOfInterest
+    };
+
+    /**
+     * GPU buffers of one layer of the tile.
+     */
+    private static class Layer
+    {
+        final int[] buffers = new int[2];
+        int vertexCount = 0;
+        int gpuBytes = 0;
+        long drawnFrame = -1;
+        //Filled on the loader thread, released once uploaded
+        FloatBuffer vertexBuffer;
+        ByteBuffer colorBuffer;
+    }
+
     private int zoomLevel = 1; //Default root tile
     private int x, y; //The coordinates of the tile itself
+    private long key;
 
-    private TileType type;
     private VectorTileRenderer renderer;
     private VectorTileRendered parent;
     private VectorTileRendered northWestChild;
     private VectorTileRendered northEastChild;
     private VectorTileRendered southWestChild;
     private VectorTileRendered southEastChild;
+    //Only changed on the GL thread
     private boolean isSplit = false;
-    private boolean isLoaded = false;
-    private boolean isLoading = false;
+    private final TileLoadState state = new TileLoadState();
+    private volatile TileRequest loadRequest;
+    private long invisibleSince = 0;
+    private long lastVisibleFrame = 0;
+    private long selectedFrame = -1;
 
     private double xWest, xEast, yNorth, ySouth;
+    //Computed once, culling runs over every visited node in every frame
+    private final RectF bounds;
 
-    private FloatBuffer vertexBuffer;
-    private ArrayList<Float> triangleCoords = new ArrayList<Float>();
-    private ByteBuffer colorBuffer;
-    private ArrayList<Byte> colorValues = new ArrayList<Byte>();
+    private float[] triangleCoords = new float[1024];
+    private byte[] colorValues = new byte[1024];
     private EarClippingTriangulator triangulator = new EarClippingTriangulator();
     private int triangleCoordsSize = 0;
     private int colorValuesSize = 0;
@@ -67,15 +99,6 @@ public class VectorTileRendered
                               VectorTileRendered parent,
                               boolean northChild, boolean westChild)
     {
-        this(parent.getType(), renderer, parent, northChild, westChild);
-    }
-
-    public VectorTileRendered(TileType type,
-                              VectorTileRenderer renderer,
-                              VectorTileRendered parent,
-                              boolean northChild, boolean westChild)
-    {
-        this.type = type;
         this.renderer = renderer;
         this.parent = parent;
 
@@ -136,49 +159,168 @@ public class VectorTileRendered
             this.ySouth = this.yNorth + renderer.getTileSizeY(this.zoomLevel);
         }
 
-        //If zoom to small => split
-        if (renderer.getZoomLevel() > this.getZoomLevel())
-            renderer.splitTile(this);
+        this.bounds = new RectF((float)xWest, (float)ySouth, (float)xEast, (float)yNorth);
+
+        //The node holds all layers, the layer bits of its key stay 0
+        this.key = TileKey.pack(zoomLevel, x, y, 0);
+        renderer.tileCreated(this);
     }
 
+    /**
+     * Starts loading all layers of the tile in the background as one job. Layers above their maximum
+     * source zoom aren't requested, they are drawn from the ancestor at that zoom, which is loaded instead.
+     * Ancestors are loaded whatever the state of the tile itself, they may have been unloaded on their own.
+     */
     public void load()
     {
-        if (isLoading)
+        for (TileType type : LAYERS)
+        {
+            VectorTileRendered source = getSource(type);
+            if (source != this)
+                source.load();
+        }
+
+        if (state.get() != TileLoadState.EMPTY)
+            return;
+
+        TileType[] types = renderer.getSourceLayers(zoomLevel - 1);
+        if (types.length == 0)
+        {
+            //Nothing of its own to load, the tile is complete once its sources are
+            state.completeWithoutLoad();
+            return;
+        }
+
+        if (!state.queue())
+            return;
+
+        invisibleSince = 0;
+        renderer.loadStarted(this);
+        loadRequest = renderer.getAsyncProvider().requestFeatureBatches(x, y, zoomLevel - 1, types, this);
+    }
+
+    /**
+     * @return the tile the layer is drawn from: the tile itself or, above the maximum source zoom of the layer, its ancestor at that zoom
+     */
+    public VectorTileRendered getSource(TileType type)
+    {
+        //The tree is one zoom level above the tile URLs
+        int sourceZoomLevel = renderer.getMaxSourceZoom(type) + 1;
+
+        VectorTileRendered tile = this;
+        while (tile.zoomLevel > sourceZoomLevel && tile.parent != null)
+            tile = tile.parent;
+        return tile;
+    }
+
+    /**
+     * Abandons the pending load of this tile. A queued load is dropped right away, a running one
+     * stops at its next stage and resets the tile through onCancelled().
+     */
+    public void cancelLoad()
+    {
+        TileRequest request = loadRequest;
+        if (request == null || !request.cancel())
+            return;
+
+        if (request.wasCancelledWhileStarted())
+        {
+            renderer.loadAborted(this);
+        }
+        else
+        {
+            renderer.loadDropped(this);
+            endLoad(request);
+        }
+    }
+
+    @Override
+    public void onStarted(TileRequest request)
+    {
+        state.start();
+    }
+
+    @Override
+    public void onFeatureBatch(TileRequest request, TileType type, FeatureBatch batch)
+    {
+        build(request, type, batch);
+    }
+
+    @Override
+    public void onFailed(TileRequest request, TileType type)
+    {
+        build(request, type, null);
+    }
+
+    @Override
+    public void onFinished(TileRequest request)
+    {
+        uploadBuffers(request);
+    }
+
+    @Override
+    public void onCancelled(TileRequest request)
+    {
+        endLoad(request);
+    }
+
+    private void endLoad(TileRequest request)
+    {
+        if (request != loadRequest)
+            return;
+
+        loadRequest = null;
+
+        //An unfinished load leaves the tile empty, so it can be loaded again
+        state.abandon();
+
+        renderer.loadEnded(this);
+    }
+
+    long getInvisibleSince()
+    {
+        return invisibleSince;
+    }
+
+    void setInvisibleSince(long invisibleSince)
+    {
+        this.invisibleSince = invisibleSince;
+    }
+
+    /**
+     * Tessellates one layer into buffers that are uploaded together with the other layers once all are built.
+     */
+    private void build(TileRequest request, TileType type, FeatureBatch data)
+    {
+        //Stage boundary: decoded, not tessellated yet. The request reports the cancellation through onCancelled()
+        if (request.isCancelled())
             return;
 
-        isLoading = true;
+        //Only the first layer advances the state, the tile may have been evicted meanwhile
+        if (!state.decoded())
+            return;
 
-        HashMap<Geometry, HashMap<String, String>> data = renderer.getTileProvider().getTile(x, y, zoomLevel - 1, type);
+        triangleCoordsSize = 0;
+        colorValuesSize = 0;
+        if (triangleCoords == null)
+        {
+            triangleCoords = new float[1024];
+            colorValues = new byte[1024];
+        }
 
         if (data != null)
         {
             if (type == TileType.WaterAreas)
             {
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
-                {
-                    float[] polyColor = new float[4];
-
-                    polyColor[0] = 0.70196078431f;
-                    polyColor[1] = 0.81960784313f;
-                    polyColor[2] = 1.0f;
-                    polyColor[3] = 1.0f;
-
-                    Geometry geom = entry.getKey();
+                float[] polyColor = new float[4];
 
-                    if (geom.getGeometryType().equals("Polygon"))
-                    {
-                        addPolygon((Polygon) geom, polyColor, -15000f);
-                    }
-                    else if (geom.getGeometryType().equals("MultiPolygon"))
-                    {
-                        MultiPolygon mPoly = (MultiPolygon)geom;
+                polyColor[0] = 0.70196078431f;
+                polyColor[1] = 0.81960784313f;
+                polyColor[2] = 1.0f;
+                polyColor[3] = 1.0f;
 
-                        for (int i = 0; i < mPoly.getNumGeometries(); i++)
-                        {
-                            addPolygon((Polygon) mPoly.getGeometryN(i), polyColor, -15000f);
-                        }
-                    }
-                }
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
+                    addPolygons(data, feature, polyColor, -15000f);
             }
             else if (type == TileType.LandUsages)
             {
@@ -222,11 +364,11 @@ public class VectorTileRendered
                 colors.put("retail", new int[] { 230, 230, 230 });
                 colors.put("common", new int[] { 240, 237, 229 });
 
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
+                int kindKey = data.getKeyId("kind");
+
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
                 {
-                    String kind = "unknown";
-                    if (entry.getValue().containsKey("kind"))
-                        kind = entry.getValue().get("kind");
+                    String kind = data.getProperty(feature, kindKey, "unknown");
 
                     float[] polyColor;
 
@@ -249,19 +391,7 @@ public class VectorTileRendered
                         Log.e("Unknown LandUsage", kind);
                     }
 
-                    if (entry.getKey().getGeometryType().equals("Polygon"))
-                    {
-                        addPolygon((Polygon)entry.getKey(), polyColor, -19999f);
-                    }
-                    else if (entry.getKey().getGeometryType().equals("MultiPolygon"))
-                    {
-                        MultiPolygon mPoly = (MultiPolygon) entry.getKey();
-
-                        for (int i = 0; i < mPoly.getNumGeometries(); i++)
-                        {
-                            addPolygon((Polygon)mPoly.getGeometryN(i), polyColor, -19999f);
-                        }
-                    }
+                    addPolygons(data, feature, polyColor, -19999f);
                 }
             }
             else if (type == TileType.RoadLines)
@@ -274,10 +404,15 @@ public class VectorTileRendered
                 float highestValue = Float.NaN;
                 float lowestValue = Float.NaN;
 
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
+                int highwayKey = data.getKeyId("highway");
+                int kindKey = data.getKeyId("kind");
+                int sortKey = data.getKeyId("sort_key");
+                int bridgeKey = data.getKeyId("is_bridge");
+                int tunnelKey = data.getKeyId("is_tunnel");
+
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
                 {
-                    HashMap<String, String> props = entry.getValue();
-                    float layer = highwayLayer(props.get("highway"), props.get("sort_key"), props.get("is_bridge"), props.get("is_tunnel"));
+                    float layer = highwayLayer(data.getProperty(feature, highwayKey), data.getProperty(feature, sortKey), data.getProperty(feature, bridgeKey), data.getProperty(feature, tunnelKey));
 
                     if (Float.isNaN(highestValue) || layer > highestValue)
                         highestValue = layer;
@@ -296,103 +431,84 @@ public class VectorTileRendered
                 else
                     layerScaling = 1f;
 
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
                 {
-                    HashMap<String, String> props = entry.getValue();
-
                     float pixel = renderer.getPixelSize(zoomLevel);//(2f * (float)Math.PI / (float)Math.pow(2, zoomLevel + 8)) * 6378137.0f; //(float)renderer.getTileSizeX(zoomLevel) / 1000f; //2f * (float)Math.PI / (1 << (zoomLevel + 8));
-                    float[] widths = highwayWidths(props.get("highway"), props.get("kind"), zoomLevel, pixel);
+                    String highway = data.getProperty(feature, highwayKey);
+                    String kind = data.getProperty(feature, kindKey);
+                    float[] widths = highwayWidths(highway, kind, zoomLevel, pixel);
                     float inner = widths[0];
                     float outer = widths[1];
 
                     //Get layer and apply offset and scaling
-                    float layer = highwayLayer(props.get("highway"), props.get("sort_key"), props.get("is_bridge"), props.get("is_tunnel"));
+                    String isTunnel = data.getProperty(feature, tunnelKey);
+                    float layer = highwayLayer(highway, data.getProperty(feature, sortKey), data.getProperty(feature, bridgeKey), isTunnel);
                     layer += layerOffset;
                     layer *= layerScaling;
 
-                    String highway = props.get("highway");
-
-                    if (props.get("kind").equals("rail"))
+                    if (kind.equals("rail"))
                         highway = "rail";
 
                     polyColor[0] = highwayColors.containsKey(highway) ? (float)highwayColors.get(highway)[0] / 255f : 1f;
                     polyColor[1] = highwayColors.containsKey(highway) ? (float)highwayColors.get(highway)[1] / 255f : 0f;
                     polyColor[2] = highwayColors.containsKey(highway) ? (float)highwayColors.get(highway)[2] / 255f : 1f;
-                    polyColor[3] = (props.get("is_tunnel").equals("yes")) ? 0.4f : 1.0f;
+                    polyColor[3] = (isTunnel.equals("yes")) ? 0.4f : 1.0f;
 
                     if (!highwayColors.containsKey(highway))
                         Log.e("Unknown Highway", highway);
 
-                    addTriangles(Triangulator.lineToTriangles(entry.getKey(), Triangulator.LineCap.Round, inner), polyColor[0], polyColor[1], polyColor[2], polyColor[3], layer);
-                    //if (props.get("is_bridge").equals("yes") && zoomLevel >= 15)
-                    addTriangles(Triangulator.lineToTriangles(entry.getKey(), Triangulator.LineCap.Butt, outer), polyColor[0] * 0.9f, polyColor[1] * 0.9f, polyColor[2] * 0.9f, polyColor[3], layer - 10);
+                    addLines(data, feature, Triangulator.LineCap.Round, inner, polyColor[0], polyColor[1], polyColor[2], polyColor[3], layer);
+                    //if (data.getProperty(feature, bridgeKey).equals("yes") && zoomLevel >= 15)
+                    addLines(data, feature, Triangulator.LineCap.Butt, outer, polyColor[0] * 0.9f, polyColor[1] * 0.9f, polyColor[2] * 0.9f, polyColor[3], layer - 10);
                 }
             }
             else if (type == TileType.Buildings)
             {
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
-                {
-                    float[] polyColor;
-
-                    polyColor = new float[4];
-                    polyColor[0] = 200 / 255f;
-                    polyColor[1] = 154 / 255f;
-                    polyColor[2] = 149 / 255f;
-                    polyColor[3] = 1.0f;
+                float[] polyColor;
 
-                    if (entry.getKey().getGeometryType().equals("Polygon"))
-                    {
-                        addPolygon((Polygon)entry.getKey(), polyColor, -12999f);
-                    }
-                    else if (entry.getKey().getGeometryType().equals("MultiPolygon"))
-                    {
-                        MultiPolygon mPoly = (MultiPolygon) entry.getKey();
+                polyColor = new float[4];
+                polyColor[0] = 200 / 255f;
+                polyColor[1] = 154 / 255f;
+                polyColor[2] = 149 / 255f;
+                polyColor[3] = 1.0f;
 
-                        for (int i = 0; i < mPoly.getNumGeometries(); i++)
-                        {
-                            addPolygon((Polygon)mPoly.getGeometryN(i), polyColor, -12999f);
-                        }
-                    }
-                }
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
+                    addPolygons(data, feature, polyColor, -12999f);
             }
             else if (type == TileType.RoadLabels)
             {
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
+                /*int highwayKey = data.getKeyId("highway");
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
                 {
-                    /*Log.w("RoadLabels", "############### ENTRY ###############");
-                    for (Map.Entry<String, String> e : entry.getValue().entrySet())
-                    {
-                        Log.w("RoadLabels", e.getKey() + ": " + e.getValue());
-                    }
-                    Log.w("RoadLabels", "Geometry Type: " + entry.getKey().getGeometryType());
-                    Log.w("RoadLabels", "###############  END  ###############");
-
-                    addTriangles(Triangulator.lineToTriangles(entry.getKey(), Triangulator.LineCap.Butt, highwayWidths(entry.getValue().get("highway"), "", zoomLevel, renderer.getPixelSize(zoomLevel))[0]), 0f, 0f, 0f, 1f, 0f);*/
-                }
+                    addLines(data, feature, Triangulator.LineCap.Butt, highwayWidths(data.getProperty(feature, highwayKey), "", zoomLevel, renderer.getPixelSize(zoomLevel))[0], 0f, 0f, 0f, 1f, 0f);
+                }*/
             }
             else if (type == TileType.PointsOfInterest)
             {
-                for (Map.Entry<Geometry, HashMap<String, String>> entry : data.entrySet())
+                Triangle[] dot = new Triangle[10];
+
+                for (int feature = 0; feature < data.getFeatureCount(); feature++)
                 {
-                    /*Log.w("RoadLabels", "############### ENTRY ###############");
-                    for (Map.Entry<String, String> e : entry.getValue().entrySet())
-                    {
-                        Log.w("RoadLabels", e.getKey() + ": " + e.getValue());
-                    }
-                    Log.w("RoadLabels", "Geometry Type: " + entry.getKey().getGeometryType());
-                    Log.w("RoadLabels", "###############  END  ###############");*/
+                    int partStart = data.getPartStart(feature);
+                    if (partStart == data.getPartEnd(feature) || data.getRingStart(partStart) == data.getRingEnd(partStart))
+                        continue;
+
+                    int ring = data.getRingStart(partStart);
+                    if (data.getPointStart(ring) == data.getPointEnd(ring))
+                        continue;
+
+                    Coordinate center = new Coordinate(data.getX(data.getPointStart(ring)), data.getY(data.getPointStart(ring)));
 
                     Coordinate prevPoint = null;
-                    Triangle[] dot = new Triangle[10];
                     int arrayIndex = -1;
                     for (int i = 0; i <= 10; i++)
                     {
                         double angle = (Math.PI * 2 / 10) * i;
                         float radius = renderer.getPixelSize(zoomLevel) * 4;
-                        Coordinate point = new Coordinate(entry.getKey().getCoordinate().x + Math.cos(angle) * radius, entry.getKey().getCoordinate().y + Math.sin(angle) * radius);
+                        Coordinate point = new Coordinate(center.x + Math.cos(angle) * radius, center.y + Math.sin(angle) * radius);
 
                         if (prevPoint != null)
-                            dot[arrayIndex += 1] = new Triangle(prevPoint, point, entry.getKey().getCoordinate());
+                            dot[arrayIndex += 1] = new Triangle(prevPoint, point, center);
 
                         prevPoint = point;
                     }
@@ -404,10 +520,10 @@ public class VectorTileRendered
                     {
                         double angle = (Math.PI * 2 / 10) * i;
                         float radius = renderer.getPixelSize(zoomLevel) * 5.5f;
-                        Coordinate point = new Coordinate(entry.getKey().getCoordinate().x + Math.cos(angle) * radius, entry.getKey().getCoordinate().y + Math.sin(angle) * radius);
+                        Coordinate point = new Coordinate(center.x + Math.cos(angle) * radius, center.y + Math.sin(angle) * radius);
 
                         if (prevPoint != null)
-                            dot[arrayIndex += 1] = new Triangle(prevPoint, point, entry.getKey().getCoordinate());
+                            dot[arrayIndex += 1] = new Triangle(prevPoint, point, center);
 
                         prevPoint = point;
                     }
@@ -416,10 +532,11 @@ public class VectorTileRendered
             }
         }
 
-        buildBuffers();
+        //Stage boundary: tessellated, not uploaded yet
+        if (request.isCancelled())
+            return;
 
-        isLoading = false;
-        isLoaded = true;
+        stageBuffers(type);
     }
 
     private final static HashMap<String, int[]> highwayColors = new HashMap<String, int[]>();
@@ -556,72 +673,142 @@ public class VectorTileRendered
         return layer;
     }
 
-    private void addPolygon(Polygon poly, float[] polyColor, float z)
+    private void addPolygons(FeatureBatch data, int feature, float[] polyColor, float z)
     {
-        addTriangles(triangulator.triangulate(poly, false), polyColor[0], polyColor[1], polyColor[2], polyColor[3], z);
+        byte geometryType = data.getGeometryType(feature);
+        if (geometryType != FeatureBatch.POLYGON && geometryType != FeatureBatch.MULTI_POLYGON)
+            return;
+
+        double[] coordinates = data.getCoordinates();
 
-        GeometryFactory factory = new GeometryFactory();
-        for(int i = 0; i < poly.getNumInteriorRing(); i++)
+        for (int part = data.getPartStart(feature); part < data.getPartEnd(feature); part++)
         {
-            LineString ls = poly.getInteriorRingN(i);
-            addTriangles(triangulator.triangulate(factory.createPolygon(ls.getCoordinates()), false), VectorTileRenderer.BackgroundR, VectorTileRenderer.BackgroundG, VectorTileRenderer.BackgroundB, 1f, z + 9f);
+            int ringStart = data.getRingStart(part);
+            if (ringStart == data.getRingEnd(part))
+                continue;
+
+            addTriangles(triangulator.triangulate(coordinates, data.getPointStart(ringStart), data.getPointEnd(ringStart)), polyColor[0], polyColor[1], polyColor[2], polyColor[3], z);
+
+            for (int ring = ringStart + 1; ring < data.getRingEnd(part); ring++)
+                addTriangles(triangulator.triangulate(coordinates, data.getPointStart(ring), data.getPointEnd(ring)), VectorTileRenderer.BackgroundR, VectorTileRenderer.BackgroundG, VectorTileRenderer.BackgroundB, 1f, z + 9f);
         }
     }
 
+    private void addLines(FeatureBatch data, int feature, Triangulator.LineCap cap, float lineWidth, float colorR, float colorG, float colorB, float colorA, float depth)
+    {
+        byte geometryType = data.getGeometryType(feature);
+        if (geometryType != FeatureBatch.LINE_STRING && geometryType != FeatureBatch.MULTI_LINE_STRING)
+            return;
+
+        double[] coordinates = data.getCoordinates();
+
+        for (int part = data.getPartStart(feature); part < data.getPartEnd(feature); part++)
+            for (int ring = data.getRingStart(part); ring < data.getRingEnd(part); ring++)
+                addTriangles(Triangulator.lineToTriangles(coordinates, data.getPointStart(ring), data.getPointEnd(ring), cap, lineWidth), colorR, colorG, colorB, colorA, depth);
+    }
+
     private void addTriangles(Triangle[] triangles, float colorR, float colorG, float colorB, float colorA, float depth)
     {
+        if (triangleCoordsSize + triangles.length * 9 > triangleCoords.length)
+            triangleCoords = Arrays.copyOf(triangleCoords, Math.max(triangleCoords.length * 2, triangleCoordsSize + triangles.length * 9));
+        if (colorValuesSize + triangles.length * 12 > colorValues.length)
+            colorValues = Arrays.copyOf(colorValues, Math.max(colorValues.length * 2, colorValuesSize + triangles.length * 12));
+
+        byte r = (byte)(colorR * 255), g = (byte)(colorG * 255), b = (byte)(colorB * 255), a = (byte)(colorA * 255);
+
         for(Triangle t : triangles)
         {
-            triangleCoords.add((float)t.p0.x); triangleCoords.add((float)t.p0.y); triangleCoords.add(depth);
-            triangleCoords.add((float)t.p1.x); triangleCoords.add((float)t.p1.y); triangleCoords.add(depth);
-            triangleCoords.add((float)t.p2.x); triangleCoords.add((float)t.p2.y); triangleCoords.add(depth);
+            triangleCoords[triangleCoordsSize++] = (float)t.p0.x; triangleCoords[triangleCoordsSize++] = (float)t.p0.y; triangleCoords[triangleCoordsSize++] = depth;
+            triangleCoords[triangleCoordsSize++] = (float)t.p1.x; triangleCoords[triangleCoordsSize++] = (float)t.p1.y; triangleCoords[triangleCoordsSize++] = depth;
+            triangleCoords[triangleCoordsSize++] = (float)t.p2.x; triangleCoords[triangleCoordsSize++] = (float)t.p2.y; triangleCoords[triangleCoordsSize++] = depth;
 
-            colorValues.add((byte)(colorR * 255)); colorValues.add((byte)(colorG * 255)); colorValues.add((byte)(colorB * 255)); colorValues.add((byte)(colorA * 255));
-            colorValues.add((byte)(colorR * 255)); colorValues.add((byte)(colorG * 255)); colorValues.add((byte)(colorB * 255)); colorValues.add((byte)(colorA * 255));
-            colorValues.add((byte)(colorR * 255)); colorValues.add((byte)(colorG * 255)); colorValues.add((byte)(colorB * 255)); colorValues.add((byte)(colorA * 255));
+            for (int i = 0; i < 3; i++)
+            {
+                colorValues[colorValuesSize++] = r; colorValues[colorValuesSize++] = g; colorValues[colorValuesSize++] = b; colorValues[colorValuesSize++] = a;
+            }
         }
     }
 
-    private int[] buffers = new int[2];
+    private final Layer[] layers = new Layer[LAYERS.length];
+    private int gpuBytes = 0;
 
-    private void buildBuffers()
+    private void stageBuffers(TileType type)
     {
-        ByteBuffer bbv = ByteBuffer.allocateDirect(triangleCoords.size() * 4);
+        Layer layer = new Layer();
+        layer.vertexCount = triangleCoordsSize / 3;
+
+        ByteBuffer bbv = ByteBuffer.allocateDirect(triangleCoordsSize * 4);
         bbv.order(ByteOrder.nativeOrder());
-        vertexBuffer = bbv.asFloatBuffer();
-        float[] triangleArray = new float[triangleCoords.size()];
-        int i = 0;
-        for (Float f : triangleCoords) { triangleArray[i++] = (f != null ? f : Float.NaN); }
-        vertexBuffer.put(triangleArray);
-        vertexBuffer.position(0);
-
-        colorBuffer = ByteBuffer.allocateDirect(colorValues.size());
-        colorBuffer.order(ByteOrder.nativeOrder());
-        byte[] colorArray = new byte[colorValues.size()];
-        i = 0;
-        for (Byte b : colorValues) { colorArray[i++] = (b != null ? b : Byte.MIN_VALUE); }
-        colorBuffer.put(colorArray);
-        colorBuffer.position(0);
+        layer.vertexBuffer = bbv.asFloatBuffer();
+        layer.vertexBuffer.put(triangleCoords, 0, triangleCoordsSize);
+        layer.vertexBuffer.position(0);
+
+        layer.colorBuffer = ByteBuffer.allocateDirect(colorValuesSize);
+        layer.colorBuffer.order(ByteOrder.nativeOrder());
+        layer.colorBuffer.put(colorValues, 0, colorValuesSize);
+        layer.colorBuffer.position(0);
+
+        layers[type.id] = layer;
+    }
+
+    /**
+     * Uploads the staged layers on the GL thread, the load only counts as finished once the buffers exist.
+     */
+    private void uploadBuffers(final TileRequest request)
+    {
+        //Publishes the staged layers, evicted tiles are never uploaded
+        if (!state.publish())
+        {
+            endLoad(request);
+            return;
+        }
+
+        final TileLoadPipeline pipeline = renderer.getLoadPipeline();
+        final long uploadStart = pipeline.beginUpload();
 
         renderer.getSurfaceView().queueEvent(new Runnable()
         {
             @Override
             public void run()
             {
-                GLES20.glGenBuffers(2, buffers, 0);
+                //Pruned from the tree in the meantime, the buffers would never be freed
+                if (state.get() != TileLoadState.UPLOADING)
+                {
+                    endLoad(request);
+                    pipeline.endUpload(uploadStart);
+                    return;
+                }
+
+                for (Layer layer : layers)
+                {
+                    if (layer == null || layer.vertexBuffer == null)
+                        continue;
+
+                    GLES20.glGenBuffers(2, layer.buffers, 0);
+
+                    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, layer.buffers[0]);
+                    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, layer.vertexBuffer.capacity() * 4, layer.vertexBuffer, GLES20.GL_STATIC_DRAW);
+                    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
-                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexBuffer.capacity() * 4, vertexBuffer, GLES20.GL_STATIC_DRAW);
-                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+                    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, layer.buffers[1]);
+                    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, layer.colorBuffer.capacity(), layer.colorBuffer, GLES20.GL_STATIC_DRAW);
+                    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
-                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, colorBuffer.capacity(), colorBuffer, GLES20.GL_STATIC_DRAW);
-                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+                    layer.gpuBytes = layer.vertexBuffer.capacity() * 4 + layer.colorBuffer.capacity();
+                    layer.vertexBuffer = null;
+                    layer.colorBuffer = null;
+                    gpuBytes += layer.gpuBytes;
+                }
+
+                renderer.buffersAllocated(gpuBytes);
+
+                state.ready();
+                renderer.loadFinished(VectorTileRendered.this);
+                endLoad(request);
+                pipeline.endUpload(uploadStart);
             }
         });
 
-        triangleCoordsSize = triangleCoords.size();
-        colorValuesSize = colorValues.size();
         triangleCoords = null;
         colorValues = null;
     }
@@ -636,10 +823,66 @@ public class VectorTileRendered
         this.southWestChild = southWestChild;
         this.southEastChild = southEastChild;
         isSplit = true;
+    }
+
+    /**
+     * Frees the GPU buffers of the tile, it is loaded again once it becomes visible. Must be called on the GL thread.
+     */
+    public void unload()
+    {
+        cancelLoad();
+
+        if (!state.unload())
+            return;
+
+        for (int i = 0; i < layers.length; i++)
+        {
+            if (layers[i] != null)
+                GLES20.glDeleteBuffers(2, layers[i].buffers, 0);
+            layers[i] = null;
+        }
+
+        renderer.buffersReleased(gpuBytes);
+        gpuBytes = 0;
+    }
+
+    /**
+     * Removes all descendants from the tree and frees their buffers. Must be called on the GL thread.
+     */
+    public void prune()
+    {
+        if (!isSplit)
+            return;
+
+        VectorTileRendered northWest = northWestChild, northEast = northEastChild, southWest = southWestChild, southEast = southEastChild;
+        isSplit = false;
+        northWestChild = null;
+        northEastChild = null;
+        southWestChild = null;
+        southEastChild = null;
+
+        northWest.remove();
+        northEast.remove();
+        southWest.remove();
+        southEast.remove();
+    }
+
+    private void remove()
+    {
+        prune();
+        unload();
+        state.evict();
+        renderer.tileRemoved(this);
+    }
 
-        //If zoom to small => split
-        if (renderer.getZoomLevel() > this.getZoomLevel())
-            renderer.splitTile(this);
+    /**
+     * Drops the tile together with a lost GL context: cancels its load and keeps a queued upload from
+     * allocating buffers in the next context. Its buffers are gone with the old context, they aren't deleted.
+     */
+    void discard()
+    {
+        cancelLoad();
+        state.evict();
     }
 
     public int getZoomLevel()
@@ -647,45 +890,72 @@ public class VectorTileRendered
         return zoomLevel;
     }
 
-    public void render(ShaderProgram shaderProgram, RectF renderBounds)
+    /**
+     * Selects the tiles to draw for the view, the renderer then draws them layer by layer.
+     * @param viewZoomLevel zoom level of the view, the tree is descended down to it
+     */
+    public void render(RectF renderBounds, int viewZoomLevel)
     {
-        if (RectF.intersects(getBounds(), renderBounds) || renderBounds.contains(getBounds()))
+        if (intersects(renderBounds))
         {
-            if (isSplit && renderer.getZoomLevel() > zoomLevel)
+            lastVisibleFrame = renderer.getFrame();
+
+            if (isSplit && viewZoomLevel > zoomLevel)
             {
-                northWestChild.render(shaderProgram, renderBounds);
-                northEastChild.render(shaderProgram, renderBounds);
-                southWestChild.render(shaderProgram, renderBounds);
-                southEastChild.render(shaderProgram, renderBounds);
+                northWestChild.render(renderBounds, viewZoomLevel);
+                northEastChild.render(renderBounds, viewZoomLevel);
+                southWestChild.render(renderBounds, viewZoomLevel);
+                southEastChild.render(renderBounds, viewZoomLevel);
             }
-            else if (isLoaded)
+            else if (isLoaded())
             {
-                rawRender(shaderProgram);
+                select();
             }
             else
             {
-                renderParent(shaderProgram);
+                renderParent();
             }
         }
     }
 
-    public void renderParent(ShaderProgram shaderProgram)
+    public void renderParent()
     {
-        if (isLoaded)
-            rawRender(shaderProgram);
+        if (isLoaded())
+            select();
         else if (parent != null)
-            parent.renderParent(shaderProgram);
+            parent.renderParent();
     }
 
-    private void rawRender(ShaderProgram shaderProgram)
+    private void select()
     {
-        if (renderer.hasTileRendered(this))
+        //Several children may fall back to the same ancestor, it is drawn once per frame
+        long frame = renderer.getFrame();
+        if (selectedFrame == frame)
             return;
 
+        selectedFrame = frame;
         renderer.tileRenderedCallback(this);
+    }
+
+    /**
+     * Draws one layer of the tile. Overzoomed layers draw the buffers of their source tile, which are
+     * already in world coordinates, so they only need to be drawn once however many tiles share them.
+     * Nothing is drawn until the source has been uploaded, a tile can be complete before its ancestors are.
+     */
+    public void rawRender(ShaderProgram shaderProgram, TileType type)
+    {
+        VectorTileRendered source = getSource(type);
+        if (!source.isLoaded())
+            return;
+
+        Layer layer = source.layers[type.id];
+        if (layer == null || layer.vertexCount == 0 || layer.drawnFrame == renderer.getFrame())
+            return;
+
+        layer.drawnFrame = renderer.getFrame();
 
         //Vertices
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, layer.buffers[0]);
         int positionHandle = GLES20.glGetAttribLocation(shaderProgram.getId(), "vPosition");
         GLES20.glEnableVertexAttribArray(positionHandle);
         GLES20.glVertexAttribPointer(positionHandle, 3,
@@ -693,7 +963,7 @@ public class VectorTileRendered
                 0, 0);
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         //Color
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, layer.buffers[1]);
         int colorHandle = GLES20.glGetAttribLocation(shaderProgram.getId(), "vColor");
         GLES20.glEnableVertexAttribArray(colorHandle);
         GLES20.glVertexAttribPointer(colorHandle, 4,
@@ -702,7 +972,7 @@ public class VectorTileRendered
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         //Render
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, triangleCoordsSize / 3);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, layer.vertexCount);
         GLES20.glDisableVertexAttribArray(positionHandle);
         GLES20.glDisableVertexAttribArray(colorHandle);
     }
@@ -742,18 +1012,59 @@ public class VectorTileRendered
         return isSplit;
     }
 
-    public boolean isLoaded() { return isLoaded; }
+    /**
+     * @return the last frame in which the tile or one of its descendants was inside the view
+     */
+    public long getLastVisibleFrame()
+    {
+        return lastVisibleFrame;
+    }
 
-    public boolean isLoading()
+    /**
+     * @return the last frame the tile was selected to be drawn in
+     */
+    public long getSelectedFrame()
+    {
+        return selectedFrame;
+    }
+
+    /**
+     * Counts the tile and its ancestors as visible in the frame, without drawing them.
+     */
+    void keepAlive(long frame)
+    {
+        for (VectorTileRendered tile = this; tile != null && tile.lastVisibleFrame != frame; tile = tile.parent)
+            tile.lastVisibleFrame = frame;
+    }
+
+    public int getGpuBytes()
     {
-        return isLoading;
+        return gpuBytes;
     }
 
-    public void setIsLoading() { isLoading = true; }
+    /**
+     * @return one of the TileLoadState constants
+     */
+    public int getState()
+    {
+        return state.get();
+    }
+
+    public boolean isDetached()
+    {
+        return state.isEvicted();
+    }
+
+    public boolean isLoaded() { return state.isLoaded(); }
+
+    public boolean isLoading()
+    {
+        return state.isLoading();
+    }
 
     public boolean anyChildLoaded()
     {
-        if (isLoaded)
+        if (isLoaded())
             return true;
         else
             return northEastChild.anyChildLoaded() || northEastChild.anyChildLoaded() ||
@@ -780,13 +1091,28 @@ public class VectorTileRendered
         return southEastChild;
     }
 
+    /**
+     * @return TileKey of the tile, packed with the zoom level of the tree
+     */
+    public long getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return the bounds of the tile, shared by all callers and not to be modified
+     */
     public RectF getBounds()
     {
-        return new RectF((float)getXWest(), (float)getYSouth(), (float)getXEast(), (float)getYNorth());
+        return bounds;
     }
 
-    public TileType getType()
+    /**
+     * Same test as RectF.intersects(getBounds(), rect).
+     */
+    public boolean intersects(RectF rect)
     {
-        return type;
+        return bounds.left < rect.right && rect.left < bounds.right
+            && bounds.top < rect.bottom && rect.top < bounds.bottom;
     }
 }
@@ -5,9 +5,13 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.graphics.*;
+import android.util.Log;
 
-import java.util.LinkedList;
-import java.util.concurrent.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
 import android.content.Context;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -19,7 +23,37 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
     public static final float BackgroundG = 0.9294117647f;
     public static final float BackgroundB = 0.89803921568f;
 
-    private double scale = 1500;
+    //Priority penalty per zoom level a queued tile is away from the current zoom level, in tiles
+    private static final double ZOOM_MISMATCH_PENALTY = 8;
+    //Priority offset per layer importance step of the most important layer of a request, small enough to not outweigh distance
+    private static final double LAYER_IMPORTANCE_WEIGHT = 0.1;
+    //Loads of tiles that stay out of view longer than this are cancelled
+    private static final long STALE_LOAD_GRACE_PERIOD = 300;
+
+    //Prefetched tiles come after every visible tile
+    private static final double PREFETCH_PENALTY = 1000;
+    //How far ahead the motion predictor extrapolates the camera
+    private static final long PREFETCH_HORIZON = 300;
+
+    //Highest zoom level of the tile URLs the server provides, per layer
+    public static final int DEFAULT_MAX_SOURCE_ZOOM = 17;
+
+    public static final long DEFAULT_GPU_BUDGET = 32 * 1024 * 1024;
+    public static final int DEFAULT_NODE_BUDGET = 4096;
+
+    //Least recently visible first, deeper tiles before their ancestors so the coarse fallbacks stay longest
+    private static final Comparator<VectorTileRendered> EVICTION_ORDER = new Comparator<VectorTileRendered>()
+    {
+        @Override
+        public int compare(VectorTileRendered a, VectorTileRendered b)
+        {
+            if (a.getLastVisibleFrame() != b.getLastVisibleFrame())
+                return a.getLastVisibleFrame() < b.getLastVisibleFrame() ? -1 : 1;
+            return b.getZoomLevel() - a.getZoomLevel();
+        }
+    };
+
+    private volatile double scale = 1500;
     private double xWest;
     private double xEast;
     private double yNorth;
@@ -28,17 +62,16 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
     private int height;
     private double topTileSizeX;
     private double topTileSizeY;
-    private float cameraX = (float)SphericalMercator.lonToX(8.881389);
-    private float cameraY = (float)SphericalMercator.latToY(50.243056);
+    private volatile float cameraX = (float)SphericalMercator.lonToX(8.881389);
+    private volatile float cameraY = (float)SphericalMercator.latToY(50.243056);
     private float aspectRatio;
 
-    private int previousZoomLevel = getZoomLevel();
-
-    private VectorTileRendered[] rootTiles = new VectorTileRendered[] {};
+    private VectorTileRendered rootTile;
 
     private ITileProvider tileProvider;
+    private CoalescingBatchProvider featureBatchProvider;
 
-    private ExecutorService loadExecutor = Executors.newCachedThreadPool();
+    private TileLoadPipeline loadPipeline;
 
     //Matrizen
     private float[] projectionMatrix = new float[16];
@@ -66,7 +99,61 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
     private Shader fragmentShader;
     private ShaderProgram shaderProgram;
     private GLSurfaceView surfaceView;
-    private LinkedList<VectorTileRendered> tilesRendered = new LinkedList<VectorTileRendered>();
+    //Tiles selected for the current frame, each tile marks itself so it is only added once
+    private final ArrayList<VectorTileRendered> tilesRendered = new ArrayList<VectorTileRendered>();
+
+    private final ArrayList<VectorTileRendered> loadingTiles = new ArrayList<VectorTileRendered>();
+    private final ArrayList<VectorTileRendered> staleTiles = new ArrayList<VectorTileRendered>();
+    private final AtomicLong droppedLoads = new AtomicLong();
+    private final AtomicLong abortedLoads = new AtomicLong();
+    private final AtomicLong wastedLoads = new AtomicLong();
+
+    private long frame = 0;
+    //Touch events only move the camera, the tree follows once per frame on the GL thread
+    private final VisibleTileTracker visibleTileTracker = new VisibleTileTracker();
+    private final VisibleTileTracker.Listener visibleTileListener = new VisibleTileTracker.Listener()
+    {
+        @Override
+        public void onTileEntered(int zoomLevel, int x, int y)
+        {
+            //Also reloads ancestors the tile draws overzoomed layers from if they were evicted
+            createTile(zoomLevel, x, y).load();
+        }
+
+        @Override
+        public void onTileLeft(int zoomLevel, int x, int y)
+        {
+            VectorTileRendered tile = tileStore.get(zoomLevel, x, y);
+            if (tile != null)
+                leftTiles.addLast(tile);
+        }
+    };
+    //Tiles in the order they left the view, the first ones evicted
+    private final ArrayDeque<VectorTileRendered> leftTiles = new ArrayDeque<VectorTileRendered>();
+    private long gpuBudget = DEFAULT_GPU_BUDGET;
+    private int nodeBudget = DEFAULT_NODE_BUDGET;
+    private final AtomicLong gpuBytes = new AtomicLong();
+    private final TileStore tileStore = new TileStore();
+    private long unloadedTiles = 0;
+    private long prunedTiles = 0;
+    private final ArrayList<VectorTileRendered> evictionCandidates = new ArrayList<VectorTileRendered>();
+    private final ArrayList<VectorTileRendered> visibleTiles = new ArrayList<VectorTileRendered>();
+
+    private final int[] maxSourceZoom = new int[VectorTileRendered.LAYERS.length];
+    //Layers requested from the server per zoom level of the tile URLs
+    private final VectorTileRendered.TileType[][] sourceLayers = new VectorTileRendered.TileType[32][];
+
+    private final MotionPredictor motionPredictor = new MotionPredictor();
+    private boolean prefetchEnabled = true;
+    private boolean hasPrediction = false;
+    private final RectF predictedBounds = new RectF();
+    //View of the frame being drawn, set at its start so the whole frame sees the same camera while touch events move it
+    private final RectF viewBounds = new RectF();
+    private int viewZoomLevel;
+    private int predictedZoomLevel;
+    private long lastFrameTime = 0;
+    private long blankTileTime = 0;
+    private long prefetchedTiles = 0;
 
     public VectorTileRenderer(ITileProvider tileProvider, Context context, GLSurfaceView surfaceView)
     {
@@ -84,7 +171,77 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
         topTileSizeY = ySouth - yNorth;
 
         this.tileProvider = tileProvider;
+        IFeatureBatchProvider batchProvider = TileProviderBatchAdapter.wrap(tileProvider);
+        this.featureBatchProvider = CoalescingBatchProvider.create(batchProvider);
+        this.loadPipeline = new TileLoadPipeline(featureBatchProvider,
+                new TileLoadScheduler.PriorityFunction()
+                {
+                    @Override
+                    public double getPriority(TileRequest request)
+                    {
+                        return getLoadPriority(request);
+                    }
+                });
         this.surfaceView = surfaceView;
+
+        for (VectorTileRendered.TileType type : VectorTileRendered.LAYERS)
+            maxSourceZoom[type.id] = DEFAULT_MAX_SOURCE_ZOOM;
+        updateSourceLayers();
+    }
+
+    /**
+     * Sets the highest zoom level (of the tile URLs) the server has tiles of the layer for. Above it the
+     * layer isn't requested anymore, the tiles draw it from their ancestor at that zoom instead.
+     * Call before the surface is created.
+     */
+    public void setMaxSourceZoom(VectorTileRendered.TileType type, int zoomLevel)
+    {
+        maxSourceZoom[type.id] = zoomLevel;
+        updateSourceLayers();
+    }
+
+    public int getMaxSourceZoom(VectorTileRendered.TileType type)
+    {
+        return maxSourceZoom[type.id];
+    }
+
+    private void updateSourceLayers()
+    {
+        ArrayList<VectorTileRendered.TileType> types = new ArrayList<VectorTileRendered.TileType>();
+
+        for (int zoomLevel = 0; zoomLevel < sourceLayers.length; zoomLevel++)
+        {
+            for (VectorTileRendered.TileType type : VectorTileRendered.LAYERS)
+            {
+                if (zoomLevel <= maxSourceZoom[type.id])
+                    types.add(type);
+            }
+
+            sourceLayers[zoomLevel] = types.toArray(new VectorTileRendered.TileType[types.size()]);
+            types.clear();
+        }
+    }
+
+    /**
+     * @param zoomLevel zoom level of the tile URLs
+     * @return the layers the server provides at the zoom level, in the order of VectorTileRendered.LAYERS
+     */
+    public VectorTileRendered.TileType[] getSourceLayers(int zoomLevel)
+    {
+        return sourceLayers[Math.max(0, Math.min(zoomLevel, sourceLayers.length - 1))];
+    }
+
+    /**
+     * @return true if at the zoom level of the view some layer is drawn from tiles of the given zoom level
+     */
+    private boolean isSourceZoomLevel(int tileZoomLevel, int viewZoomLevel)
+    {
+        for (VectorTileRendered.TileType type : VectorTileRendered.LAYERS)
+        {
+            if (tileZoomLevel == Math.min(viewZoomLevel, maxSourceZoom[type.id] + 1))
+                return true;
+        }
+        return false;
     }
 
     public GLSurfaceView getSurfaceView()
@@ -93,6 +250,11 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
     }
 
     public int getZoomLevel()
+    {
+        return getZoomLevel(scale);
+    }
+
+    private static int getZoomLevel(double scale)
     {
         return (int)Math.floor(Math.log(scale) / Math.log(2) + 1);
     }
@@ -177,53 +339,513 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
         return tileProvider;
     }
 
+    public CoalescingBatchProvider getFeatureBatchProvider()
+    {
+        return featureBatchProvider;
+    }
+
+    /**
+     * Combines the distance of the tile center from the camera (in tiles), the difference to the
+     * current zoom level and the importance of the layer. Lower values are loaded first.
+     * Tiles outside of the view, i.e. prefetched ones, always come after the visible tiles.
+     */
+    public double getLoadPriority(TileRequest request)
+    {
+        int zoomLevel = request.getZoomLevel();
+        double size = SphericalMercator.tileSize(zoomLevel);
+        double dx = (SphericalMercator.tileToX(request.getX(), zoomLevel) + size / 2 - cameraX) / size;
+        double dy = (SphericalMercator.tileToY(request.getY(), zoomLevel) - size / 2 - cameraY) / size;
+
+        //Requests use the zoom level of the tile URLs, which is one below the zoom level of the tree.
+        //Above the maximum source zoom of its layers a request is for the ancestor the view draws them from
+        int lowestMaxSourceZoom = Integer.MAX_VALUE;
+        for (VectorTileRendered.TileType type : request.getTypes())
+            lowestMaxSourceZoom = Math.min(lowestMaxSourceZoom, maxSourceZoom[type.id]);
+        int zoomMismatch = Math.abs(Math.min(getZoomLevel(), lowestMaxSourceZoom + 1) - (zoomLevel + 1));
+
+        double west = SphericalMercator.tileToX(request.getX(), zoomLevel);
+        double north = SphericalMercator.tileToY(request.getY(), zoomLevel);
+        boolean visible = zoomMismatch == 0
+                && west < getRightBounds() && west + size > getLeftBounds()
+                && north > getBottomBounds() && north - size < getTopBounds();
+
+        return Math.sqrt(dx * dx + dy * dy)
+             + zoomMismatch * ZOOM_MISMATCH_PENALTY
+             + request.getImportance() * LAYER_IMPORTANCE_WEIGHT
+             + (visible ? 0 : PREFETCH_PENALTY);
+    }
+
+    /**
+     * Cancels all loads and stops the loader threads. Call once the view is gone for good.
+     */
+    public void shutdown()
+    {
+        VectorTileRendered[] loading;
+        synchronized (loadingTiles)
+        {
+            loading = loadingTiles.toArray(new VectorTileRendered[loadingTiles.size()]);
+        }
+
+        for (VectorTileRendered tile : loading)
+            tile.cancelLoad();
+
+        loadPipeline.shutdown();
+    }
+
+    public TileLoadPipeline getLoadPipeline()
+    {
+        return loadPipeline;
+    }
+
+    public IAsyncFeatureBatchProvider getAsyncProvider()
+    {
+        return loadPipeline;
+    }
+
+    /**
+     * @return a copy of the current view bounds
+     */
     public RectF getBounds()
     {
         return new RectF((float)getLeftBounds(), (float)getBottomBounds(), (float)getRightBounds(), (float)getTopBounds());
     }
 
+    private void updateView()
+    {
+        double scale = this.scale;
+        double left = (xWest * aspectRatio) / scale + cameraX;
+        double top = yNorth / scale + cameraY;
+        viewBounds.set((float)left, (float)(top + ySouth * 2 / scale), (float)(left + xEast * aspectRatio * 2 / scale), (float)top);
+        viewZoomLevel = getZoomLevel(scale);
+    }
+
     public void setScale(float scale)
     {
         this.scale = scale;
         adjustCameraBounds();
+    }
 
-        if (getZoomLevel() > previousZoomLevel)
+    /**
+     * @return the tile, after splitting its ancestors down from the deepest existing one
+     */
+    private VectorTileRendered createTile(int zoomLevel, int x, int y)
+    {
+        VectorTileRendered tile = tileStore.get(zoomLevel, x, y);
+        if (tile != null)
+            return tile;
+        if (zoomLevel <= 1)
+            return rootTile;
+
+        VectorTileRendered parent = createTile(zoomLevel - 1, x >> 1, y >> 1);
+        if (!parent.isSplit())
         {
-            for (VectorTileRendered tile : rootTiles)
-                splitTile(tile);
+            parent.split(
+                    new VectorTileRendered(this, parent, true, true),  //Nord-West
+                    new VectorTileRendered(this, parent, true, false), //Nord-Ost
+                    new VectorTileRendered(this, parent, false, true), //Süd-West
+                    new VectorTileRendered(this, parent, false, false) //Süd-Ost
+            );
         }
 
-        previousZoomLevel = getZoomLevel();
+        return tileStore.get(zoomLevel, x, y);
+    }
+
+    /**
+     * Adds the tiles of the zoom level covering the bounds to the list, creating the missing ones.
+     */
+    private void createTiles(RectF bounds, int zoomLevel, ArrayList<VectorTileRendered> out)
+    {
+        zoomLevel = Math.max(zoomLevel, 1);
+
+        int minX = SphericalMercator.xToTile(bounds.left, zoomLevel - 1);
+        int maxX = SphericalMercator.xToTile(bounds.right, zoomLevel - 1);
+        int minY = SphericalMercator.yToTile(bounds.bottom, zoomLevel - 1);
+        int maxY = SphericalMercator.yToTile(bounds.top, zoomLevel - 1);
+
+        for (int y = minY; y <= maxY; y++)
+        {
+            for (int x = minX; x <= maxX; x++)
+                out.add(createTile(zoomLevel, x, y));
+        }
+    }
+
+    /**
+     * Adds the existing tiles covering the view at the current zoom level to the list.
+     */
+    public void collectVisibleTiles(ArrayList<VectorTileRendered> out)
+    {
+        collectTiles(viewBounds, viewZoomLevel, out);
+    }
+
+    /**
+     * Adds the existing tiles of the zoom level covering the bounds to the list.
+     * @return number of tiles the bounds cover, whether they exist or not
+     */
+    private int collectTiles(RectF bounds, int zoomLevel, ArrayList<VectorTileRendered> out)
+    {
+        //Zoomed out below scale 1 the root tile covers the view
+        zoomLevel = Math.max(zoomLevel, 1);
+
+        //The tree is one zoom level above the tile URLs
+        int minX = SphericalMercator.xToTile(bounds.left, zoomLevel - 1);
+        int maxX = SphericalMercator.xToTile(bounds.right, zoomLevel - 1);
+        int minY = SphericalMercator.yToTile(bounds.bottom, zoomLevel - 1);
+        int maxY = SphericalMercator.yToTile(bounds.top, zoomLevel - 1);
+
+        tileStore.collectRange(zoomLevel, minX, minY, maxX, maxY, out);
+        return (maxX - minX + 1) * (maxY - minY + 1);
     }
 
-    public void splitTile(VectorTileRendered tile)
+    /**
+     * Extrapolates the camera movement and starts loading the tiles the view will cover shortly.
+     * Their loads queue behind all visible tiles, see getLoadPriority().
+     */
+    private void prefetchPredictedTiles(long now)
     {
-        if (tile.getZoomLevel() < getZoomLevel() && RectF.intersects(tile.getBounds(), getBounds()))
+        motionPredictor.addSample(now, cameraX, cameraY, scale, getTopBounds() - getBottomBounds());
+        hasPrediction = prefetchEnabled && motionPredictor.isMoving();
+        if (!hasPrediction)
+            return;
+
+        double predictedScale = Math.max(0.1, Math.min(motionPredictor.predictScale(PREFETCH_HORIZON), Math.pow(2, 20 - 1)));
+        double predictedX = motionPredictor.predictX(PREFETCH_HORIZON);
+        double predictedY = motionPredictor.predictY(PREFETCH_HORIZON);
+        predictedZoomLevel = getZoomLevel(predictedScale);
+
+        double left = (xWest * aspectRatio) / predictedScale + predictedX;
+        double top = yNorth / predictedScale + predictedY;
+        predictedBounds.set((float)left, (float)(top + ySouth * 2 / predictedScale),
+                (float)(left + xEast * aspectRatio * 2 / predictedScale), (float)top);
+
+        createTiles(predictedBounds, predictedZoomLevel, visibleTiles);
+
+        //A started load can't be preempted, so only prefetch while no visible tile is waiting for a loader
+        boolean loaderIdle = loadPipeline.getFetchQueueDepth() == 0;
+
+        for (int i = 0; i < visibleTiles.size(); i++)
         {
-            if (!tile.isSplit())
+            VectorTileRendered tile = visibleTiles.get(i);
+
+            //Keep the tile and its ancestors from being evicted before the view gets there
+            tile.keepAlive(frame);
+
+            if (loaderIdle && !tile.isLoading() && !tile.isLoaded())
             {
-                tile.split(
-                        new VectorTileRendered(this, tile, true, true),  //Nord-West
-                        new VectorTileRendered(this, tile, true, false), //Nord-Ost
-                        new VectorTileRendered(this, tile, false, true), //Süd-West
-                        new VectorTileRendered(this, tile, false, false) //Süd-Ost
-                );
+                tile.load();
+                prefetchedTiles++;
             }
+        }
 
-            if (tile.isSplit())
+        visibleTiles.clear();
+    }
+
+    /**
+     * Adds up how long tiles of the view have been missing, in tile milliseconds.
+     */
+    private void measureBlankTiles(long now)
+    {
+        long elapsed = lastFrameTime != 0 ? now - lastFrameTime : 0;
+        lastFrameTime = now;
+
+        int covered = collectTiles(viewBounds, viewZoomLevel, visibleTiles);
+        int blank = covered;
+        for (int i = 0; i < visibleTiles.size(); i++)
+        {
+            if (visibleTiles.get(i).isLoaded())
+                blank--;
+        }
+        visibleTiles.clear();
+
+        blankTileTime += blank * elapsed;
+    }
+
+    /**
+     * Tiles the view is about to cover according to the motion prediction.
+     */
+    private boolean isTilePredicted(VectorTileRendered tile)
+    {
+        return hasPrediction && isSourceZoomLevel(tile.getZoomLevel(), predictedZoomLevel)
+                && tile.intersects(predictedBounds);
+    }
+
+    public void setPrefetchEnabled(boolean prefetchEnabled)
+    {
+        this.prefetchEnabled = prefetchEnabled;
+    }
+
+    /**
+     * @return time tiles of the view have been shown blank or as a coarser fallback, summed over the tiles, in milliseconds
+     */
+    public long getBlankTileTime()
+    {
+        return blankTileTime;
+    }
+
+    public long getPrefetchedTileCount()
+    {
+        return prefetchedTiles;
+    }
+
+    public VectorTileRendered getTile(int zoomLevel, int x, int y)
+    {
+        return tileStore.get(zoomLevel, x, y);
+    }
+
+    /**
+     * @return true if the tile is in view at the current zoom level, or a layer of the view is drawn from it
+     */
+    public boolean isTileVisible(VectorTileRendered tile)
+    {
+        return isSourceZoomLevel(tile.getZoomLevel(), viewZoomLevel) && tile.intersects(viewBounds);
+    }
+
+    void loadStarted(VectorTileRendered tile)
+    {
+        synchronized (loadingTiles)
+        {
+            loadingTiles.add(tile);
+        }
+    }
+
+    void loadEnded(VectorTileRendered tile)
+    {
+        synchronized (loadingTiles)
+        {
+            loadingTiles.remove(tile);
+        }
+    }
+
+    /**
+     * A queued load was cancelled before it started.
+     */
+    void loadDropped(VectorTileRendered tile)
+    {
+        droppedLoads.incrementAndGet();
+    }
+
+    /**
+     * A running load was cancelled, the work done so far is lost.
+     */
+    void loadAborted(VectorTileRendered tile)
+    {
+        abortedLoads.incrementAndGet();
+    }
+
+    void loadFinished(VectorTileRendered tile)
+    {
+        if (!isTileVisible(tile) && !isTilePredicted(tile))
+            wastedLoads.incrementAndGet();
+    }
+
+    /**
+     * Cancels the loads of tiles that have been out of view or at another zoom level for longer than the grace period.
+     * Tiles the view is predicted to reach are kept.
+     */
+    private void cancelStaleLoads()
+    {
+        long now = System.nanoTime() / 1000000;
+
+        synchronized (loadingTiles)
+        {
+            for (int i = 0; i < loadingTiles.size(); i++)
+            {
+                VectorTileRendered tile = loadingTiles.get(i);
+                if (isTileVisible(tile) || isTilePredicted(tile))
+                    tile.setInvisibleSince(0);
+                else if (tile.getInvisibleSince() == 0)
+                    tile.setInvisibleSince(now);
+                else if (now - tile.getInvisibleSince() > STALE_LOAD_GRACE_PERIOD)
+                    staleTiles.add(tile);
+            }
+        }
+
+        if (staleTiles.isEmpty())
+            return;
+
+        for (int i = 0; i < staleTiles.size(); i++)
+        {
+            VectorTileRendered tile = staleTiles.get(i);
+            tile.setInvisibleSince(0);
+            tile.cancelLoad();
+        }
+
+        Log.d("VectorTileRenderer", "Cancelled " + staleTiles.size() + " stale loads, " + getLoadStatistics());
+        staleTiles.clear();
+    }
+
+    public long getDroppedLoadCount()
+    {
+        return droppedLoads.get();
+    }
+
+    public long getAbortedLoadCount()
+    {
+        return abortedLoads.get();
+    }
+
+    /**
+     * @return number of loads that completed after their tile had left the view
+     */
+    public long getWastedLoadCount()
+    {
+        return wastedLoads.get();
+    }
+
+    public String getLoadStatistics()
+    {
+        return droppedLoads.get() + " dropped while queued, " + abortedLoads.get() + " aborted while running, "
+                + wastedLoads.get() + " finished out of view, " + prefetchedTiles + " prefetched, "
+                + blankTileTime + " ms blank tile time; " + loadPipeline;
+    }
+
+    /**
+     * @return number of the frame being drawn, used to find the tiles that have been out of view the longest
+     */
+    public long getFrame()
+    {
+        return frame;
+    }
+
+    void tileCreated(VectorTileRendered tile)
+    {
+        tileStore.put(tile.getKey(), tile);
+    }
+
+    void tileRemoved(VectorTileRendered tile)
+    {
+        tileStore.remove(tile.getKey());
+    }
+
+    void buffersAllocated(int bytes)
+    {
+        gpuBytes.addAndGet(bytes);
+    }
+
+    void buffersReleased(int bytes)
+    {
+        gpuBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Unloads and prunes the tiles that have been out of view the longest until the tree fits into its budgets.
+     * Tiles on the path to the visible tiles are never evicted, so the ancestors used as fallbacks stay.
+     */
+    private void evictTiles()
+    {
+        //Bounded by the tiles that could be evicted at all
+        while (leftTiles.size() > nodeBudget)
+            leftTiles.removeFirst();
+
+        if (gpuBytes.get() <= gpuBudget && tileStore.size() <= nodeBudget)
+            return;
+
+        long unloaded = unloadedTiles;
+        long pruned = prunedTiles;
+
+        //Buffers of the tiles that left the view first, without looking at the whole tree
+        while (gpuBytes.get() > gpuBudget && !leftTiles.isEmpty())
+        {
+            VectorTileRendered tile = leftTiles.removeFirst();
+            if (tile.isLoaded() && !isTileInUse(tile))
             {
-                splitTile(tile.getNorthEastChild());
-                splitTile(tile.getNorthWestChild());
-                splitTile(tile.getSouthEastChild());
-                splitTile(tile.getSouthWestChild());
+                tile.unload();
+                unloadedTiles++;
             }
         }
-        else if (!tile.isLoading() && !tile.isLoaded() && tile.getZoomLevel() == getZoomLevel() && RectF.intersects(tile.getBounds(), getBounds()))
+
+        if (gpuBytes.get() <= gpuBudget && tileStore.size() <= nodeBudget)
+        {
+            logEviction(unloaded, pruned);
+            return;
+        }
+
+        tileStore.collectAll(evictionCandidates);
+        for (int i = evictionCandidates.size() - 1; i >= 0; i--)
         {
-            //Load tile
-            LoadCommand load = new LoadCommand(tile);
-            loadExecutor.execute(load);
+            if (isTileInUse(evictionCandidates.get(i)))
+                evictionCandidates.remove(i);
+        }
+        Collections.sort(evictionCandidates, EVICTION_ORDER);
+
+        for (int i = 0; i < evictionCandidates.size(); i++)
+        {
+            VectorTileRendered tile = evictionCandidates.get(i);
+            boolean overGpuBudget = gpuBytes.get() > gpuBudget;
+            boolean overNodeBudget = tileStore.size() > nodeBudget;
+            if (!overGpuBudget && !overNodeBudget)
+                break;
+
+            //Already removed together with an ancestor
+            if (tile.isDetached())
+                continue;
+
+            if (overNodeBudget && tile.isSplit())
+            {
+                int before = tileStore.size();
+                tile.prune();
+                prunedTiles += before - tileStore.size();
+            }
+
+            if (overGpuBudget && tile.isLoaded())
+            {
+                tile.unload();
+                unloadedTiles++;
+            }
         }
+
+        evictionCandidates.clear();
+        logEviction(unloaded, pruned);
+    }
+
+    /**
+     * @return true if the tile is drawn, on the path to a drawn or predicted tile, or part of the visible range
+     */
+    private boolean isTileInUse(VectorTileRendered tile)
+    {
+        return tile.getLastVisibleFrame() == frame
+                || visibleTileTracker.covers(tile.getZoomLevel(), tile.getX(), tile.getY());
+    }
+
+    private void logEviction(long unloaded, long pruned)
+    {
+        Log.d("VectorTileRenderer", "Evicted " + (unloadedTiles - unloaded) + " buffers and " + (prunedTiles - pruned)
+                + " tiles, " + gpuBytes.get() + " GPU bytes in " + tileStore.size() + " tiles left");
+    }
+
+    /**
+     * @param gpuBudget bytes of vertex and color buffers the tiles may keep on the GPU
+     */
+    public void setGpuBudget(long gpuBudget)
+    {
+        this.gpuBudget = gpuBudget;
+    }
+
+    /**
+     * @param nodeBudget number of tiles the tree may hold over all layers
+     */
+    public void setNodeBudget(int nodeBudget)
+    {
+        this.nodeBudget = nodeBudget;
+    }
+
+    public long getGpuBytes()
+    {
+        return gpuBytes.get();
+    }
+
+    public int getNodeCount()
+    {
+        return tileStore.size();
+    }
+
+    public long getUnloadedTileCount()
+    {
+        return unloadedTiles;
+    }
+
+    public long getPrunedTileCount()
+    {
+        return prunedTiles;
     }
 
     private void adjustCameraBounds()
@@ -250,14 +872,22 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
         shaderProgram.attachShader(fragmentShader);
         shaderProgram.link();
 
-        rootTiles = new VectorTileRendered[]{
-                new VectorTileRendered(VectorTileRendered.TileType.WaterAreas, this, null, false, false),
-                new VectorTileRendered(VectorTileRendered.TileType.LandUsages, this, null, false, false),
-                new VectorTileRendered(VectorTileRendered.TileType.RoadLines, this, null, false, false),
-                new VectorTileRendered(VectorTileRendered.TileType.Buildings, this, null, false, false),
-                new VectorTileRendered(VectorTileRendered.TileType.RoadLabels, this, null, false, false),
-                new VectorTileRendered(VectorTileRendered.TileType.PointsOfInterest, this, null, false, false)
-        };
+        //A new GL context starts with a new tree. The buffers of the old one went with the old context,
+        //its loads and queued uploads must not allocate buffers in the new one that nothing would free
+        tileStore.collectAll(evictionCandidates);
+        for (int i = 0; i < evictionCandidates.size(); i++)
+            evictionCandidates.get(i).discard();
+        evictionCandidates.clear();
+        synchronized (loadingTiles)
+        {
+            loadingTiles.clear();
+        }
+        gpuBytes.set(0);
+
+        tileStore.clear();
+        leftTiles.clear();
+        rootTile = new VectorTileRendered(this, null, false, false);
+        visibleTileTracker.reset();
     }
 
     public void addCameraPosition(float x, float y)
@@ -265,8 +895,6 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
         cameraX += (x / width * xEast * 2 * aspectRatio) / scale;
         cameraY += (y / height * yNorth * 2) / scale;
         adjustCameraBounds();
-        for (VectorTileRendered tile : rootTiles)
-            splitTile(tile);
     }
 
     @Override
@@ -285,7 +913,18 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
     @Override
     public void onDrawFrame(GL10 gl)
     {
-        tilesRendered.clear();
+        nextFrame();
+        updateView();
+
+        //The tree is changed on this thread alone because eviction prunes it here
+        visibleTileTracker.update(viewBounds, viewZoomLevel, visibleTileListener);
+
+        long now = System.nanoTime() / 1000000;
+        prefetchPredictedTiles(now);
+        measureBlankTiles(now);
+
+        cancelStaleLoads();
+
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
         GLES20.glUseProgram(shaderProgram.getId());
@@ -296,13 +935,34 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
         Matrix.multiplyMM(mvpMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
         shaderProgram.setUniformMatrix4fv("uMVPMatrix", mvpMatrix);
 
-        for (VectorTileRendered tile : rootTiles)
-            tile.render(shaderProgram, getBounds());
+        selectTiles(viewBounds, viewZoomLevel);
+
+        //Layer by layer, so e.g. roads of one tile aren't covered by the land usages of its neighbour
+        for (VectorTileRendered.TileType type : VectorTileRendered.LAYERS)
+        {
+            for (int i = 0; i < tilesRendered.size(); i++)
+                tilesRendered.get(i).rawRender(shaderProgram, type);
+        }
 
         GLES20.glUseProgram(0);
 
-        float[] identity = new float[16];
-        Matrix.setIdentityM(identity, 0);
+        evictTiles();
+    }
+
+    void nextFrame()
+    {
+        frame++;
+    }
+
+    /**
+     * Selects the tiles to draw in the current frame for the bounds.
+     * @return number of tiles selected
+     */
+    int selectTiles(RectF bounds, int zoomLevel)
+    {
+        tilesRendered.clear();
+        rootTile.render(bounds, zoomLevel);
+        return tilesRendered.size();
     }
 
     public void tileRenderedCallback(VectorTileRendered tile)
@@ -312,6 +972,6 @@ public class VectorTileRenderer implements GLSurfaceView.Renderer
 
     public boolean hasTileRendered(VectorTileRendered tile)
     {
-        return tilesRendered.contains(tile);
+        return tile.getSelectedFrame() == frame;
     }
 }
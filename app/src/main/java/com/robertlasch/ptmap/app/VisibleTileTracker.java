@@ -0,0 +1,124 @@
+package com.robertlasch.ptmap.app;
+
+import android.graphics.RectF;
+
+/**
+ * Tracks the range of tiles covering the view at its zoom level and reports only the tiles that
+ * entered or left the range since the previous update, so a small pan touches a column or row of
+ * tiles instead of the whole tree. Updated once per frame on the GL thread, however many touch
+ * events moved the camera in between.
+ *
+ * Ranges use the zoom levels of the tree, tile indices are those of the tile URLs one zoom level below.
+ */
+public class VisibleTileTracker
+{
+    public interface Listener
+    {
+        public void onTileEntered(int zoomLevel, int x, int y);
+
+        public void onTileLeft(int zoomLevel, int x, int y);
+    }
+
+    //No range yet
+    private int zoomLevel = 0;
+    private int minX, minY, maxX, maxY;
+
+    /**
+     * Computes the tile range covering the bounds and reports the difference to the previous range.
+     * Tiles only touching the bounds at an edge don't count as covered, like with RectF.intersects().
+     * @return false if the range didn't change
+     */
+    public boolean update(RectF bounds, int zoomLevel, Listener listener)
+    {
+        //Zoomed out below scale 1 the root tile covers the view
+        zoomLevel = Math.max(zoomLevel, 1);
+
+        int urlZoomLevel = zoomLevel - 1;
+        int last = (1 << urlZoomLevel) - 1;
+        double size = SphericalMercator.tileSize(urlZoomLevel);
+        double west = SphericalMercator.tileToX(0, urlZoomLevel);
+        double north = SphericalMercator.tileToY(0, urlZoomLevel);
+
+        int newMinX = clamp((int)Math.floor((bounds.left - west) / size), last);
+        int newMaxX = clamp((int)Math.ceil((bounds.right - west) / size) - 1, last);
+        //bounds.bottom is the northern edge
+        int newMinY = clamp((int)Math.floor((north - bounds.bottom) / size), last);
+        int newMaxY = clamp((int)Math.ceil((north - bounds.top) / size) - 1, last);
+
+        if (zoomLevel == this.zoomLevel && newMinX == minX && newMinY == minY && newMaxX == maxX && newMaxY == maxY)
+            return false;
+
+        int oldZoomLevel = this.zoomLevel;
+        int oldMinX = minX, oldMinY = minY, oldMaxX = maxX, oldMaxY = maxY;
+
+        this.zoomLevel = zoomLevel;
+        minX = newMinX;
+        minY = newMinY;
+        maxX = newMaxX;
+        maxY = newMaxY;
+
+        //Left first, so tiles can be released before new ones are created
+        if (oldZoomLevel != 0)
+        {
+            for (int y = oldMinY; y <= oldMaxY; y++)
+            {
+                for (int x = oldMinX; x <= oldMaxX; x++)
+                {
+                    if (oldZoomLevel != zoomLevel || x < minX || x > maxX || y < minY || y > maxY)
+                        listener.onTileLeft(oldZoomLevel, x, y);
+                }
+            }
+        }
+
+        for (int y = minY; y <= maxY; y++)
+        {
+            for (int x = minX; x <= maxX; x++)
+            {
+                if (oldZoomLevel != zoomLevel || x < oldMinX || x > oldMaxX || y < oldMinY || y > oldMaxY)
+                    listener.onTileEntered(zoomLevel, x, y);
+            }
+        }
+
+        return true;
+    }
+
+    private static int clamp(int tile, int last)
+    {
+        return Math.max(0, Math.min(tile, last));
+    }
+
+    /**
+     * @return true if the tile is in the range or an ancestor of a tile in the range
+     */
+    public boolean covers(int zoomLevel, int x, int y)
+    {
+        if (this.zoomLevel == 0 || zoomLevel > this.zoomLevel)
+            return false;
+
+        int shift = this.zoomLevel - zoomLevel;
+        return x >= minX >> shift && x <= maxX >> shift && y >= minY >> shift && y <= maxY >> shift;
+    }
+
+    /**
+     * Forgets the range, the next update reports all tiles as entered.
+     */
+    public void reset()
+    {
+        zoomLevel = 0;
+    }
+
+    public int getZoomLevel()
+    {
+        return zoomLevel;
+    }
+
+    /**
+     * @return number of tiles in the range
+     */
+    public int getTileCount()
+    {
+        if (zoomLevel == 0 || maxX < minX || maxY < minY)
+            return 0;
+        return (maxX - minX + 1) * (maxY - minY + 1);
+    }
+}
@@ -0,0 +1,171 @@
+package com.robertlasch.ptmap.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads WKB geometries straight into a FeatureBatch without creating any JTS objects.
+ * Supports Point, LineString, Polygon and their Multi variants, Z/M ordinates and
+ * EWKB SRIDs are skipped. Use JTS' WKBReader or {@link FeatureBatch#toGeometry} when
+ * topology operations are needed.
+ */
+public class WKBArrayReader
+{
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    private ByteBuffer buffer;
+    private int position;
+    private int end;
+    private boolean littleEndian;
+    private int skipOrdinates;
+
+    /**
+     * Appends the geometry stored in [offset, offset + length) of the buffer as a new feature.
+     * @return false if the geometry type is not supported, nothing is added in that case
+     */
+    public boolean read(ByteBuffer buffer, int offset, int length, FeatureBatch batch) throws IOException
+    {
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+
+        int type = readHeader();
+        if (type < FeatureBatch.POINT || type > FeatureBatch.MULTI_POLYGON)
+            return false;
+
+        batch.beginFeature((byte)type);
+
+        if (type >= FeatureBatch.MULTI_POINT)
+        {
+            int count = readCount();
+            for (int i = 0; i < count; i++)
+            {
+                if (readHeader() != type - 3)
+                    throw new IOException("Invalid part in WKB multi geometry");
+                readPart(type - 3, batch);
+            }
+        }
+        else
+        {
+            readPart(type, batch);
+        }
+
+        return true;
+    }
+
+    private void readPart(int type, FeatureBatch batch) throws IOException
+    {
+        batch.beginPart();
+
+        if (type == FeatureBatch.POINT)
+        {
+            batch.beginRing();
+            double x = readDouble();
+            double y = readDouble();
+            skip(skipOrdinates * 8);
+
+            //Empty points are stored as NaN
+            if (!Double.isNaN(x) && !Double.isNaN(y))
+                batch.addPoint(x, y);
+        }
+        else if (type == FeatureBatch.LINE_STRING)
+        {
+            readRing(batch);
+        }
+        else
+        {
+            int rings = readCount();
+            for (int i = 0; i < rings; i++)
+                readRing(batch);
+        }
+    }
+
+    private void readRing(FeatureBatch batch) throws IOException
+    {
+        int points = readCount();
+        int stride = 16 + skipOrdinates * 8;
+        if (position + points * stride > end)
+            throw new IOException("Unexpected end of WKB data");
+
+        batch.beginRing();
+        for (int i = 0; i < points; i++)
+        {
+            double x = readDouble();
+            double y = readDouble();
+            skip(skipOrdinates * 8);
+            batch.addPoint(x, y);
+        }
+    }
+
+    /**
+     * Reads byte order and geometry type.
+     * @return the plain 2D geometry type code
+     */
+    private int readHeader() throws IOException
+    {
+        require(5);
+        littleEndian = buffer.get(position++) == 1;
+
+        int type = readInt();
+        skipOrdinates = 0;
+
+        if ((type & EWKB_Z) != 0) skipOrdinates++;
+        if ((type & EWKB_M) != 0) skipOrdinates++;
+        if ((type & EWKB_SRID) != 0) skip(4);
+        type &= 0xFFFF;
+
+        //ISO WKB: 1000 = Z, 2000 = M, 3000 = ZM
+        if (type > 1000)
+        {
+            int dimensions = type / 1000;
+            skipOrdinates = dimensions == 3 ? 2 : 1;
+            type %= 1000;
+        }
+
+        return type;
+    }
+
+    private int readCount() throws IOException
+    {
+        int count = readInt();
+        if (count < 0)
+            throw new IOException("Invalid element count in WKB data");
+        return count;
+    }
+
+    private int readInt() throws IOException
+    {
+        require(4);
+        int value = buffer.getInt(position);
+        position += 4;
+        return needsSwap() ? Integer.reverseBytes(value) : value;
+    }
+
+    private double readDouble() throws IOException
+    {
+        require(8);
+        long bits = buffer.getLong(position);
+        position += 8;
+        return Double.longBitsToDouble(needsSwap() ? Long.reverseBytes(bits) : bits);
+    }
+
+    private void skip(int bytes) throws IOException
+    {
+        require(bytes);
+        position += bytes;
+    }
+
+    private boolean needsSwap()
+    {
+        return littleEndian != (buffer.order() == ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void require(int bytes) throws IOException
+    {
+        if (position + bytes > end)
+            throw new IOException("Unexpected end of WKB data");
+    }
+}
@@ -0,0 +1,229 @@
+package com.robertlasch.ptmap.app;
+
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Counts the bytes the per-frame work on the GL thread allocates, through the allocation counter of
+ * the JVM's ThreadMXBean: VisibleTileTracker and TileStore while the view is at rest or panning, the
+ * tile selection walking a loaded tree with moving bounds, and whole frames of the renderer at rest.
+ * None of it may allocate. Creating the tile nodes of entering tiles isn't covered, it allocates by design.
+ *
+ * The JIT may remove allocations through escape analysis that ART would still do; run with
+ * -XX:-DoEscapeAnalysis to count those too.
+ */
+public class FrameAllocationTest extends TestCase
+{
+    private static final int FRAMES = 20000;
+
+    private final TileStore store = new TileStore();
+    private final RectF bounds = new RectF();
+    private int entered, left;
+
+    private final VisibleTileTracker.Listener listener = new VisibleTileTracker.Listener()
+    {
+        @Override
+        public void onTileEntered(int zoomLevel, int x, int y)
+        {
+            long key = TileKey.pack(zoomLevel, x, y, 0);
+            if (!store.contains(key))
+                store.put(key, null);
+            entered++;
+        }
+
+        @Override
+        public void onTileLeft(int zoomLevel, int x, int y)
+        {
+            store.remove(TileKey.pack(zoomLevel, x, y, 0));
+            left++;
+        }
+    };
+
+    public FrameAllocationTest(String name)
+    {
+        super(name);
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean()
+    {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+        return threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled() ? threadBean : null;
+    }
+
+    /**
+     * Moves the view about a quarter tile per frame at zoom 15, back and forth across a few tiles.
+     */
+    private void runFrames(VisibleTileTracker tracker, int frames, boolean panning)
+    {
+        int urlZoomLevel = 14;
+        double size = SphericalMercator.tileSize(urlZoomLevel);
+        double west = SphericalMercator.tileToX(8800, urlZoomLevel);
+        double south = SphericalMercator.tileToY(5370, urlZoomLevel) + size;
+
+        for (int frame = 0; frame < frames; frame++)
+        {
+            double offset = panning ? size / 4 * (frame % 32 < 16 ? frame % 16 : 16 - frame % 16) : 0;
+            bounds.left = (float)(west + offset);
+            bounds.right = (float)(west + offset + 2.5 * size);
+            bounds.top = (float)south;
+            bounds.bottom = (float)(south + 4.5 * size);
+
+            tracker.update(bounds, urlZoomLevel + 1, listener);
+        }
+    }
+
+    private long measure(final VisibleTileTracker tracker, final boolean panning)
+    {
+        //Warm up, the store grows to its final capacity
+        return measure(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runFrames(tracker, FRAMES, panning);
+            }
+        });
+    }
+
+    /**
+     * @return bytes allocated by the second of two runs of the frames, -1 if the JVM doesn't count them
+     */
+    private static long measure(Runnable frames)
+    {
+        com.sun.management.ThreadMXBean threadBean = getThreadBean();
+        if (threadBean == null)
+            return -1;
+
+        long thread = Thread.currentThread().getId();
+        frames.run();
+
+        long before = threadBean.getThreadAllocatedBytes(thread);
+        frames.run();
+        long after = threadBean.getThreadAllocatedBytes(thread);
+
+        return after - before;
+    }
+
+    public void testStaticViewDoesNotAllocate()
+    {
+        VisibleTileTracker tracker = new VisibleTileTracker();
+        long bytes = measure(tracker, false);
+        if (bytes < 0)
+            return;
+
+        //Only the very first update reports tiles
+        assertEquals(tracker.getTileCount(), entered);
+        //Allow for the allocation counter itself, a single allocation per frame would be 20000 * 16 bytes
+        assertTrue(bytes + " bytes in " + FRAMES + " frames", bytes < FRAMES);
+    }
+
+    public void testPanningDoesNotAllocate()
+    {
+        VisibleTileTracker tracker = new VisibleTileTracker();
+        long bytes = measure(tracker, true);
+        if (bytes < 0)
+            return;
+
+        assertTrue(entered > FRAMES / 4);
+        assertEquals(entered - left, tracker.getTileCount());
+        assertEquals(tracker.getTileCount(), store.size());
+        assertTrue(bytes + " bytes in " + FRAMES + " frames", bytes < FRAMES);
+    }
+
+    public void testSelectingTilesDoesNotAllocate() throws Exception
+    {
+        final int zoomLevel = 15;
+        final int minX = 8800, minY = 5370;
+        final RendererHarness harness = new RendererHarness(1080, 1920);
+
+        try
+        {
+            harness.buildTree(zoomLevel, minX, minY, minX + 15, minY + 15);
+            final VectorTileRenderer renderer = harness.renderer;
+            final int[] selected = new int[1];
+
+            long bytes = measure(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    //Pans across the tree, selecting 4 to 9 tiles of the 256 per frame
+                    for (int frame = 0; frame < FRAMES; frame++)
+                    {
+                        int offset = frame % 14;
+                        RendererHarness.setBounds(bounds, zoomLevel, minX + offset, minY + offset, minX + offset + 1, minY + offset + 2);
+                        bounds.right += (float)(SphericalMercator.tileSize(zoomLevel - 1) / 2);
+
+                        renderer.nextFrame();
+                        selected[0] = renderer.selectTiles(bounds, zoomLevel);
+                    }
+                }
+            });
+            if (bytes < 0)
+                return;
+
+            assertEquals(9, selected[0]);
+            assertTrue(bytes + " bytes in " + FRAMES + " frames", bytes < FRAMES);
+        }
+        finally
+        {
+            harness.shutdown();
+        }
+    }
+
+    public void testDrawingStaticViewDoesNotAllocate() throws Exception
+    {
+        final RendererHarness harness = new RendererHarness(1080, 1920);
+
+        try
+        {
+            final VectorTileRenderer renderer = harness.renderer;
+            ArrayList<VectorTileRendered> visible = new ArrayList<VectorTileRendered>();
+
+            //Draw until every tile in view is loaded and uploaded
+            long deadline = System.currentTimeMillis() + RendererHarness.TIMEOUT;
+            while (true)
+            {
+                assertTrue("Tiles not loaded", System.currentTimeMillis() < deadline);
+                renderer.onDrawFrame(null);
+                harness.runEvents();
+
+                visible.clear();
+                renderer.collectVisibleTiles(visible);
+                boolean loaded = !visible.isEmpty();
+                for (VectorTileRendered tile : visible)
+                    loaded &= tile.isLoaded();
+                if (loaded)
+                    break;
+
+                Thread.sleep(5);
+            }
+
+            long bytes = measure(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int frame = 0; frame < FRAMES; frame++)
+                        renderer.onDrawFrame(null);
+                }
+            });
+            if (bytes < 0)
+                return;
+
+            assertTrue(bytes + " bytes in " + FRAMES + " frames", bytes < FRAMES);
+        }
+        finally
+        {
+            harness.shutdown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.robertlasch.ptmap.app;
+
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Times the tile selection of a frame, VectorTileRenderer.selectTiles(), on a tree of loaded tiles
+ * with 50, 200 and 800 of them in view. Next to it runs the duplicate check the frame stamps
+ * replaced, a LinkedList.contains() before adding every selected tile, over the same tiles.
+ *
+ * A phone shows far fewer tiles at the zoom level of the view, the larger sizes stand for the
+ * overzoomed and prefetched tiles a frame has to walk past.
+ */
+public class FrameSelectionBenchmark extends TestCase
+{
+    //Zoom level of the tree, one above the tile URLs
+    private static final int ZOOM_LEVEL = 15;
+    private static final int MIN_X = 8800;
+    private static final int MIN_Y = 5370;
+    private static final int FRAMES = 2000;
+
+    private RendererHarness harness;
+
+    public FrameSelectionBenchmark(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        harness = new RendererHarness(1080, 1920);
+        harness.buildTree(ZOOM_LEVEL, MIN_X, MIN_Y, MIN_X + 39, MIN_Y + 19);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        harness.shutdown();
+    }
+
+    public void testSelection()
+    {
+        int[][] sizes = { { 10, 5 }, { 20, 10 }, { 40, 20 } };
+
+        //Warm up all sizes first, so each is measured with the same compiled code
+        for (int[] size : sizes)
+            measure(size[0], size[1], false);
+        for (int[] size : sizes)
+            measure(size[0], size[1], true);
+    }
+
+    private void measure(int width, int height, boolean report)
+    {
+        VectorTileRenderer renderer = harness.renderer;
+        int tileCount = width * height;
+
+        RectF bounds = new RectF();
+        RendererHarness.setBounds(bounds, ZOOM_LEVEL, MIN_X, MIN_Y, MIN_X + width - 1, MIN_Y + height - 1);
+
+        ArrayList<VectorTileRendered> tiles = new ArrayList<VectorTileRendered>();
+        for (int y = MIN_Y; y < MIN_Y + height; y++)
+        {
+            for (int x = MIN_X; x < MIN_X + width; x++)
+                tiles.add(renderer.getTile(ZOOM_LEVEL, x, y));
+        }
+
+        //Every tile in view is selected once
+        renderer.nextFrame();
+        assertEquals(tileCount, renderer.selectTiles(bounds, ZOOM_LEVEL));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++)
+        {
+            renderer.nextFrame();
+            renderer.selectTiles(bounds, ZOOM_LEVEL);
+        }
+        long selecting = System.nanoTime() - start;
+
+        LinkedList<VectorTileRendered> rendered = new LinkedList<VectorTileRendered>();
+        start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++)
+            checkDuplicates(tiles, rendered);
+        long checking = System.nanoTime() - start;
+
+        assertEquals(tileCount, rendered.size());
+
+        if (report)
+        {
+            System.out.println(String.format("%3d tiles: %6.1f us/frame selecting, the former duplicate check alone %6.1f us/frame",
+                    tileCount, selecting / 1000.0 / FRAMES, checking / 1000.0 / FRAMES));
+        }
+    }
+
+    /**
+     * What hasTileRendered() did for every selected tile before the frame stamps.
+     */
+    private static void checkDuplicates(ArrayList<VectorTileRendered> tiles, LinkedList<VectorTileRendered> rendered)
+    {
+        rendered.clear();
+        for (int i = 0; i < tiles.size(); i++)
+        {
+            VectorTileRendered tile = tiles.get(i);
+            if (!rendered.contains(tile))
+                rendered.add(tile);
+        }
+    }
+}
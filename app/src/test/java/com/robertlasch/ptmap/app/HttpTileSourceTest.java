@@ -0,0 +1,333 @@
+package com.robertlasch.ptmap.app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs HttpTileSource against a local HttpServer whose handlers fail, delay or revalidate on demand.
+ * Tile paths are /{handler}/{z}/{x}/{y}, the handler is selected through the tile type.
+ */
+public class HttpTileSourceTest extends TestCase
+{
+    private static final byte[] TILE = "tile".getBytes();
+    private static final VectorTileRendered.TileType OK = VectorTileRendered.TileType.RoadLines;
+    private static final VectorTileRendered.TileType FLAKY = VectorTileRendered.TileType.RoadLabels;
+    private static final VectorTileRendered.TileType DOWN = VectorTileRendered.TileType.Buildings;
+    private static final VectorTileRendered.TileType CACHED = VectorTileRendered.TileType.PointsOfInterest;
+    private static final VectorTileRendered.TileType SLOW = VectorTileRendered.TileType.LandUsages;
+    private static final VectorTileRendered.TileType GONE = VectorTileRendered.TileType.WaterAreas;
+    private static final VectorTileRendered.TileType DENIED = VectorTileRendered.TileType.Default;
+
+    private HttpServer server;
+    private String[] templates;
+
+    private final AtomicInteger flakyFailures = new AtomicInteger();
+    private final AtomicInteger downRequests = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final CountDownLatch downReached = new CountDownLatch(1);
+
+    public HttpTileSourceTest(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        server.createContext("/ok/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, 200, TILE);
+            }
+        });
+        server.createContext("/flaky/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                if (flakyFailures.getAndDecrement() > 0)
+                    respond(exchange, 503, null);
+                else
+                    respond(exchange, 200, TILE);
+            }
+        });
+        server.createContext("/down/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                downRequests.incrementAndGet();
+                respond(exchange, 503, null);
+                downReached.countDown();
+            }
+        });
+        server.createContext("/cached/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                {
+                    respond(exchange, 304, null);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                respond(exchange, 200, TILE);
+            }
+        });
+        server.createContext("/slow/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                int now = active.incrementAndGet();
+                for (int max = maxActive.get(); now > max && !maxActive.compareAndSet(max, now); max = maxActive.get());
+
+                try
+                {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException ignored) { }
+
+                active.decrementAndGet();
+                respond(exchange, 200, TILE);
+            }
+        });
+        server.createContext("/gone/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, 404, null);
+            }
+        });
+        server.createContext("/denied/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, 403, null);
+            }
+        });
+
+        server.start();
+
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        templates = new String[VectorTileRendered.TileType.values().length];
+        templates[OK.id] = base + "/ok/{z}/{x}/{y}";
+        templates[FLAKY.id] = base + "/flaky/{z}/{x}/{y}";
+        templates[DOWN.id] = base + "/down/{z}/{x}/{y}";
+        templates[CACHED.id] = base + "/cached/{z}/{x}/{y}";
+        templates[SLOW.id] = base + "/slow/{z}/{x}/{y}";
+        templates[GONE.id] = base + "/gone/{z}/{x}/{y}";
+        templates[DENIED.id] = base + "/denied/{z}/{x}/{y}";
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException
+    {
+        exchange.sendResponseHeaders(status, body != null ? body.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        if (body != null)
+            out.write(body);
+        out.close();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public void testRetriesServerErrors() throws Exception
+    {
+        HttpTileSource source = new HttpTileSource(templates);
+        flakyFailures.set(2);
+
+        assertTrue(Arrays.equals(TILE, bytes(source.getPayload(1, 2, 3, FLAKY))));
+        assertEquals(3, source.getRequestCount());
+        assertEquals(2, source.getRetryCount());
+    }
+
+    public void testGivesUpAfterMaxRetries() throws Exception
+    {
+        HttpTileSource source = new HttpTileSource(templates);
+        source.setMaxRetries(1);
+
+        try
+        {
+            source.getPayload(1, 2, 3, DOWN);
+            fail("Expected the request to fail");
+        }
+        catch (IOException expected) { }
+
+        assertEquals(2, downRequests.get());
+        assertEquals(1, source.getRetryCount());
+    }
+
+    public void testClientErrorsAreNotRetried() throws Exception
+    {
+        HttpTileSource source = new HttpTileSource(templates);
+
+        try
+        {
+            source.getPayload(1, 2, 3, DENIED);
+            fail("Expected the request to fail");
+        }
+        catch (IOException expected) { }
+
+        assertEquals(1, source.getRequestCount());
+        assertNull(source.getPayload(1, 2, 3, GONE));
+    }
+
+    public void testBackoffIsJitteredBelowExponentialBound()
+    {
+        HttpTileSource source = new HttpTileSource(templates);
+
+        for (int attempt = 0; attempt < 4; attempt++)
+        {
+            long max = 0;
+            for (int i = 0; i < 1000; i++)
+            {
+                long delay = source.getRetryDelay(attempt);
+                assertTrue(delay >= 0 && delay < HttpTileSource.BASE_RETRY_DELAY << attempt);
+                max = Math.max(max, delay);
+            }
+            //Jittered over the whole range, not a fixed delay
+            assertTrue(max > (HttpTileSource.BASE_RETRY_DELAY << attempt) / 2);
+        }
+    }
+
+    public void testBackoffWaitsBetweenAttempts() throws Exception
+    {
+        HttpTileSource source = new HttpTileSource(templates)
+        {
+            @Override
+            long getRetryDelay(int attempt)
+            {
+                return 200;
+            }
+        };
+        flakyFailures.set(2);
+
+        long start = System.nanoTime();
+        source.getPayload(1, 2, 3, FLAKY);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Took " + elapsed + " ms", elapsed >= 400);
+    }
+
+    public void testBackoffReleasesConnectionSlot() throws Exception
+    {
+        final HttpTileSource source = new HttpTileSource(templates, 1)
+        {
+            @Override
+            long getRetryDelay(int attempt)
+            {
+                return 2000;
+            }
+        };
+        source.setMaxRetries(1);
+
+        Thread failing = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    source.getPayload(1, 2, 3, DOWN);
+                }
+                catch (IOException ignored) { }
+            }
+        });
+        failing.start();
+        assertTrue(downReached.await(5, TimeUnit.SECONDS));
+
+        //The only slot of the host is free while the failed request backs off
+        long start = System.nanoTime();
+        assertNotNull(source.getPayload(1, 2, 3, OK));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + elapsed + " ms", elapsed < 1000);
+
+        failing.join();
+    }
+
+    public void testRevalidatesWithETag() throws Exception
+    {
+        HttpTileSource source = new HttpTileSource(templates);
+
+        HttpTileSource.Response response = source.fetch(1, 2, 3, CACHED, null, 0);
+        assertTrue(!response.notModified);
+        assertEquals("\"v1\"", response.eTag);
+        assertTrue(Arrays.equals(TILE, bytes(response.payload)));
+
+        HttpTileSource.Response revalidated = source.fetch(1, 2, 3, CACHED, response.eTag, 0);
+        assertTrue(revalidated.notModified);
+        assertNull(revalidated.payload);
+        assertEquals("\"v1\"", revalidated.eTag);
+        assertEquals(1, source.getNotModifiedCount());
+
+        HttpTileSource.Response changed = source.fetch(1, 2, 3, CACHED, "\"v0\"", 0);
+        assertTrue(!changed.notModified);
+        assertEquals(1, source.getNotModifiedCount());
+    }
+
+    public void testLimitsConnectionsPerHost() throws Exception
+    {
+        final HttpTileSource source = new HttpTileSource(templates, 2);
+        Thread[] threads = new Thread[8];
+        final AtomicInteger loaded = new AtomicInteger();
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int x = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if (source.getPayload(x, 0, 3, SLOW) != null)
+                            loaded.incrementAndGet();
+                    }
+                    catch (IOException ignored) { }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(threads.length, loaded.get());
+        assertEquals(2, maxActive.get());
+    }
+}
@@ -0,0 +1,220 @@
+package com.robertlasch.ptmap.app;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compares decoding a payload in place with the decoding it replaced, which copied the payload and
+ * the WKB of every feature into new arrays and created a WKBReader per feature. Both paths handle
+ * the properties the same way, with the string splitting MVTTileProvider did at the time, so only
+ * the copies differ. Reports time, allocated bytes and collections per feature.
+ *
+ * Runs on a synthetic payload of road lines, as there is no .mvt corpus in the repository.
+ */
+public class MVTPayloadDecoderBenchmark extends TestCase
+{
+    private static final int FEATURES = 2000;
+    private static final int POINTS = 20;
+    private static final int ROUNDS = 100;
+
+    private byte[] payload;
+
+    public MVTPayloadDecoderBenchmark(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        GeometryFactory factory = new GeometryFactory();
+        WKBWriter writer = new WKBWriter();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(FEATURES);
+        for (int i = 0; i < FEATURES; i++)
+        {
+            Coordinate[] coordinates = new Coordinate[POINTS];
+            for (int j = 0; j < POINTS; j++)
+                coordinates[j] = new Coordinate(i * 10 + j, j * 3.5);
+
+            byte[] wkb = writer.write(factory.createLineString(coordinates));
+            byte[] json = ("{\"kind\":\"minor_road\",\"highway\":\"residential\",\"name\":\"Street " + i + "\",\"sort_key\":" + i + "}").getBytes("UTF-8");
+
+            out.writeInt(wkb.length);
+            out.write(wkb);
+            out.writeInt(json.length);
+            out.write(json);
+        }
+
+        payload = bytes.toByteArray();
+    }
+
+    public void testInPlaceMatchesCopy() throws Exception
+    {
+        Geometry[] inPlace = decodeInPlace(new WKBReader());
+        Geometry[] copied = decodeCopying();
+
+        assertEquals(FEATURES, inPlace.length);
+        for (int i = 0; i < FEATURES; i++)
+            assertTrue(inPlace[i].equalsExact(copied[i]));
+    }
+
+    public void testThroughput() throws Exception
+    {
+        WKBReader reader = new WKBReader();
+
+        //Warm up both paths before measuring them
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            decodeInPlace(reader);
+            decodeCopying();
+        }
+
+        //Alternate the paths, the heap state of a long run otherwise decides which one is faster
+        Measurement inPlace = new Measurement();
+        Measurement copying = new Measurement();
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            inPlace.begin();
+            decodeInPlace(reader);
+            inPlace.end();
+
+            copying.begin();
+            decodeCopying();
+            copying.end();
+        }
+
+        System.out.println("MVT decode in place: " + inPlace);
+        System.out.println("MVT decode copying:  " + copying);
+
+        //The copies are a payload per tile plus a WKB array and a WKBReader per feature
+        if (inPlace.bytes >= 0)
+            assertTrue(inPlace.bytes < copying.bytes);
+    }
+
+    private Geometry[] decodeInPlace(WKBReader reader) throws Exception
+    {
+        MVTPayloadDecoder decoder = new MVTPayloadDecoder(ByteBuffer.wrap(payload));
+        Geometry[] geometries = new Geometry[decoder.getFeatureCount()];
+
+        while (decoder.next())
+        {
+            geometries[decoder.getFeatureIndex()] = decoder.readGeometry(reader);
+            parseProperties(payload, decoder.getJsonOffset(), decoder.getJsonLength());
+        }
+
+        return geometries;
+    }
+
+    /**
+     * The decoding before MVTPayloadDecoder, as MVTTileProvider did it.
+     */
+    private Geometry[] decodeCopying() throws Exception
+    {
+        byte[] result = payload;
+        int featureCount = (result[0] << 24 | (result[1] & 0xFF) << 16 | (result[2] & 0xFF) << 8 | (result[3] & 0xFF));
+        result = Arrays.copyOfRange(result, 4, result.length);
+
+        Geometry[] geometries = new Geometry[featureCount];
+        int featureStart = 0;
+
+        for (int i = 0; i < featureCount; i++)
+        {
+            int wkbLength = (result[featureStart] << 24 | (result[featureStart + 1] & 0xFF) << 16 | (result[featureStart + 2] & 0xFF) << 8 | (result[featureStart + 3] & 0xFF));
+            byte[] wkbData = Arrays.copyOfRange(result, featureStart + 4, featureStart + 4 + wkbLength);
+            WKBReader geomReader = new WKBReader();
+            geometries[i] = geomReader.read(wkbData);
+
+            int jsonLength = (result[featureStart + 4 + wkbLength] << 24 | (result[featureStart + 5 + wkbLength] & 0xFF) << 16 | (result[featureStart + 6 + wkbLength] & 0xFF) << 8 | (result[featureStart + 7 + wkbLength] & 0xFF));
+            parseProperties(result, featureStart + 8 + wkbLength, jsonLength);
+
+            featureStart += 8 + wkbLength + jsonLength;
+        }
+
+        return geometries;
+    }
+
+    /**
+     * The property parsing of MVTTileProvider at the time, shared by both paths.
+     */
+    private static HashMap<String, String> parseProperties(byte[] data, int offset, int length)
+    {
+        String jsonString = new String(data, offset, length);
+        HashMap<String, String> jsonDict = new HashMap<String, String>();
+        jsonString = jsonString.replace("{", "").replace("}", "");
+        if (!jsonString.trim().equals(""))
+        {
+            for (String s : jsonString.split(",\\s?\""))
+            {
+                String[] keyVal = s.replace("\"", "").split(":");
+                jsonDict.put(keyVal[0].trim(), keyVal[1].trim());
+            }
+        }
+
+        return jsonDict;
+    }
+
+    /**
+     * Time, bytes allocated by this thread and collections of all collectors, summed over the rounds.
+     */
+    private static class Measurement
+    {
+        private long start, startBytes, startCollections;
+        long nanos, bytes, collections;
+
+        void begin()
+        {
+            startCollections = getCollectionCount();
+            startBytes = getAllocatedBytes();
+            start = System.nanoTime();
+        }
+
+        void end()
+        {
+            nanos += System.nanoTime() - start;
+            bytes = startBytes < 0 || bytes < 0 ? -1 : bytes + getAllocatedBytes() - startBytes;
+            collections += getCollectionCount() - startCollections;
+        }
+
+        private static long getAllocatedBytes()
+        {
+            Object bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean))
+                return -1;
+
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+            return threadBean.isThreadAllocatedMemorySupported() ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+        }
+
+        private static long getCollectionCount()
+        {
+            long count = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+                count += Math.max(0, collector.getCollectionCount());
+            return count;
+        }
+
+        @Override
+        public String toString()
+        {
+            double features = (double)ROUNDS * FEATURES;
+            return String.format("%.0f ns/feature, %.0f bytes/feature, %d collections",
+                    nanos / features, bytes / features, collections);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.robertlasch.ptmap.app;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks hand built payloads with one feature of a 4 byte WKB and a 2 byte JSON record.
+ */
+public class MVTPayloadDecoderTest extends TestCase
+{
+    public MVTPayloadDecoderTest(String name)
+    {
+        super(name);
+    }
+
+    private static ByteBuffer createPayload(int wkbLength, int jsonLength)
+    {
+        ByteBuffer payload = ByteBuffer.allocate(32);
+        payload.putInt(1).putInt(wkbLength).put(new byte[4]).putInt(jsonLength).put(new byte[2]);
+        payload.flip();
+        return payload;
+    }
+
+    public void testReadsLengths() throws IOException
+    {
+        MVTPayloadDecoder decoder = new MVTPayloadDecoder(createPayload(4, 2));
+        assertTrue(decoder.next());
+        assertEquals(8, decoder.getWkbOffset());
+        assertEquals(4, decoder.getWkbLength());
+        assertEquals(16, decoder.getJsonOffset());
+        assertEquals(2, decoder.getJsonLength());
+        assertTrue(!decoder.next());
+    }
+
+    public void testRejectsLengthsPastTheEnd() throws IOException
+    {
+        int[] lengths = { 5, Integer.MAX_VALUE - 3, Integer.MAX_VALUE, -1 };
+        for (int length : lengths)
+        {
+            MVTPayloadDecoder decoder = new MVTPayloadDecoder(createPayload(length, 2));
+            try
+            {
+                decoder.next();
+                fail("Accepted a WKB length of " + length);
+            }
+            catch (IOException e)
+            {
+                //Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.robertlasch.ptmap.app;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays a pan trace in a tile level simulation of the loader threads and compares the blank tile
+ * time with and without prefetching the range MotionPredictor extrapolates. Like the renderer, visible
+ * tiles are always started first and predicted tiles are only queued while nothing else is waiting.
+ *
+ * Positions are in tiles, the view shows a portrait phone screen of 4.2 by 7.5 tiles.
+ */
+public class PrefetchSimulationBenchmark extends TestCase
+{
+    private static final double VIEW_WIDTH = 4.2;
+    private static final double VIEW_HEIGHT = 7.5;
+    private static final long FRAME = 16;
+    private static final long HORIZON = 300;
+
+    //Pan gestures and pauses: duration in ms, velocity in tiles per second
+    private static final double[][] TRACE = {
+            { 800, 6, 0 }, { 300, 0, 0 }, { 600, 0, -9 }, { 200, 0, 0 }, { 1000, -4, 4 },
+            { 400, 0, 0 }, { 700, 10, 2 }, { 500, 0, 0 }, { 900, -3, -7 }, { 500, 0, 0 } };
+
+    public PrefetchSimulationBenchmark(String name)
+    {
+        super(name);
+    }
+
+    public void testPredictsSteadyPan()
+    {
+        MotionPredictor predictor = new MotionPredictor();
+        for (long t = 0; t <= 320; t += FRAME)
+            predictor.addSample(t, t * 0.01, 0, 1, VIEW_HEIGHT);
+
+        assertTrue(predictor.isMoving());
+        //10 tiles per second, 3 tiles in 300 ms
+        assertEquals(3.2 + 3, predictor.predictX(HORIZON), 0.1);
+        assertEquals(0, predictor.predictY(HORIZON), 0.01);
+    }
+
+    public void testBlankTime()
+    {
+        for (int loaders : new int[] { 4, 8, 16 })
+        {
+            for (long loadTime : new long[] { 150, 250, 400 })
+            {
+                long without = simulate(loaders, loadTime, false);
+                long with = simulate(loaders, loadTime, true);
+                System.out.println(String.format("%2d loaders, %d ms loads: %6d -> %6d tile-ms blank (%d%% less)",
+                        loaders, loadTime, without, with, 100 * (without - with) / without));
+
+                //Prefetch only ever uses idle loaders, it must not make things worse
+                assertTrue(with <= without);
+                if (loaders == 16)
+                    assertTrue(with < without);
+            }
+        }
+    }
+
+    /**
+     * @return blank tile time in tile-ms, summed over all frames
+     */
+    private static long simulate(int loaders, long loadTime, boolean prefetch)
+    {
+        MotionPredictor predictor = new MotionPredictor();
+        Map<Long, Long> loaded = new HashMap<Long, Long>();
+        Set<Long> requested = new HashSet<Long>();
+        List<Long> queue = new ArrayList<Long>();
+        long[] busyUntil = new long[loaders];
+        Long[] loading = new Long[loaders];
+        Random jitter = new Random(7);
+
+        double x = 0, y = 0;
+        long time = 0;
+        long blank = 0;
+
+        for (double[] gesture : TRACE)
+        {
+            for (long elapsed = 0; elapsed < gesture[0]; elapsed += FRAME, time += FRAME)
+            {
+                x += gesture[1] * FRAME / 1000 * (1 + 0.1 * jitter.nextGaussian());
+                y += gesture[2] * FRAME / 1000 * (1 + 0.1 * jitter.nextGaussian());
+
+                for (int i = 0; i < loaders; i++)
+                {
+                    if (loading[i] != null && busyUntil[i] <= time)
+                    {
+                        loaded.put(loading[i], time);
+                        loading[i] = null;
+                    }
+                }
+
+                List<Long> visible = range(x, y);
+                for (Long tile : visible)
+                    if (!loaded.containsKey(tile) && requested.add(tile))
+                        queue.add(tile);
+
+                if (prefetch)
+                {
+                    predictor.addSample(time, x, y, 1, VIEW_HEIGHT);
+                    if (predictor.isMoving() && queue.isEmpty())
+                        for (Long tile : range(predictor.predictX(HORIZON), predictor.predictY(HORIZON)))
+                            if (!loaded.containsKey(tile) && requested.add(tile))
+                                queue.add(tile);
+                }
+
+                Set<Long> visibleSet = new HashSet<Long>(visible);
+                for (int i = 0; i < loaders && !queue.isEmpty(); i++)
+                {
+                    if (loading[i] != null)
+                        continue;
+
+                    //Visible tiles first, a started load can't be preempted
+                    int next = 0;
+                    for (int j = 0; j < queue.size() && !visibleSet.contains(queue.get(next)); j++)
+                        if (visibleSet.contains(queue.get(j)))
+                            next = j;
+
+                    loading[i] = queue.remove(next);
+                    busyUntil[i] = time + loadTime;
+                }
+
+                for (Long tile : visible)
+                    if (!loaded.containsKey(tile))
+                        blank += FRAME;
+            }
+        }
+
+        return blank;
+    }
+
+    private static List<Long> range(double x, double y)
+    {
+        List<Long> tiles = new ArrayList<Long>();
+        for (int tileX = (int)Math.floor(x - VIEW_WIDTH / 2); tileX <= (int)Math.floor(x + VIEW_WIDTH / 2); tileX++)
+            for (int tileY = (int)Math.floor(y - VIEW_HEIGHT / 2); tileY <= (int)Math.floor(y + VIEW_HEIGHT / 2); tileY++)
+                tiles.add(((long)tileX << 32) ^ (tileY & 0xFFFFFFFFL));
+        return tiles;
+    }
+}
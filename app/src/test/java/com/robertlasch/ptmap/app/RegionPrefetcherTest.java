@@ -0,0 +1,209 @@
+package com.robertlasch.ptmap.app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefetches a small region from a local HttpServer into a DiskTileCache in a temporary directory
+ * and checks that repeated and resumed runs only download what the cache is missing.
+ */
+public class RegionPrefetcherTest extends TestCase
+{
+    //A few tiles around Berlin at zoom levels 12 and 13
+    private static final double WEST = 13.38, SOUTH = 52.50, EAST = 13.42, NORTH = 52.52;
+    private static final int MIN_ZOOM = 12, MAX_ZOOM = 13;
+    private static final long BUDGET = 64 * 1024 * 1024;
+
+    private HttpServer server;
+    private String[] templates;
+    private File directory;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int delay = 0;
+
+    public RegionPrefetcherTest(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                requests.incrementAndGet();
+
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException ignored) { }
+
+                //The server has no points of interest
+                if (exchange.getRequestURI().getPath().startsWith("/" + VectorTileRendered.TileType.PointsOfInterest.id + "/"))
+                {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+
+                byte[] body = exchange.getRequestURI().getPath().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        templates = new String[VectorTileRendered.TileType.values().length];
+        for (VectorTileRendered.TileType type : VectorTileRendered.TileType.values())
+            templates[type.id] = "http://127.0.0.1:" + server.getAddress().getPort() + "/" + type.id + "/{z}/{x}/{y}";
+
+        directory = File.createTempFile("tiles", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        server.stop(0);
+
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private DiskTileCache createCache()
+    {
+        return new DiskTileCache(directory, BUDGET, new HttpTileSource(templates));
+    }
+
+    private RegionPrefetcher createPrefetcher(DiskTileCache cache)
+    {
+        return new RegionPrefetcher(cache, WEST, SOUTH, EAST, NORTH, MIN_ZOOM, MAX_ZOOM);
+    }
+
+    private static long countLayer(RegionPrefetcher prefetcher)
+    {
+        return prefetcher.getTotalCount() / VectorTileRendered.LAYERS.length;
+    }
+
+    public void testSecondRunSkipsCachedTiles() throws Exception
+    {
+        RegionPrefetcher first = createPrefetcher(createCache());
+        Listener listener = new Listener();
+        first.start(3, listener);
+        listener.await();
+
+        long total = first.getTotalCount();
+        long missing = countLayer(first);
+        assertEquals(1, listener.finished.get());
+        assertEquals(0, listener.stopped.get());
+        assertEquals(total - missing, first.getDownloadedCount());
+        assertEquals(missing, first.getMissingCount());
+        assertEquals(0, first.getSkippedCount());
+        assertEquals(0, first.getFailedCount());
+        assertEquals(total, requests.get());
+
+        //A new cache over the same directory, like after a restart of the app
+        requests.set(0);
+        RegionPrefetcher second = createPrefetcher(createCache());
+        listener = new Listener();
+        second.start(3, listener);
+        listener.await();
+
+        assertEquals(1, listener.finished.get());
+        assertEquals(0, second.getDownloadedCount());
+        assertEquals(total - missing, second.getSkippedCount());
+        //Tiles the server doesn't have aren't cached and get asked for again
+        assertEquals(missing, second.getMissingCount());
+        assertEquals(missing, requests.get());
+    }
+
+    public void testStopReportsStoppedAndStartResumes() throws Exception
+    {
+        delay = 20;
+        DiskTileCache cache = createCache();
+        RegionPrefetcher prefetcher = createPrefetcher(cache);
+        long total = prefetcher.getTotalCount();
+        long missing = countLayer(prefetcher);
+
+        Listener listener = new Listener();
+        prefetcher.start(2, listener);
+        while (prefetcher.getDownloadedCount() < 10)
+            Thread.sleep(5);
+        prefetcher.stop();
+        listener.await();
+
+        assertEquals(0, listener.finished.get());
+        assertEquals(1, listener.stopped.get());
+        assertTrue(prefetcher.isStopped());
+        assertEquals(0, prefetcher.getFailedCount());
+
+        long downloadedBeforeStop = prefetcher.getDownloadedCount();
+        assertTrue(downloadedBeforeStop < total - missing);
+
+        delay = 0;
+        listener = new Listener();
+        prefetcher.start(2, listener);
+        listener.await();
+
+        assertEquals(1, listener.finished.get());
+        assertEquals(0, listener.stopped.get());
+        assertTrue(!prefetcher.isStopped());
+        assertEquals(0, prefetcher.getFailedCount());
+        assertEquals(downloadedBeforeStop, prefetcher.getSkippedCount());
+        assertEquals(total - missing - downloadedBeforeStop, prefetcher.getDownloadedCount());
+        assertEquals(total, prefetcher.getProcessedCount());
+    }
+
+    private static class Listener implements RegionPrefetcher.ProgressListener
+    {
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger stopped = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onProgress(RegionPrefetcher prefetcher) { }
+
+        @Override
+        public void onFinished(RegionPrefetcher prefetcher)
+        {
+            finished.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onStopped(RegionPrefetcher prefetcher)
+        {
+            stopped.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException
+        {
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        }
+    }
+}
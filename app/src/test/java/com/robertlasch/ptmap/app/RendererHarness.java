@@ -0,0 +1,162 @@
+package com.robertlasch.ptmap.app;
+
+import android.graphics.RectF;
+import android.opengl.GLSurfaceView;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs a VectorTileRenderer off the device with the calling thread as the GL thread. Loads run on the
+ * real pipeline against a provider covering every tile with one water polygon, their uploads queue
+ * until runEvents() runs them.
+ */
+class RendererHarness
+{
+    static final long TIMEOUT = 10000;
+
+    final SurfaceView surfaceView = new SurfaceView();
+    final VectorTileRenderer renderer = new VectorTileRenderer(new Provider(), null, surfaceView);
+
+    RendererHarness(int width, int height)
+    {
+        renderer.onSurfaceCreated(null, null);
+        renderer.onSurfaceChanged(null, width, height);
+    }
+
+    void shutdown()
+    {
+        renderer.shutdown();
+    }
+
+    void runEvents()
+    {
+        surfaceView.runEvents();
+    }
+
+    /**
+     * Splits the tree down to the tiles of the range and loads them, without drawing a frame.
+     * @param zoomLevel zoom level of the tree, one above the tile URLs
+     * @return the tiles of the range
+     */
+    ArrayList<VectorTileRendered> buildTree(int zoomLevel, int minX, int minY, int maxX, int maxY) throws InterruptedException
+    {
+        ArrayList<VectorTileRendered> tiles = new ArrayList<VectorTileRendered>();
+        for (int y = minY; y <= maxY; y++)
+        {
+            for (int x = minX; x <= maxX; x++)
+            {
+                VectorTileRendered tile = createTile(zoomLevel, x, y);
+                tile.load();
+                tiles.add(tile);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (VectorTileRendered tile : tiles)
+        {
+            while (!tile.isLoaded())
+            {
+                Assert.assertTrue("Tiles not loaded", System.currentTimeMillis() < deadline);
+                runEvents();
+                Thread.sleep(1);
+            }
+        }
+
+        return tiles;
+    }
+
+    private VectorTileRendered createTile(int zoomLevel, int x, int y)
+    {
+        VectorTileRendered tile = renderer.getTile(zoomLevel, x, y);
+        if (tile != null)
+            return tile;
+
+        VectorTileRendered parent = createTile(zoomLevel - 1, x >> 1, y >> 1);
+        parent.split(
+                new VectorTileRendered(renderer, parent, true, true),
+                new VectorTileRendered(renderer, parent, true, false),
+                new VectorTileRendered(renderer, parent, false, true),
+                new VectorTileRendered(renderer, parent, false, false));
+        return renderer.getTile(zoomLevel, x, y);
+    }
+
+    /**
+     * Sets the bounds, laid out like the view bounds, to the inside of the tiles of the range.
+     * @param zoomLevel zoom level of the tree, one above the tile URLs
+     */
+    static void setBounds(RectF bounds, int zoomLevel, int minX, int minY, int maxX, int maxY)
+    {
+        double size = SphericalMercator.tileSize(zoomLevel - 1);
+        double west = SphericalMercator.tileToX(minX, zoomLevel - 1);
+        double north = SphericalMercator.tileToY(minY, zoomLevel - 1);
+        //Keep off the edges, so the neighbours of the range aren't touched
+        double inset = size / 64;
+
+        bounds.left = (float)(west + inset);
+        bounds.right = (float)(west + (maxX - minX + 1) * size - inset);
+        bounds.top = (float)(north - (maxY - minY + 1) * size + inset);
+        bounds.bottom = (float)(north - inset);
+    }
+
+    /**
+     * Collects the events for the GL thread, the test runs them.
+     */
+    static class SurfaceView extends GLSurfaceView
+    {
+        final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+
+        SurfaceView()
+        {
+            super(null);
+        }
+
+        @Override
+        public void queueEvent(Runnable event)
+        {
+            events.add(event);
+        }
+
+        void runEvents()
+        {
+            for (Runnable event = events.poll(); event != null; event = events.poll())
+                event.run();
+        }
+    }
+
+    private static class Provider implements ITileProvider, IFeatureBatchProvider
+    {
+        @Override
+        public HashMap<Geometry, HashMap<String, String>> getTile(int x, int y, int zoomLevel, VectorTileRendered.TileType type)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getFeatureBatch(int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch)
+        {
+            batch.clear();
+            if (type != VectorTileRendered.TileType.WaterAreas)
+                return true;
+
+            double size = SphericalMercator.tileSize(zoomLevel);
+            double west = SphericalMercator.tileToX(x, zoomLevel);
+            double north = SphericalMercator.tileToY(y, zoomLevel);
+
+            batch.beginFeature(FeatureBatch.POLYGON);
+            batch.beginPart();
+            batch.beginRing();
+            batch.addPoint(west, north);
+            batch.addPoint(west + size, north);
+            batch.addPoint(west + size, north - size);
+            batch.addPoint(west, north - size);
+            batch.addPoint(west, north);
+            return true;
+        }
+    }
+}
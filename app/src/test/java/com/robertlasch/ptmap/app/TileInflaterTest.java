@@ -0,0 +1,116 @@
+package com.robertlasch.ptmap.app;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Inflates payloads of changing sizes through the arena of one thread, including the inflation
+ * that shrinks the arena after a huge tile, and checks the lifecycle of the per thread instances.
+ */
+public class TileInflaterTest extends TestCase
+{
+    public TileInflaterTest(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        TileInflater.release();
+    }
+
+    private static byte[] createData(int size, long seed)
+    {
+        //Random bytes from a small alphabet, compressible but not trivially
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte)('a' + random.nextInt(16));
+        return data;
+    }
+
+    private static byte[] deflate(byte[] data)
+    {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] buffer = new byte[data.length + 64];
+        int length = 0;
+        while (!deflater.finished())
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        deflater.end();
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static void assertInflated(byte[] expected, ByteBuffer inflated)
+    {
+        assertEquals(expected.length, inflated.remaining());
+        byte[] actual = new byte[inflated.remaining()];
+        inflated.get(actual);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testShrinkKeepsInflatedData() throws Exception
+    {
+        TileInflater inflater = TileInflater.get();
+
+        byte[] huge = createData(1024 * 1024, 0);
+        byte[] compressed = deflate(huge);
+        assertInflated(huge, inflater.inflate(compressed, 0, compressed.length));
+        int grown = inflater.getArenaSize();
+        assertTrue(grown >= huge.length);
+
+        //The window with the huge tile keeps the arena, the following one of small tiles shrinks it
+        for (int i = 1; i < 100; i++)
+        {
+            byte[] small = createData(1000 + i * 100, i);
+            compressed = deflate(small);
+            assertInflated(small, inflater.inflate(ByteBuffer.wrap(compressed), 0, compressed.length));
+        }
+
+        assertTrue(inflater.getArenaSize() < grown);
+    }
+
+    public void testReleaseFreesTheInflater() throws Exception
+    {
+        TileInflater inflater = TileInflater.get();
+        assertTrue(TileInflater.getInflaters().contains(inflater));
+
+        TileInflater.release();
+        assertTrue(!TileInflater.getInflaters().contains(inflater));
+
+        TileInflater next = TileInflater.get();
+        assertTrue(next != inflater);
+        byte[] data = createData(5000, 1);
+        byte[] compressed = deflate(data);
+        assertInflated(data, next.inflate(compressed, 0, compressed.length));
+    }
+
+    public void testInflatersOfExitedThreadsAreFreed() throws Exception
+    {
+        final TileInflater[] exited = new TileInflater[1];
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                exited[0] = TileInflater.get();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertTrue(TileInflater.getInflaters().contains(exited[0]));
+
+        //The next thread that needs an inflater frees the ones left behind
+        TileInflater.get();
+        assertTrue(!TileInflater.getInflaters().contains(exited[0]));
+    }
+}
@@ -0,0 +1,340 @@
+package com.robertlasch.ptmap.app;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs TileLoadPipeline with a staged provider whose fetches can time out, block or be counted.
+ */
+public class TileLoadPipelineTest extends TestCase
+{
+    private static final VectorTileRendered.TileType[] TYPES = {
+            VectorTileRendered.TileType.WaterAreas, VectorTileRendered.TileType.RoadLines, VectorTileRendered.TileType.RoadLabels };
+
+    private static final TileLoadScheduler.PriorityFunction FIFO = new TileLoadScheduler.PriorityFunction()
+    {
+        @Override
+        public double getPriority(TileRequest request)
+        {
+            return 0;
+        }
+    };
+
+    public TileLoadPipelineTest(String name)
+    {
+        super(name);
+    }
+
+    public void testTimeoutIsAFailedLayer() throws Exception
+    {
+        Provider provider = new Provider();
+        provider.timingOut = VectorTileRendered.TileType.RoadLines;
+        TileLoadPipeline pipeline = new TileLoadPipeline(provider, FIFO, 2, 1);
+
+        Callback callback = new Callback();
+        pipeline.requestFeatureBatches(1, 2, 3, TYPES, callback);
+        callback.await();
+
+        assertEquals(1, callback.finished.get());
+        assertEquals(0, callback.cancelled.get());
+        assertEquals(Collections.singletonList(VectorTileRendered.TileType.RoadLines), callback.failed);
+        assertEquals(TYPES.length - 1, callback.loaded.size());
+    }
+
+    public void testCancelledFetchIsNotAFailedLayer() throws Exception
+    {
+        Provider provider = new Provider();
+        provider.blocking = true;
+        TileLoadPipeline pipeline = new TileLoadPipeline(provider, FIFO, 2, 1);
+
+        Callback callback = new Callback();
+        TileRequest request = pipeline.requestFeatureBatches(1, 2, 3, TYPES, callback);
+        assertTrue(provider.fetching.await(5, TimeUnit.SECONDS));
+        assertTrue(request.cancel());
+        callback.await();
+
+        assertEquals(0, callback.finished.get());
+        assertEquals(1, callback.cancelled.get());
+        assertEquals(0, callback.failed.size());
+        assertEquals(0, callback.loaded.size());
+    }
+
+    public void testConcurrentFetchesAreShared() throws Exception
+    {
+        Provider provider = new Provider();
+        provider.delay = 200;
+        CoalescingBatchProvider coalescing = CoalescingBatchProvider.create(provider);
+        assertTrue(coalescing instanceof IStagedFeatureBatchProvider);
+        TileLoadPipeline pipeline = new TileLoadPipeline(coalescing, FIFO, 4, 2);
+
+        Callback[] callbacks = new Callback[4];
+        for (int i = 0; i < callbacks.length; i++)
+        {
+            callbacks[i] = new Callback();
+            pipeline.requestFeatureBatches(1, 2, 3, TYPES, callbacks[i]);
+        }
+
+        for (Callback callback : callbacks)
+        {
+            callback.await();
+            assertEquals(1, callback.finished.get());
+            assertEquals(TYPES.length, callback.loaded.size());
+        }
+
+        assertEquals(TYPES.length, provider.fetches.get());
+        //Decodes overlapping in time are shared as well
+        assertTrue(provider.decodes.get() >= TYPES.length);
+        assertTrue(provider.decodes.get() <= TYPES.length * callbacks.length);
+        assertEquals(TYPES.length * callbacks.length - provider.decodes.get() + TYPES.length * (callbacks.length - 1),
+                coalescing.getDeduplicatedCount());
+    }
+
+    public void testConcurrentDecodesAreShared() throws Exception
+    {
+        final Provider provider = new Provider();
+        provider.decoding = new CountDownLatch(1);
+        final IStagedFeatureBatchProvider coalescing = (IStagedFeatureBatchProvider)CoalescingBatchProvider.create(provider);
+        final VectorTileRendered.TileType type = VectorTileRendered.TileType.RoadLines;
+
+        final FeatureBatch[] batches = { new FeatureBatch(), new FeatureBatch() };
+        final boolean[] success = new boolean[batches.length];
+        Thread[] threads = new Thread[batches.length];
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ByteBuffer payload = ByteBuffer.wrap(new byte[] { (byte)type.id });
+                    success[index] = coalescing.decodePayload(payload, 1, 2, 3, type, batches[index]);
+                }
+            });
+            threads[i].start();
+
+            //The second request has to find the first one decoding
+            if (i == 0)
+                assertTrue(provider.decodeStarted.await(5, TimeUnit.SECONDS));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (((CoalescingBatchProvider)coalescing).getDeduplicatedCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        provider.decoding.countDown();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(1, provider.decodes.get());
+        assertEquals(1, ((CoalescingBatchProvider)coalescing).getDeduplicatedCount());
+        for (int i = 0; i < batches.length; i++)
+        {
+            assertTrue(success[i]);
+            assertEquals(1, batches[i].getFeatureCount());
+            assertEquals(1.0, batches[i].getX(0), 0);
+        }
+    }
+
+    public void testShutdownStopsThreadsAndCancelsLoads() throws Exception
+    {
+        Provider provider = new Provider();
+        provider.decoding = new CountDownLatch(1);
+        TileLoadPipeline pipeline = new TileLoadPipeline(provider, FIFO, 2, 1);
+
+        //The first tile occupies the only CPU thread, the second one waits for it after its fetch
+        Callback decoding = new Callback();
+        pipeline.requestFeatureBatches(1, 2, 3, TYPES, decoding);
+        assertTrue(provider.decodeStarted.await(5, TimeUnit.SECONDS));
+
+        Callback waiting = new Callback();
+        pipeline.requestFeatureBatches(4, 5, 6, TYPES, waiting);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getCpuQueueDepth() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(1, pipeline.getCpuQueueDepth());
+
+        //The running tile is cancelled as well, the waiting one without being run
+        pipeline.shutdown();
+        assertTrue(pipeline.awaitTermination(5000));
+
+        decoding.await();
+        waiting.await();
+        assertEquals(1, decoding.cancelled.get());
+        assertEquals(1, waiting.cancelled.get());
+        assertEquals(0, decoding.finished.get() + waiting.finished.get());
+
+        TileRequest late = pipeline.requestFeatureBatches(7, 8, 9, TYPES, new Callback());
+        assertTrue(late.isCancelled());
+    }
+
+    public void testUncheckedFetchFailureIsSharedAsFailure() throws Exception
+    {
+        final Provider provider = new Provider();
+        provider.throwing = true;
+        provider.delay = 200;
+        final IStagedFeatureBatchProvider coalescing = (IStagedFeatureBatchProvider)CoalescingBatchProvider.create(provider);
+
+        final Object[] results = new Object[2];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        results[index] = coalescing.fetchPayload(1, 2, 3, VectorTileRendered.TileType.RoadLines);
+                    }
+                    catch (Exception e)
+                    {
+                        results[index] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(1, provider.fetches.get());
+        int unchecked = 0, failed = 0;
+        for (Object result : results)
+        {
+            if (result instanceof IllegalStateException)
+                unchecked++;
+            else if (result instanceof IOException)
+                failed++;
+        }
+        //The leader sees the original exception, the waiter a failed fetch instead of a missing tile
+        assertEquals(1, unchecked);
+        assertEquals(1, failed);
+    }
+
+    private static class Provider implements IStagedFeatureBatchProvider
+    {
+        volatile VectorTileRendered.TileType timingOut;
+        volatile boolean blocking;
+        volatile boolean throwing;
+        volatile long delay;
+        volatile CountDownLatch decoding;
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch decodeStarted = new CountDownLatch(1);
+        final AtomicInteger fetches = new AtomicInteger();
+        final AtomicInteger decodes = new AtomicInteger();
+
+        @Override
+        public ByteBuffer fetchPayload(int x, int y, int zoomLevel, VectorTileRendered.TileType type) throws IOException
+        {
+            fetches.incrementAndGet();
+            fetching.countDown();
+
+            if (type == timingOut)
+                throw new SocketTimeoutException("Read timed out");
+
+            try
+            {
+                if (blocking)
+                    Thread.sleep(Long.MAX_VALUE);
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("Cancelled");
+            }
+
+            if (throwing)
+                throw new IllegalStateException("Broken provider");
+
+            return ByteBuffer.wrap(new byte[] { (byte)type.id });
+        }
+
+        @Override
+        public boolean decodePayload(ByteBuffer payload, int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch)
+        {
+            decodes.incrementAndGet();
+            decodeStarted.countDown();
+
+            try
+            {
+                if (decoding != null)
+                    decoding.await();
+            }
+            catch (InterruptedException e)
+            {
+                return false;
+            }
+
+            batch.clear();
+            batch.beginFeature(FeatureBatch.POINT);
+            batch.beginPart();
+            batch.beginRing();
+            batch.addPoint(x, y);
+            return payload.get() == type.id;
+        }
+
+        @Override
+        public boolean getFeatureBatch(int x, int y, int zoomLevel, VectorTileRendered.TileType type, FeatureBatch batch)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Callback implements TileRequest.Callback
+    {
+        final List<VectorTileRendered.TileType> loaded = Collections.synchronizedList(new ArrayList<VectorTileRendered.TileType>());
+        final List<VectorTileRendered.TileType> failed = Collections.synchronizedList(new ArrayList<VectorTileRendered.TileType>());
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger cancelled = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onStarted(TileRequest request) { }
+
+        @Override
+        public void onFeatureBatch(TileRequest request, VectorTileRendered.TileType type, FeatureBatch batch)
+        {
+            loaded.add(type);
+        }
+
+        @Override
+        public void onFailed(TileRequest request, VectorTileRendered.TileType type)
+        {
+            failed.add(type);
+        }
+
+        @Override
+        public void onFinished(TileRequest request)
+        {
+            finished.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onCancelled(TileRequest request)
+        {
+            cancelled.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException
+        {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.robertlasch.ptmap.app;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hammers a few tiles with loads, cancels, unloads and evictions from several threads and checks
+ * that no tile is ever loaded twice at the same time, that evicted tiles stay evicted and that every
+ * tile settles as EMPTY, READY or EVICTED.
+ *
+ * Loads follow TileRequest: a load cancelled before a loader picked it up is ended by the canceller,
+ * a started one by its loader at the next stage. Uploads are finished by a single GL thread.
+ */
+public class TileLoadStateTest extends TestCase
+{
+    private static final int TILES = 8;
+    private static final int REQUESTERS = 3;
+    private static final int LOADERS = 4;
+    private static final long DURATION = 2000;
+
+    private final AtomicReferenceArray<Tile> tiles = createTiles();
+    private final BlockingQueue<Load> loadQueue = new LinkedBlockingQueue<Load>();
+    private final BlockingQueue<Load> uploadQueue = new LinkedBlockingQueue<Load>();
+    private final List<Tile> evicted = new ArrayList<Tile>();
+    private final List<String> violations = new ArrayList<String>();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger abandoned = new AtomicInteger();
+
+    public TileLoadStateTest(String name)
+    {
+        super(name);
+    }
+
+    private static AtomicReferenceArray<Tile> createTiles()
+    {
+        AtomicReferenceArray<Tile> tiles = new AtomicReferenceArray<Tile>(TILES);
+        for (int i = 0; i < TILES; i++)
+            tiles.set(i, new Tile());
+        return tiles;
+    }
+
+    public void testSingleTileLifecycle()
+    {
+        TileLoadState state = new TileLoadState();
+
+        assertTrue(state.queue());
+        assertTrue(!state.queue());
+        assertTrue(state.start());
+        assertTrue(state.decoded());
+        assertTrue(state.decoded());
+        assertTrue(state.publish());
+        assertTrue(!state.abandon());
+        assertTrue(state.ready());
+        assertTrue(state.isLoaded());
+        assertTrue(state.unload());
+        assertEquals(TileLoadState.EMPTY, state.get());
+
+        assertTrue(state.queue());
+        assertTrue(state.start());
+        assertTrue(state.abandon());
+        assertTrue(!state.decoded());
+        assertTrue(!state.publish());
+
+        state.evict();
+        assertTrue(!state.queue());
+        assertTrue(!state.completeWithoutLoad());
+        assertTrue(!state.abandon());
+        assertTrue(!state.unload());
+        assertTrue(state.isEvicted());
+    }
+
+    public void testConcurrentLifecycle() throws Exception
+    {
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < REQUESTERS; i++)
+        {
+            final long seed = i;
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    request(new Random(seed));
+                }
+            }));
+        }
+
+        for (int i = 0; i < LOADERS; i++)
+        {
+            final long seed = 100 + i;
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runLoads(new Random(seed));
+                }
+            }));
+        }
+
+        threads.add(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runUploads();
+            }
+        }));
+
+        for (Thread thread : threads)
+            thread.start();
+
+        Thread.sleep(DURATION);
+        running.set(false);
+
+        for (Thread thread : threads)
+            thread.join();
+
+        //Finish what is still queued, like the pools do after the view stopped moving
+        for (Load load = loadQueue.poll(); load != null; load = loadQueue.poll())
+            runLoad(load, new Random(0));
+        for (Load load = uploadQueue.poll(); load != null; load = uploadQueue.poll())
+            upload(load);
+
+        synchronized (violations)
+        {
+            assertTrue(violations.toString(), violations.isEmpty());
+        }
+
+        assertTrue(started.get() > 1000);
+        assertEquals(started.get(), completed.get() + abandoned.get());
+
+        for (int i = 0; i < TILES; i++)
+        {
+            Tile tile = tiles.get(i);
+            int s = tile.state.get();
+            assertTrue("Stuck in state " + s, s == TileLoadState.EMPTY || s == TileLoadState.READY);
+            assertEquals(0, tile.inFlight.get());
+        }
+
+        synchronized (evicted)
+        {
+            assertTrue(!evicted.isEmpty());
+            for (Tile tile : evicted)
+            {
+                assertTrue(tile.state.isEvicted());
+                assertEquals(0, tile.inFlight.get());
+            }
+        }
+    }
+
+    /**
+     * The GL thread side: starts loads of visible tiles, cancels, unloads and evicts them.
+     */
+    private void request(Random random)
+    {
+        while (running.get())
+        {
+            int index = random.nextInt(TILES);
+            Tile tile = tiles.get(index);
+            int action = random.nextInt(100);
+
+            if (action < 50)
+            {
+                if (tile.state.queue())
+                {
+                    started.incrementAndGet();
+                    if (tile.inFlight.incrementAndGet() != 1)
+                        violation("Second load of a tile started");
+
+                    Load load = new Load(tile);
+                    tile.load = load;
+                    loadQueue.add(load);
+                }
+            }
+            else if (action < 80)
+            {
+                Load load = tile.load;
+                //Not picked up by a loader yet, the canceller ends it
+                if (load != null && load.phase.compareAndSet(Load.PENDING, Load.CANCELLED))
+                    abandon(load);
+                else if (load != null)
+                    load.cancelled = true;
+            }
+            else if (action < 98)
+            {
+                tile.state.unload();
+            }
+            else if (tiles.compareAndSet(index, tile, new Tile()))
+            {
+                Load load = tile.load;
+                if (load != null)
+                    load.cancelled = true;
+
+                tile.state.evict();
+                synchronized (evicted)
+                {
+                    evicted.add(tile);
+                }
+            }
+
+            if (random.nextInt(8) == 0)
+                Thread.yield();
+        }
+    }
+
+    private void runLoads(Random random)
+    {
+        while (running.get())
+        {
+            try
+            {
+                Load load = loadQueue.poll(10, TimeUnit.MILLISECONDS);
+                if (load != null)
+                    runLoad(load, random);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void runLoad(Load load, Random random)
+    {
+        if (!load.phase.compareAndSet(Load.PENDING, Load.RUNNING))
+            return;
+
+        TileLoadState state = load.tile.state;
+
+        //Evicted before the loader got to it
+        if (!state.start() && !state.isEvicted())
+            violation("Started load not in QUEUED but " + state.get());
+
+        if (random.nextBoolean())
+            Thread.yield();
+
+        if (load.cancelled || !state.decoded())
+        {
+            abandon(load);
+            return;
+        }
+
+        if (random.nextBoolean())
+            Thread.yield();
+
+        if (load.cancelled || !state.publish())
+        {
+            abandon(load);
+            return;
+        }
+
+        uploadQueue.add(load);
+    }
+
+    private void runUploads()
+    {
+        while (running.get())
+        {
+            try
+            {
+                Load load = uploadQueue.poll(10, TimeUnit.MILLISECONDS);
+                if (load != null)
+                    upload(load);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void upload(Load load)
+    {
+        TileLoadState state = load.tile.state;
+        int s = state.get();
+        if (s != TileLoadState.UPLOADING && s != TileLoadState.EVICTED)
+            violation("Upload of a tile in state " + s);
+
+        //The load ends before the tile can be loaded again
+        end(load);
+        if (!state.ready() && !state.isEvicted())
+            violation("Upload not finished in state " + state.get());
+
+        completed.incrementAndGet();
+    }
+
+    private void abandon(Load load)
+    {
+        end(load);
+        load.tile.state.abandon();
+        abandoned.incrementAndGet();
+    }
+
+    private void end(Load load)
+    {
+        if (load.tile.inFlight.decrementAndGet() != 0)
+            violation("Load ended twice or overlapped another one");
+    }
+
+    private void violation(String message)
+    {
+        synchronized (violations)
+        {
+            violations.add(message);
+        }
+    }
+
+    private static class Tile
+    {
+        final TileLoadState state = new TileLoadState();
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile Load load;
+    }
+
+    private static class Load
+    {
+        static final int PENDING = 0;
+        static final int RUNNING = 1;
+        static final int CANCELLED = 2;
+
+        final Tile tile;
+        final AtomicInteger phase = new AtomicInteger(PENDING);
+        volatile boolean cancelled = false;
+
+        Load(Tile tile)
+        {
+            this.tile = tile;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.robertlasch.ptmap.app;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Drives the renderer through frames with the test thread as the GL thread, see RendererHarness.
+ */
+public class VectorTileRendererTest extends TestCase
+{
+    private RendererHarness harness;
+    private RendererHarness.SurfaceView surfaceView;
+    private VectorTileRenderer renderer;
+
+    public VectorTileRendererTest(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp()
+    {
+        harness = new RendererHarness(1080, 1920);
+        surfaceView = harness.surfaceView;
+        renderer = harness.renderer;
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        harness.shutdown();
+    }
+
+    /**
+     * Draws frames until uploads are queued, without running them.
+     */
+    private void drawUntilUploadsQueued() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + RendererHarness.TIMEOUT;
+        while (surfaceView.events.isEmpty())
+        {
+            assertTrue("No upload queued", System.currentTimeMillis() < deadline);
+            renderer.onDrawFrame(null);
+            Thread.sleep(5);
+        }
+    }
+
+    public void testContextLossDropsTheOldTree() throws Exception
+    {
+        drawUntilUploadsQueued();
+        surfaceView.runEvents();
+        assertTrue(renderer.getGpuBytes() > 0);
+
+        //Move on, so the next loads are for tiles that have nothing uploaded yet
+        renderer.setCameraX((float)SphericalMercator.lonToX(20));
+        drawUntilUploadsQueued();
+
+        ArrayList<VectorTileRendered> oldTiles = new ArrayList<VectorTileRendered>();
+        renderer.collectVisibleTiles(oldTiles);
+        assertTrue(!oldTiles.isEmpty());
+
+        //The context is lost with uploads of the old tree still queued
+        renderer.onSurfaceCreated(null, null);
+        assertEquals(0, renderer.getGpuBytes());
+        assertEquals(1, renderer.getNodeCount());
+
+        surfaceView.runEvents();
+        assertEquals(0, renderer.getGpuBytes());
+        for (VectorTileRendered tile : oldTiles)
+        {
+            assertTrue(!tile.isLoaded());
+            assertTrue(tile.isDetached());
+        }
+
+        //The new tree loads and counts only its own buffers
+        drawUntilUploadsQueued();
+        surfaceView.runEvents();
+        assertTrue(renderer.getGpuBytes() > 0);
+
+        for (VectorTileRendered tile : oldTiles)
+            assertTrue(!tile.isLoaded());
+    }
+}